@@ -0,0 +1,320 @@
+package au.leighperry.jdkext.codegen;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Throughput of the {@link CodeGen} paths exercised by capture jobs. Run with {@code gradle jmh}, which adds
+ * the GC profiler so allocation rate is reported alongside throughput.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CodeGenBenchmark {
+    public enum Colour {RED, GREEN, BLUE}
+
+    @Param({"10000"})
+    int size;
+
+    @Param({"200"})
+    int depth;
+
+    private final StringBuilder out = new StringBuilder(1 << 20);
+
+    private List<String> list;
+    private Set<Integer> set;
+    private Map<String, Long> map;
+    private Node deep;
+    private List<WideBean> wideBeans;
+
+    @Setup
+    public void setup() {
+        list = new ArrayList<>(size);
+        set = new HashSet<>(size * 2);
+        map = new HashMap<>(size * 2);
+        for (int i = 0; i < size; ++i) {
+            list.add("item-" + i);
+            set.add(i);
+            map.put("key-" + i, (long) i);
+        }
+
+        deep = null;
+        for (int i = 0; i < depth; ++i) {
+            final Node node = new Node();
+            node.setValue(i);
+            node.setName("node-" + i);
+            node.setNext(deep);
+            deep = node;
+        }
+
+        wideBeans = new ArrayList<>(size / 10);
+        for (int i = 0; i < size / 10; ++i) {
+            wideBeans.add(wideBean(i));
+        }
+    }
+
+    @Benchmark
+    public String simpleValue() {
+        return write(123456789L);
+    }
+
+    @Benchmark
+    public String enumValue() {
+        return write(Colour.GREEN);
+    }
+
+    @Benchmark
+    public String largeList() {
+        return write(list);
+    }
+
+    @Benchmark
+    public void largeListSeq(final Blackhole blackhole) {
+        blackhole.consume(CodeGen.getPreambleAndExpression(list).v1.collect(Collectors.joining()));
+    }
+
+    @Benchmark
+    public String largeSet() {
+        return write(set);
+    }
+
+    @Benchmark
+    public String largeMap() {
+        return write(map);
+    }
+
+    @Benchmark
+    public String deepBeanGraph() {
+        return write(deep);
+    }
+
+    @Benchmark
+    public String wideBeans() {
+        return write(wideBeans);
+    }
+
+    private String write(final Object o) {
+        out.setLength(0);
+        return CodeGen.writePreambleAndExpression(o, out);
+    }
+
+    private static WideBean wideBean(final int i) {
+        final WideBean bean = new WideBean();
+        bean.setS0("value-" + i);
+        bean.setS1("value-" + i);
+        bean.setS2("value-" + i);
+        bean.setS3("value-" + i);
+        bean.setI0(i);
+        bean.setI1(i);
+        bean.setI2(i);
+        bean.setI3(i);
+        bean.setL0(i * 1000L);
+        bean.setL1(i * 1000L);
+        bean.setL2(i * 1000L);
+        bean.setL3(i * 1000L);
+        bean.setD0(java.math.BigDecimal.valueOf(i, 2));
+        bean.setD1(java.math.BigDecimal.valueOf(i, 2));
+        bean.setB0(i % 2 == 0);
+        bean.setB1(i % 2 == 0);
+        return bean;
+    }
+
+    public static class Node {
+        private int value;
+        private String name;
+        private Node next;
+
+        public int getValue() {
+            return value;
+        }
+
+        public void setValue(final int value) {
+            this.value = value;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(final String name) {
+            this.name = name;
+        }
+
+        public Node getNext() {
+            return next;
+        }
+
+        public void setNext(final Node next) {
+            this.next = next;
+        }
+    }
+
+    public static class WideBean {
+        private String s0;
+        private String s1;
+        private String s2;
+        private String s3;
+        private Integer i0;
+        private Integer i1;
+        private Integer i2;
+        private Integer i3;
+        private Long l0;
+        private Long l1;
+        private Long l2;
+        private Long l3;
+        private java.math.BigDecimal d0;
+        private java.math.BigDecimal d1;
+        private Boolean b0;
+        private Boolean b1;
+
+        public String getS0() {
+            return s0;
+        }
+
+        public void setS0(final String s0) {
+            this.s0 = s0;
+        }
+
+        public String getS1() {
+            return s1;
+        }
+
+        public void setS1(final String s1) {
+            this.s1 = s1;
+        }
+
+        public String getS2() {
+            return s2;
+        }
+
+        public void setS2(final String s2) {
+            this.s2 = s2;
+        }
+
+        public String getS3() {
+            return s3;
+        }
+
+        public void setS3(final String s3) {
+            this.s3 = s3;
+        }
+
+        public Integer getI0() {
+            return i0;
+        }
+
+        public void setI0(final Integer i0) {
+            this.i0 = i0;
+        }
+
+        public Integer getI1() {
+            return i1;
+        }
+
+        public void setI1(final Integer i1) {
+            this.i1 = i1;
+        }
+
+        public Integer getI2() {
+            return i2;
+        }
+
+        public void setI2(final Integer i2) {
+            this.i2 = i2;
+        }
+
+        public Integer getI3() {
+            return i3;
+        }
+
+        public void setI3(final Integer i3) {
+            this.i3 = i3;
+        }
+
+        public Long getL0() {
+            return l0;
+        }
+
+        public void setL0(final Long l0) {
+            this.l0 = l0;
+        }
+
+        public Long getL1() {
+            return l1;
+        }
+
+        public void setL1(final Long l1) {
+            this.l1 = l1;
+        }
+
+        public Long getL2() {
+            return l2;
+        }
+
+        public void setL2(final Long l2) {
+            this.l2 = l2;
+        }
+
+        public Long getL3() {
+            return l3;
+        }
+
+        public void setL3(final Long l3) {
+            this.l3 = l3;
+        }
+
+        public java.math.BigDecimal getD0() {
+            return d0;
+        }
+
+        public void setD0(final java.math.BigDecimal d0) {
+            this.d0 = d0;
+        }
+
+        public java.math.BigDecimal getD1() {
+            return d1;
+        }
+
+        public void setD1(final java.math.BigDecimal d1) {
+            this.d1 = d1;
+        }
+
+        public Boolean getB0() {
+            return b0;
+        }
+
+        public void setB0(final Boolean b0) {
+            this.b0 = b0;
+        }
+
+        public Boolean getB1() {
+            return b1;
+        }
+
+        public void setB1(final Boolean b1) {
+            this.b1 = b1;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package au.leighperry.jdkext.codegen;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Writes statements, one per line, to an {@link Appendable}.
+ * <p>
+ * A {@link StringBuilder} target is written to directly. Other targets receive the output in large blocks.
+ */
+final class AppendableSink extends CodeSink {
+    private static final int FLUSH_THRESHOLD = 8192;
+
+    private final Appendable out;
+
+    AppendableSink(final Appendable out) {
+        super(out instanceof StringBuilder ? (StringBuilder) out : new StringBuilder(FLUSH_THRESHOLD * 2));
+        this.out = out;
+    }
+
+    @Override
+    void statementEnded() {
+        buffer.append('\n');
+        if (buffer != out && buffer.length() >= FLUSH_THRESHOLD) {
+            flush();
+        }
+    }
+
+    @Override
+    void flush() {
+        if (buffer != out) {
+            try {
+                out.append(buffer);
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            buffer.setLength(0);
+        }
+    }
+}
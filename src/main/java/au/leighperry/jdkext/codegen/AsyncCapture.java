@@ -0,0 +1,298 @@
+package au.leighperry.jdkext.codegen;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Captures objects for code generation from latency-sensitive threads, eg to record reproducers of the
+ * requests handled by a live service.
+ * <p>
+ * {@link #capture(Object)} takes a shallow snapshot of the object on the calling thread (copying the property
+ * values of a bean, the elements of a collection or array, or the entries of a map) and queues it, and the
+ * code is generated later on a background executor. The root is generated as it was when captured, but the
+ * instances it refers to are read when it is generated, so should not be modified in the meantime. Values
+ * generated by a {@link TypeEmitter} are read from the object itself when generated.
+ * <p>
+ * The queue is bounded: once full, captures are dropped according to the {@link Overflow} policy. Captures
+ * may also be sampled, keeping one call in every {@code sampleInterval} on average, chosen at random on the
+ * calling thread so that callers share no counter. The counts of captures kept,
+ * skipped, dropped, generated and failed are available as metrics of the backpressure.
+ * <p>
+ * Each capture is generated by a new {@link CodeGenSession}, so its variables are numbered from zero. The
+ * generated code is passed to the consumer on the executor thread, one capture at a time.
+ */
+public final class AsyncCapture implements AutoCloseable {
+    public enum Overflow {
+        /**
+         * A capture that finds the queue full is dropped
+         */
+        DROP_NEWEST,
+
+        /**
+         * A capture that finds the queue full replaces the oldest capture queued
+         */
+        DROP_OLDEST
+    }
+
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    private final CodeGenOptions options;
+    private final int capacity;
+    private final int sampleInterval;
+    private final Overflow overflow;
+    private final Executor executor;
+    private final boolean ownsExecutor;
+    private final Consumer<CapturedCode> consumer;
+
+    // The size of the queue is tracked separately, as that of a ConcurrentLinkedQueue is not constant time
+    private final ConcurrentLinkedQueue<Snapshot> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+
+    // Whether a drain of the queue has been submitted to the executor and not finished
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    private final LongAdder captured = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder generated = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    private volatile boolean closed;
+
+    /**
+     * Capture every call, queueing up to 1024 captures (dropping further captures while full), and generate
+     * them on a thread of this capture's own
+     */
+    public AsyncCapture(final CodeGenOptions options, final Consumer<CapturedCode> consumer) {
+        this(options, DEFAULT_CAPACITY, 1, Overflow.DROP_NEWEST, null, consumer);
+    }
+
+    /**
+     * @param options        the options of the generated code
+     * @param capacity       the maximum number of captures queued
+     * @param sampleInterval capture one call in every {@code sampleInterval} on average, 1 for every call
+     * @param overflow       which captures to drop when the queue is full
+     * @param executor       runs the generation, null for virtual threads where the JVM has them, otherwise a
+     *                       daemon thread of this capture's own. An executor passed in is not shut down on
+     *                       {@link #close()}.
+     * @param consumer       receives the code generated for each capture
+     */
+    public AsyncCapture(
+        final CodeGenOptions options,
+        final int capacity,
+        final int sampleInterval,
+        final Overflow overflow,
+        final Executor executor,
+        final Consumer<CapturedCode> consumer
+    ) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        if (sampleInterval <= 0) {
+            throw new IllegalArgumentException("sampleInterval must be positive: " + sampleInterval);
+        }
+        this.options = options;
+        this.capacity = capacity;
+        this.sampleInterval = sampleInterval;
+        this.overflow = overflow;
+        this.ownsExecutor = executor == null;
+        this.executor = executor == null ? defaultExecutor() : executor;
+        this.consumer = consumer;
+    }
+
+    /**
+     * Snapshot {@code o} and queue it for generation, unless it is skipped by sampling or dropped by the
+     * overflow policy. Nothing is thrown to the caller: an object that cannot be snapshotted is counted as
+     * {@link #failed()}.
+     *
+     * @return whether {@code o} was queued
+     */
+    public boolean capture(final Object o) {
+        if (closed) {
+            dropped.increment();
+            return false;
+        }
+        if (sampleInterval > 1 && ThreadLocalRandom.current().nextInt(sampleInterval) != 0) {
+            skipped.increment();
+            return false;
+        }
+        if (overflow == Overflow.DROP_NEWEST && queued.get() >= capacity) {
+            // Before the snapshot, so a full queue costs the caller nothing more
+            dropped.increment();
+            return false;
+        }
+
+        final Snapshot snapshot;
+        try {
+            snapshot = Snapshot.of(o, options);
+        } catch (final RuntimeException e) {
+            failed.increment();
+            return false;
+        }
+
+        if (!offer(snapshot)) {
+            dropped.increment();
+            return false;
+        }
+        if (closed && withdraw(snapshot)) {
+            // Closed since the check above, so there may be no drain left to generate it
+            dropped.increment();
+            return false;
+        }
+        captured.increment();
+        schedule();
+        return true;
+    }
+
+    private boolean offer(final Snapshot snapshot) {
+        while (queued.incrementAndGet() > capacity) {
+            queued.decrementAndGet();
+            if (overflow == Overflow.DROP_NEWEST) {
+                return false;
+            }
+            if (poll() != null) {
+                dropped.increment();
+            }
+        }
+        queue.add(snapshot);
+        return true;
+    }
+
+    /**
+     * @return whether {@code snapshot} was still queued, and is now removed
+     */
+    private boolean withdraw(final Snapshot snapshot) {
+        if (queue.remove(snapshot)) {
+            queued.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    private Snapshot poll() {
+        final Snapshot snapshot = queue.poll();
+        if (snapshot != null) {
+            queued.decrementAndGet();
+        }
+        return snapshot;
+    }
+
+    private void schedule() {
+        if (draining.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::drain);
+            } catch (final RejectedExecutionException e) {
+                draining.set(false);
+                if (closed) {
+                    // No later capture will schedule a drain
+                    discard();
+                }
+                // Otherwise left queued for the next capture to schedule
+            }
+        }
+    }
+
+    private void drain() {
+        do {
+            Snapshot snapshot;
+            while ((snapshot = poll()) != null) {
+                generate(snapshot);
+            }
+            draining.set(false);
+
+            // A capture queued after the last poll, but before the flag was cleared, did not schedule a drain
+        } while (!queue.isEmpty() && draining.compareAndSet(false, true));
+    }
+
+    private void discard() {
+        while (poll() != null) {
+            dropped.increment();
+        }
+    }
+
+    private void generate(final Snapshot snapshot) {
+        try {
+            consumer.accept(new CodeGenSession(options).getCapturedCode(snapshot));
+            generated.increment();
+        } catch (final RuntimeException e) {
+            // Counted rather than thrown, as it would end the drain with the flag still set
+            failed.increment();
+        }
+    }
+
+    /**
+     * @return the number of objects queued for generation
+     */
+    public long captured() {
+        return captured.sum();
+    }
+
+    /**
+     * @return the number of calls passed over by sampling
+     */
+    public long skipped() {
+        return skipped.sum();
+    }
+
+    /**
+     * @return the number of captures dropped because the queue was full, or after {@link #close()}
+     */
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return the number of captures whose code has been generated and passed to the consumer
+     */
+    public long generated() {
+        return generated.sum();
+    }
+
+    /**
+     * @return the number of objects that could not be snapshotted or generated, or whose code the consumer
+     * threw on
+     */
+    public long failed() {
+        return failed.sum();
+    }
+
+    /**
+     * @return the number of captures waiting to be generated
+     */
+    public int queued() {
+        return queued.get();
+    }
+
+    /**
+     * Stop capturing. Captures already queued are still generated, unless the executor is shut down first, in
+     * which case they are dropped. A capture racing with the close is either generated or dropped.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (ownsExecutor) {
+            ((ExecutorService) executor).shutdown();
+        }
+    }
+
+    private static ExecutorService defaultExecutor() {
+        try {
+            // Java 21+, looked up so the library still runs on earlier JVMs
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (final ReflectiveOperationException e) {
+            return Executors.newSingleThreadExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "codegen-capture");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package au.leighperry.jdkext.codegen;
+
+import java.util.List;
+
+/**
+ * An object graph as compact binary data, with the source of a small loader class that rebuilds it.
+ * <p>
+ * The data is to be packaged as a resource named {@link #resourceName()} alongside the loader, whose
+ * {@code public static Object create()} reads it with {@link BinarySnapshotReader}, so this library must be
+ * on the classpath of the code that loads it. Values generated by a {@link TypeEmitter} are written as source
+ * in the loader and passed to the reader.
+ */
+public final class BinarySnapshot {
+    private static final String INDENT = "    ";
+    private static final String IMPORTS =
+        "import java.util.List;\n" +
+            "import java.util.Map;\n" +
+            "import java.util.Set;\n";
+
+    private final ChunkedCode.Unit loader;
+    private final byte[] data;
+
+    BinarySnapshot(
+        final String packageName,
+        final String className,
+        final List<String> preamble,
+        final List<String> externals,
+        final byte[] data
+    ) {
+        final String source = loaderSource(packageName, className, preamble, externals);
+        this.loader = new ChunkedCode.Unit(packageName, className, source);
+        this.data = data;
+    }
+
+    /**
+     * @return the loader class
+     */
+    public ChunkedCode.Unit loader() {
+        return loader;
+    }
+
+    /**
+     * @return the name of the resource holding the data, relative to the loader class
+     */
+    public String resourceName() {
+        return loader.className() + ".bin";
+    }
+
+    /**
+     * @return the data, to be packaged as the resource {@link #resourceName()}
+     */
+    public byte[] data() {
+        return data.clone();
+    }
+
+    private static String loaderSource(
+        final String packageName,
+        final String className,
+        final List<String> preamble,
+        final List<String> externals
+    ) {
+        final StringBuilder source = new StringBuilder();
+        if (!packageName.isEmpty()) {
+            source.append("package ").append(packageName).append(";\n\n");
+        }
+        source.append(IMPORTS).append('\n')
+            .append("public class ").append(className).append(" {\n")
+            .append(INDENT).append("public static Object create() {\n");
+        for (final String line : preamble) {
+            source.append(INDENT).append(INDENT).append(line).append('\n');
+        }
+        source.append(INDENT).append(INDENT)
+            .append("return ").append(BinarySnapshotReader.class.getName()).append(".read(")
+            .append(className).append(".class, \"").append(className).append(".bin\", new Object[] {");
+        for (int i = 0; i < externals.size(); ++i) {
+            source.append(i == 0 ? "" : ", ").append(externals.get(i));
+        }
+        return source.append("});\n")
+            .append(INDENT).append("}\n")
+            .append("}\n")
+            .toString();
+    }
+}
@@ -0,0 +1,446 @@
+package au.leighperry.jdkext.codegen;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rebuilds an object graph from the data of a {@link BinarySnapshot}, making the same constructor, setter,
+ * {@code add} and {@code put} calls, in the same order, as the code generated for the graph would. This class
+ * is called by the generated loaders, so must be on their classpath at runtime.
+ * <p>
+ * The data holds a string table and a type table, followed by a stream of operations, each creating an
+ * instance or populating one. Values are tagged, with integers as varints. Instances are identified by the
+ * order they are created in. Wrapping values such as {@code Optional} and unmodifiable collections are
+ * created by their factory methods from their contents, and other values generated as source by a
+ * {@link TypeEmitter} are supplied by the loader.
+ */
+public final class BinarySnapshotReader {
+    static final int MAGIC = 0x43474231;
+
+    // Operations
+    static final int NEW_OBJECT = 1;
+    static final int NEW_ARRAY = 2;
+    static final int NEW_PRIMITIVE_ARRAY = 3;
+    static final int NEW_ENUM_SET = 4;
+    static final int NEW_ENUM_MAP = 5;
+    static final int SET = 6;
+    static final int ADD = 7;
+    static final int PUT = 8;
+    static final int STORE = 9;
+    static final int END = 10;
+    static final int NEW_WRAPPER = 11;
+
+    // Value tags
+    static final int NULL = 0;
+    static final int TRUE = 1;
+    static final int FALSE = 2;
+    static final int BYTE = 3;
+    static final int SHORT = 4;
+    static final int CHAR = 5;
+    static final int INT = 6;
+    static final int LONG = 7;
+    static final int FLOAT = 8;
+    static final int DOUBLE = 9;
+    static final int STRING = 10;
+    static final int DECIMAL = 11;
+    static final int ENUM = 12;
+    static final int REF = 13;
+    static final int EXTERNAL = 14;
+
+    private static final Map<String, Class<?>> PRIMITIVE_TYPES = new HashMap<>();
+
+    static {
+        for (final Class<?> type : new Class<?>[]{
+            boolean.class, byte.class, char.class, short.class, int.class, long.class, float.class, double.class
+        }) {
+            PRIMITIVE_TYPES.put(type.getName(), type);
+        }
+    }
+
+    private final byte[] data;
+    private int position;
+
+    private final ClassLoader loader;
+    private final Object[] externals;
+
+    private String[] strings;
+    private TypeEntry[] types;
+    private final List<Object> instances = new ArrayList<>();
+
+    // The factory methods of wrapping values, by string index
+    private final Map<Integer, Method> factories = new HashMap<>();
+
+    private BinarySnapshotReader(final byte[] data, final ClassLoader loader, final Object[] externals) {
+        this.data = data;
+        this.loader = loader;
+        this.externals = externals;
+    }
+
+    /**
+     * Rebuild the graph held by a resource, as called by a generated loader
+     *
+     * @param anchor    the class the resource is found relative to, whose class loader loads the graph's classes
+     * @param resource  the name of the resource
+     * @param externals the values generated as source, in the order the data refers to them
+     * @return the root of the graph
+     * @throws IllegalStateException if the resource is missing, or the graph cannot be rebuilt
+     */
+    public static Object read(final Class<?> anchor, final String resource, final Object[] externals) {
+        try (final InputStream in = anchor.getResourceAsStream(resource)) {
+            if (in == null) {
+                throw new IllegalStateException("Snapshot resource not found: " + resource);
+            }
+            return read(in, anchor.getClassLoader(), externals);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Rebuild the graph held by {@code in}
+     *
+     * @param loader    loads the graph's classes
+     * @param externals the values generated as source, in the order the data refers to them
+     * @return the root of the graph
+     * @throws IllegalStateException if the graph cannot be rebuilt
+     */
+    public static Object read(final InputStream in, final ClassLoader loader, final Object[] externals) {
+        try {
+            return new BinarySnapshotReader(readFully(in), loader, externals).read();
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static byte[] readFully(final InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+        final byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private Object read() {
+        if (data.length < 4 || readFixedInt() != MAGIC) {
+            throw new IllegalStateException("Not a binary snapshot");
+        }
+
+        strings = new String[readVarint()];
+        for (int i = 0; i < strings.length; ++i) {
+            final char[] chars = new char[readVarint()];
+            for (int j = 0; j < chars.length; ++j) {
+                chars[j] = (char) readVarint();
+            }
+            strings[i] = new String(chars);
+        }
+
+        types = new TypeEntry[readVarint()];
+        for (int i = 0; i < types.length; ++i) {
+            final String name = strings[readVarint()];
+            final String[] setters = new String[readVarint()];
+            final String[] parameterTypes = new String[setters.length];
+            for (int j = 0; j < setters.length; ++j) {
+                setters[j] = strings[readVarint()];
+                parameterTypes[j] = strings[readVarint()];
+            }
+            types[i] = new TypeEntry(name, setters, parameterTypes);
+        }
+
+        try {
+            while (true) {
+                final int operation = data[position++];
+                switch (operation) {
+                    case NEW_OBJECT:
+                        instances.add(type().constructor().newInstance());
+                        break;
+                    case NEW_ARRAY:
+                        final Class<?> componentType = type().type();
+                        instances.add(Array.newInstance(componentType, readVarint()));
+                        break;
+                    case NEW_PRIMITIVE_ARRAY:
+                        instances.add(readPrimitiveArray(type().type()));
+                        break;
+                    case NEW_ENUM_SET:
+                        instances.add(newEnumSet(enumType(type().type())));
+                        break;
+                    case NEW_ENUM_MAP:
+                        instances.add(newEnumMap(enumType(type().type())));
+                        break;
+                    case NEW_WRAPPER:
+                        final Method factory = factory(readVarint());
+                        instances.add(
+                            factory.getParameterCount() == 0 ? factory.invoke(null) : factory.invoke(null, readValue())
+                        );
+                        break;
+                    case SET:
+                        final Object bean = instance();
+                        types[readVarint()].setter(readVarint()).invoke(bean, readValue());
+                        break;
+                    case ADD:
+                        collection(instance()).add(readValue());
+                        break;
+                    case PUT:
+                        final Map<Object, Object> map = map(instance());
+                        final Object key = readValue();
+                        map.put(key, readValue());
+                        break;
+                    case STORE:
+                        final Object[] array = (Object[]) instance();
+                        final int index = readVarint();
+                        array[index] = readValue();
+                        break;
+                    case END:
+                        return readValue();
+                    default:
+                        throw new IllegalStateException("Unknown operation " + operation + " at " + (position - 1));
+                }
+            }
+        } catch (final InvocationTargetException e) {
+            throw new IllegalStateException("Cannot rebuild snapshot", e.getCause());
+        } catch (final ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot rebuild snapshot", e);
+        }
+    }
+
+    private Object readValue() throws ClassNotFoundException {
+        final int tag = data[position++];
+        switch (tag) {
+            case NULL:
+                return null;
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case BYTE:
+                return data[position++];
+            case SHORT:
+                return (short) readSignedVarint();
+            case CHAR:
+                return (char) readVarint();
+            case INT:
+                return (int) readSignedVarint();
+            case LONG:
+                return readSignedVarint();
+            case FLOAT:
+                return Float.intBitsToFloat(readFixedInt());
+            case DOUBLE:
+                return Double.longBitsToDouble(readFixedLong());
+            case STRING:
+                return strings[readVarint()];
+            case DECIMAL:
+                return new BigDecimal(strings[readVarint()]);
+            case ENUM:
+                final Class<?> constantType = type().type();
+                return enumConstant(constantType, strings[readVarint()]);
+            case REF:
+                return instances.get(readVarint());
+            case EXTERNAL:
+                return externals[readVarint()];
+            default:
+                throw new IllegalStateException("Unknown value tag " + tag + " at " + (position - 1));
+        }
+    }
+
+    private Object readPrimitiveArray(final Class<?> componentType) {
+        final int length = readVarint();
+        if (componentType == byte.class) {
+            final byte[] result = new byte[length];
+            System.arraycopy(data, position, result, 0, length);
+            position += length;
+            return result;
+        }
+
+        final Object result = Array.newInstance(componentType, length);
+        for (int i = 0; i < length; ++i) {
+            if (componentType == int.class) {
+                ((int[]) result)[i] = (int) readSignedVarint();
+            } else if (componentType == long.class) {
+                ((long[]) result)[i] = readSignedVarint();
+            } else if (componentType == double.class) {
+                ((double[]) result)[i] =
+                    Double.longBitsToDouble(readFixedLong());
+            } else if (componentType == float.class) {
+                ((float[]) result)[i] = Float.intBitsToFloat(readFixedInt());
+            } else if (componentType == short.class) {
+                ((short[]) result)[i] = (short) readSignedVarint();
+            } else if (componentType == char.class) {
+                ((char[]) result)[i] = (char) readVarint();
+            } else {
+                ((boolean[]) result)[i] = data[position++] != 0;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the public static method named by the qualified name at string index {@code index}, taking the
+     * number of arguments read next
+     */
+    private Method factory(final int index) throws ReflectiveOperationException {
+        final int arguments = readVarint();
+        final Method cached = factories.get(index);
+        if (cached != null) {
+            return cached;
+        }
+
+        final String name = strings[index];
+        final int dot = name.lastIndexOf('.');
+        final String methodName = name.substring(dot + 1);
+        for (final Method method : Class.forName(name.substring(0, dot), false, loader).getMethods()) {
+            if (method.getName().equals(methodName) &&
+                method.getParameterCount() == arguments &&
+                Modifier.isStatic(method.getModifiers())) {
+                factories.put(index, method);
+                return method;
+            }
+        }
+        throw new NoSuchMethodException(name + " taking " + arguments + " arguments");
+    }
+
+    private TypeEntry type() {
+        return types[readVarint()];
+    }
+
+    private Object instance() {
+        return instances.get(readVarint());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Collection<Object> collection(final Object o) {
+        return (Collection<Object>) o;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<Object, Object> map(final Object o) {
+        return (Map<Object, Object>) o;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Class<Enum> enumType(final Class<?> type) {
+        return (Class<Enum>) type;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object newEnumSet(final Class<Enum> elementType) {
+        return EnumSet.noneOf(elementType);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object newEnumMap(final Class<Enum> keyType) {
+        return new EnumMap(keyType);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object enumConstant(final Class<?> type, final String name) {
+        return Enum.valueOf((Class<Enum>) type, name);
+    }
+
+    private int readFixedInt() {
+        final int result =
+            (data[position] & 0xff) << 24 |
+                (data[position + 1] & 0xff) << 16 |
+                (data[position + 2] & 0xff) << 8 |
+                data[position + 3] & 0xff;
+        position += 4;
+        return result;
+    }
+
+    private long readFixedLong() {
+        return (long) readFixedInt() << 32 | readFixedInt() & 0xffffffffL;
+    }
+
+    private int readVarint() {
+        return (int) readUnsignedVarint();
+    }
+
+    private long readSignedVarint() {
+        final long zigzag = readUnsignedVarint();
+        return zigzag >>> 1 ^ -(zigzag & 1);
+    }
+
+    private long readUnsignedVarint() {
+        long result = 0;
+        for (int shift = 0; ; shift += 7) {
+            final byte b = data[position++];
+            result |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+    }
+
+    /**
+     * A class referred to by the data, resolved on first use
+     */
+    private final class TypeEntry {
+        private final String name;
+        private final String[] setterNames;
+        private final String[] parameterTypes;
+
+        private Class<?> type;
+        private Constructor<?> constructor;
+        private final Method[] setters;
+
+        TypeEntry(final String name, final String[] setterNames, final String[] parameterTypes) {
+            this.name = name;
+            this.setterNames = setterNames;
+            this.parameterTypes = parameterTypes;
+            this.setters = new Method[setterNames.length];
+        }
+
+        Class<?> type() throws ClassNotFoundException {
+            if (type == null) {
+                type = resolve(name);
+            }
+            return type;
+        }
+
+        Constructor<?> constructor() throws ReflectiveOperationException {
+            if (constructor == null) {
+                constructor = type().getDeclaredConstructor();
+                setAccessible(constructor);
+            }
+            return constructor;
+        }
+
+        Method setter(final int index) throws ReflectiveOperationException {
+            if (setters[index] == null) {
+                final Method setter = type().getMethod(setterNames[index], resolve(parameterTypes[index]));
+                setAccessible(setter);
+                setters[index] = setter;
+            }
+            return setters[index];
+        }
+
+        private Class<?> resolve(final String typeName) throws ClassNotFoundException {
+            final Class<?> primitive = PRIMITIVE_TYPES.get(typeName);
+            return primitive != null ? primitive : Class.forName(typeName, false, loader);
+        }
+    }
+
+    private static void setAccessible(final AccessibleObject member) {
+        try {
+            member.setAccessible(true);
+        } catch (final RuntimeException e) {
+            // Not permitted (eg module encapsulation) - public members are accessible regardless
+        }
+    }
+}
@@ -0,0 +1,716 @@
+package au.leighperry.jdkext.codegen;
+
+import java.math.BigDecimal;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static au.leighperry.jdkext.codegen.BinarySnapshotReader.ADD;
+import static au.leighperry.jdkext.codegen.BinarySnapshotReader.BYTE;
+import static au.leighperry.jdkext.codegen.BinarySnapshotReader.CHAR;
+import static au.leighperry.jdkext.codegen.BinarySnapshotReader.DECIMAL;
+import static au.leighperry.jdkext.codegen.BinarySnapshotReader.DOUBLE;
+import static au.leighperry.jdkext.codegen.BinarySnapshotReader.END;
+import static au.leighperry.jdkext.codegen.BinarySnapshotReader.ENUM;
+import static au.leighperry.jdkext.codegen.BinarySnapshotReader.EXTERNAL;
+import static au.leighperry.jdkext.codegen.BinarySnapshotReader.FALSE;
+import static au.leighperry.jdkext.codegen.BinarySnapshotReader.FLOAT;
+import static au.leighperry.jdkext.codegen.BinarySnapshotReader.INT;
+import static au.leighperry.jdkext.codegen.BinarySnapshotReader.LONG;
+import static au.leighperry.jdkext.codegen.BinarySnapshotReader.MAGIC;
+import static au.leighperry.jdkext.codegen.BinarySnapshotReader.NEW_ARRAY;
+import static au.leighperry.jdkext.codegen.BinarySnapshotReader.NEW_ENUM_MAP;
+import static au.leighperry.jdkext.codegen.BinarySnapshotReader.NEW_ENUM_SET;
+import static au.leighperry.jdkext.codegen.BinarySnapshotReader.NEW_OBJECT;
+import static au.leighperry.jdkext.codegen.BinarySnapshotReader.NEW_PRIMITIVE_ARRAY;
+import static au.leighperry.jdkext.codegen.BinarySnapshotReader.NEW_WRAPPER;
+import static au.leighperry.jdkext.codegen.BinarySnapshotReader.NULL;
+import static au.leighperry.jdkext.codegen.BinarySnapshotReader.PUT;
+import static au.leighperry.jdkext.codegen.BinarySnapshotReader.REF;
+import static au.leighperry.jdkext.codegen.BinarySnapshotReader.SET;
+import static au.leighperry.jdkext.codegen.BinarySnapshotReader.SHORT;
+import static au.leighperry.jdkext.codegen.BinarySnapshotReader.STORE;
+import static au.leighperry.jdkext.codegen.BinarySnapshotReader.STRING;
+import static au.leighperry.jdkext.codegen.BinarySnapshotReader.TRUE;
+
+/**
+ * Writes an object graph in the format read by {@link BinarySnapshotReader}.
+ * <p>
+ * The graph is walked as {@link CodeGenerator} walks it, from an explicit stack of frames, and each statement
+ * the generator would write becomes an operation: instances are created when first reached and populated once
+ * the instances they refer to are complete. As in the generated code, an operation referring back to an
+ * instance still being populated is written in place, unless it would hash the instance (adding it to a set,
+ * or putting it as a key), when it is deferred until that instance is complete.
+ * <p>
+ * Values with a built-in wrapping emitter (eg {@code Optional} and unmodifiable collections) are instances too:
+ * their contents are written as any other instance, and the wrapper is created from them by its factory
+ * method. Values generated by any other {@link TypeEmitter} are written as source by the generator, as
+ * externals supplied to the reader by the loader.
+ */
+final class BinarySnapshotWriter {
+    private static final Class<?> ARRAYS_AS_LIST = Arrays.asList().getClass();
+
+    private final CodeGenerator generator;
+    private final EmitterRegistry emitters;
+    private final boolean beanCompilation;
+
+    // Operations, and the operation being written
+    private final Output out = new Output();
+    private final Output operation = new Output();
+
+    private final HashMap<String, Integer> strings = new HashMap<>();
+    private final List<String> stringTable = new ArrayList<>();
+    private final HashMap<Class<?>, Integer> types = new HashMap<>();
+    private final List<Class<?>> typeTable = new ArrayList<>();
+
+    // The types populated via their bean properties, whose setters are listed in the type table
+    private final HashMap<Class<?>, ClassMetadata> beanTypes = new HashMap<>();
+
+    // Expressions of the values generated as source, with the index of each immutable one
+    private final List<String> externals = new ArrayList<>();
+    private final HashMap<String, Integer> sharedExternals = new HashMap<>();
+
+    // Creation order of every instance created so far
+    private final IdentityHashMap<Object, Integer> ids = new IdentityHashMap<>();
+
+    // Instances being populated, by nesting depth
+    private final IdentityHashMap<Object, Integer> inProgress = new IdentityHashMap<>();
+
+    // Operations referring to an in-progress instance, written once that instance is complete
+    private final IdentityHashMap<Object, Output> deferred = new IdentityHashMap<>();
+
+    private final ArrayDeque<Frame> stack = new ArrayDeque<>();
+
+    BinarySnapshotWriter(final CodeGenerator generator, final CodeGenOptions options) {
+        this.generator = generator;
+        this.emitters = options.emitters();
+        this.beanCompilation = options.beanCompilation();
+    }
+
+    /**
+     * @return the data for the graph reachable from {@code root}
+     */
+    byte[] write(final Object root) {
+        if (enter(root)) {
+            while (!stack.isEmpty()) {
+                final Frame frame = stack.peek();
+                if (frame.step()) {
+                    stack.pop();
+                    complete(frame.o);
+                }
+            }
+        }
+        out.writeByte(END);
+        writeValue(out, root);
+
+        // Strings of the type table are added to the string table as it is written, so it is written first
+        final Output typeData = new Output();
+        typeData.writeVarint(typeTable.size());
+        for (final Class<?> type : typeTable) {
+            typeData.writeVarint(string(type.getName()));
+            final List<ClassMetadata.Property> properties = propertiesOf(type);
+            typeData.writeVarint(properties.size());
+            for (final ClassMetadata.Property p : properties) {
+                typeData.writeVarint(string(p.setterName()));
+                typeData.writeVarint(string(p.type().getName()));
+            }
+        }
+
+        final Output result = new Output();
+        result.writeFixedInt(MAGIC);
+        result.writeVarint(stringTable.size());
+        for (final String s : stringTable) {
+            result.writeVarint(s.length());
+            for (int i = 0; i < s.length(); ++i) {
+                result.writeVarint(s.charAt(i));
+            }
+        }
+        return result.append(typeData).append(out).toByteArray();
+    }
+
+    /**
+     * @return the expressions of the values generated as source, in the order the data refers to them
+     */
+    List<String> externals() {
+        return externals;
+    }
+
+    /**
+     * Write the creation of {@code o}, if it is an instance not yet created
+     *
+     * @return whether a frame was pushed to populate it
+     */
+    private boolean enter(final Object o) {
+        if (o == null || ids.containsKey(o)) {
+            return false;
+        }
+
+        final Dispatch dispatch = emitters.dispatch(o.getClass());
+        final Frame frame;
+        switch (dispatch.kind) {
+            case SIMPLE:
+            case ENUM:
+                return false;
+
+            case EMITTER:
+                return isWrapping(dispatch) && enterWrapping(o);
+
+            case ARRAY:
+                final Class<?> componentType = o.getClass().getComponentType();
+                if (componentType.isPrimitive()) {
+                    create(o, NEW_PRIMITIVE_ARRAY, componentType);
+                    writePrimitiveArray(o);
+                    return false;
+                }
+                create(o, NEW_ARRAY, componentType);
+                out.writeVarint(((Object[]) o).length);
+                frame = new ArrayFrame((Object[]) o);
+                break;
+
+            case LIST:
+            case SET:
+                create(o, NEW_OBJECT, o.getClass() == ARRAYS_AS_LIST ? ArrayList.class : o.getClass());
+                frame = new CollectionFrame((Collection<?>) o);
+                break;
+
+            case ENUM_SET:
+                create(o, NEW_ENUM_SET, CodeGenerator.enumSetElementType((EnumSet<?>) o));
+                frame = new CollectionFrame((Collection<?>) o);
+                break;
+
+            case MAP:
+                create(o, NEW_OBJECT, o.getClass());
+                frame = new MapFrame((Map<?, ?>) o);
+                break;
+
+            case ENUM_MAP:
+                create(o, NEW_ENUM_MAP, CodeGenerator.enumMapKeyType((EnumMap<?, ?>) o));
+                frame = new MapFrame((Map<?, ?>) o);
+                break;
+
+            default:
+                create(o, NEW_OBJECT, o.getClass());
+                beanTypes.put(o.getClass(), dispatch.metadata);
+                frame = new BeanFrame(o, dispatch.metadata);
+                break;
+        }
+
+        inProgress.put(o, inProgress.size());
+        stack.push(frame);
+        return true;
+    }
+
+    /**
+     * Write the creation of {@code o}, which has a wrapping emitter, and of the values it wraps
+     *
+     * @return whether a frame was pushed to populate its contents
+     */
+    private boolean enterWrapping(final Object o) {
+        // Values wrapped directly by one another, outermost first, with the contents of each
+        final List<Object> wrappers = new ArrayList<>();
+        final List<Object> contents = new ArrayList<>();
+        Object value = o;
+        while (true) {
+            final Object wrapped = wrapping(value).contents(value);
+            wrappers.add(value);
+            contents.add(wrapped);
+            if (wrapped == null || ids.containsKey(wrapped) || !isWrapping(emitters.dispatch(wrapped.getClass()))) {
+                break;
+            }
+            value = wrapped;
+        }
+
+        // In progress until the innermost contents are complete, as an operation hashing them must wait
+        final WrapperFrame frame = new WrapperFrame(wrappers);
+        for (final Object wrapper : wrappers) {
+            inProgress.put(wrapper, inProgress.size());
+        }
+        stack.push(frame);
+        final Object innermost = contents.get(contents.size() - 1);
+        final boolean pushed = innermost != null && enter(innermost);
+
+        for (int i = wrappers.size() - 1; i >= 0; --i) {
+            final Object wrapper = wrappers.get(i);
+            final Object wrapped = contents.get(i);
+            ids.put(wrapper, ids.size());
+            out.writeByte(NEW_WRAPPER);
+            if (wrapped == null) {
+                out.writeVarint(string(wrapping(wrapper).emptyFactory(wrapper)));
+                out.writeVarint(0);
+            } else {
+                out.writeVarint(string(wrapping(wrapper).wrapFactory(wrapper)));
+                out.writeVarint(1);
+                writeValue(out, wrapped);
+            }
+        }
+
+        if (!pushed) {
+            stack.pop();
+            frame.completeInner();
+            complete(o);
+        }
+        return pushed;
+    }
+
+    private static boolean isWrapping(final Dispatch dispatch) {
+        return dispatch.emitter instanceof BuiltInEmitters.Wrapping;
+    }
+
+    private BuiltInEmitters.Wrapping wrapping(final Object value) {
+        return (BuiltInEmitters.Wrapping) emitters.dispatch(value.getClass()).emitter;
+    }
+
+    private void create(final Object o, final int operation, final Class<?> type) {
+        ids.put(o, ids.size());
+        out.writeByte(operation);
+        out.writeVarint(type(type));
+    }
+
+    private void complete(final Object o) {
+        inProgress.remove(o);
+        final Output operations = deferred.remove(o);
+        if (operations != null) {
+            out.append(operations);
+        }
+    }
+
+    private void writePrimitiveArray(final Object array) {
+        if (array instanceof byte[]) {
+            out.writeVarint(((byte[]) array).length);
+            out.writeBytes((byte[]) array);
+        } else if (array instanceof int[]) {
+            out.writeVarint(((int[]) array).length);
+            for (final int i : (int[]) array) {
+                out.writeSignedVarint(i);
+            }
+        } else if (array instanceof long[]) {
+            out.writeVarint(((long[]) array).length);
+            for (final long l : (long[]) array) {
+                out.writeSignedVarint(l);
+            }
+        } else if (array instanceof double[]) {
+            out.writeVarint(((double[]) array).length);
+            for (final double d : (double[]) array) {
+                out.writeFixedLong(Double.doubleToRawLongBits(d));
+            }
+        } else if (array instanceof float[]) {
+            out.writeVarint(((float[]) array).length);
+            for (final float f : (float[]) array) {
+                out.writeFixedInt(Float.floatToRawIntBits(f));
+            }
+        } else if (array instanceof short[]) {
+            out.writeVarint(((short[]) array).length);
+            for (final short s : (short[]) array) {
+                out.writeSignedVarint(s);
+            }
+        } else if (array instanceof char[]) {
+            out.writeVarint(((char[]) array).length);
+            for (final char c : (char[]) array) {
+                out.writeVarint(c);
+            }
+        } else {
+            out.writeVarint(((boolean[]) array).length);
+            for (final boolean b : (boolean[]) array) {
+                out.writeByte(b ? 1 : 0);
+            }
+        }
+    }
+
+    /**
+     * Write an operation populating {@code target} with {@code values}, deferring it if it would hash an
+     * in-progress instance: the element added to a collection other than a list, or the key put in a map
+     *
+     * @param index the property or element index, or -1 for none
+     */
+    private void writeOperation(final int code, final Object target, final int index, final Object... values) {
+        operation.reset();
+        operation.writeByte(code);
+        operation.writeVarint(ids.get(target));
+        if (code == SET) {
+            operation.writeVarint(type(target.getClass()));
+        }
+        if (index >= 0) {
+            operation.writeVarint(index);
+        }
+
+        for (final Object value : values) {
+            writeValue(operation, value);
+        }
+
+        final Object hashed = code == PUT || code == ADD && !(target instanceof List) ? values[0] : null;
+        final Object referenced = hashed != null && inProgress.containsKey(hashed) ? hashed : null;
+        if (referenced == null) {
+            out.append(operation);
+        } else {
+            deferred.computeIfAbsent(referenced, k -> new Output()).append(operation);
+        }
+    }
+
+    private void writeValue(final Output output, final Object value) {
+        if (value == null) {
+            output.writeByte(NULL);
+            return;
+        }
+
+        final Dispatch dispatch = emitters.dispatch(value.getClass());
+        switch (dispatch.kind) {
+            case SIMPLE:
+                writeSimple(output, value);
+                break;
+            case ENUM:
+                output.writeByte(ENUM);
+                output.writeVarint(type(((Enum<?>) value).getDeclaringClass()));
+                output.writeVarint(string(((Enum<?>) value).name()));
+                break;
+            case EMITTER:
+                if (isWrapping(dispatch)) {
+                    output.writeByte(REF);
+                    output.writeVarint(ids.get(value));
+                } else {
+                    output.writeByte(EXTERNAL);
+                    output.writeVarint(external(value, dispatch));
+                }
+                break;
+            default:
+                output.writeByte(REF);
+                output.writeVarint(ids.get(value));
+                break;
+        }
+    }
+
+    private void writeSimple(final Output output, final Object value) {
+        if (value instanceof String) {
+            output.writeByte(STRING);
+            output.writeVarint(string((String) value));
+        } else if (value instanceof Integer) {
+            output.writeByte(INT);
+            output.writeSignedVarint((Integer) value);
+        } else if (value instanceof Long) {
+            output.writeByte(LONG);
+            output.writeSignedVarint((Long) value);
+        } else if (value instanceof Boolean) {
+            output.writeByte((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof Double) {
+            output.writeByte(DOUBLE);
+            output.writeFixedLong(Double.doubleToRawLongBits((Double) value));
+        } else if (value instanceof Float) {
+            output.writeByte(FLOAT);
+            output.writeFixedInt(Float.floatToRawIntBits((Float) value));
+        } else if (value instanceof Character) {
+            output.writeByte(CHAR);
+            output.writeVarint((Character) value);
+        } else if (value instanceof Short) {
+            output.writeByte(SHORT);
+            output.writeSignedVarint((Short) value);
+        } else if (value instanceof Byte) {
+            output.writeByte(BYTE);
+            output.writeByte((Byte) value);
+        } else {
+            output.writeByte(DECIMAL);
+            output.writeVarint(string(((BigDecimal) value).toString()));
+        }
+    }
+
+    private int external(final Object value, final Dispatch dispatch) {
+        final String expression = generator.expression(value);
+        if (!dispatch.immutable) {
+            externals.add(expression);
+            return externals.size() - 1;
+        }
+        return sharedExternals.computeIfAbsent(
+            expression,
+            e -> {
+                externals.add(e);
+                return externals.size() - 1;
+            }
+        );
+    }
+
+    private int string(final String s) {
+        return strings.computeIfAbsent(
+            s,
+            k -> {
+                stringTable.add(k);
+                return stringTable.size() - 1;
+            }
+        );
+    }
+
+    private int type(final Class<?> type) {
+        return types.computeIfAbsent(
+            type,
+            k -> {
+                typeTable.add(k);
+                return typeTable.size() - 1;
+            }
+        );
+    }
+
+    private List<ClassMetadata.Property> propertiesOf(final Class<?> type) {
+        final ClassMetadata metadata = beanTypes.get(type);
+        return metadata == null ? Collections.<ClassMetadata.Property>emptyList() : metadata.properties();
+    }
+
+    /**
+     * The population of an instance, advanced a step at a time as per {@link CodeGenerator}
+     */
+    private abstract static class Frame {
+        final Object o;
+
+        // Whether the frame is waiting on the completion of a pushed frame
+        boolean waiting;
+
+        Frame(final Object o) {
+            this.o = o;
+        }
+
+        /**
+         * @return whether the instance is complete
+         */
+        abstract boolean step();
+    }
+
+    private final class BeanFrame extends Frame {
+        private final List<ClassMetadata.Property> properties;
+        private final CompiledBean compiled;
+        private int index;
+        private Object value;
+
+        BeanFrame(final Object bean, final ClassMetadata metadata) {
+            super(bean);
+            this.properties = metadata.properties();
+            this.compiled = beanCompilation ? metadata.compiledBean() : null;
+        }
+
+        @Override
+        boolean step() {
+            if (waiting) {
+                waiting = false;
+                writeOperation(SET, o, index - 1, value);
+            }
+
+            while (index < properties.size()) {
+                value = compiled != null ? compiled.slot(index).read(o) : properties.get(index).read(o);
+                ++index;
+                if (enter(value)) {
+                    waiting = true;
+                    return false;
+                }
+                writeOperation(SET, o, index - 1, value);
+            }
+            return true;
+        }
+    }
+
+    private final class CollectionFrame extends Frame {
+        private final Iterator<?> items;
+        private Object item;
+
+        CollectionFrame(final Collection<?> collection) {
+            super(collection);
+            this.items = collection.iterator();
+        }
+
+        @Override
+        boolean step() {
+            if (waiting) {
+                waiting = false;
+                writeOperation(ADD, o, -1, item);
+            }
+
+            while (items.hasNext()) {
+                item = items.next();
+                if (enter(item)) {
+                    waiting = true;
+                    return false;
+                }
+                writeOperation(ADD, o, -1, item);
+            }
+            return true;
+        }
+    }
+
+    private final class MapFrame extends Frame {
+        private final Iterator<? extends Map.Entry<?, ?>> entries;
+        private Map.Entry<?, ?> entry;
+        private boolean awaitingKey;
+
+        MapFrame(final Map<?, ?> map) {
+            super(map);
+            this.entries = map.entrySet().iterator();
+        }
+
+        @Override
+        boolean step() {
+            if (waiting) {
+                waiting = false;
+                if (awaitingKey) {
+                    if (keyEntered()) {
+                        return false;
+                    }
+                } else {
+                    writeOperation(PUT, o, -1, entry.getKey(), entry.getValue());
+                }
+            }
+
+            while (entries.hasNext()) {
+                entry = entries.next();
+                awaitingKey = true;
+                if (enter(entry.getKey())) {
+                    waiting = true;
+                    return false;
+                }
+                if (keyEntered()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return whether a frame was pushed for the value
+         */
+        private boolean keyEntered() {
+            awaitingKey = false;
+            if (enter(entry.getValue())) {
+                waiting = true;
+                return true;
+            }
+            writeOperation(PUT, o, -1, entry.getKey(), entry.getValue());
+            return false;
+        }
+    }
+
+    /**
+     * Waits for the contents of values wrapped directly by one another, outermost first
+     */
+    private final class WrapperFrame extends Frame {
+        private final List<Object> wrappers;
+
+        WrapperFrame(final List<Object> wrappers) {
+            super(wrappers.get(0));
+            this.wrappers = wrappers;
+        }
+
+        @Override
+        boolean step() {
+            // Only stepped once the contents are complete
+            completeInner();
+            return true;
+        }
+
+        /**
+         * Complete the wrapped values, leaving the outermost to be completed as the frame's instance
+         */
+        void completeInner() {
+            for (int i = wrappers.size() - 1; i > 0; --i) {
+                complete(wrappers.get(i));
+            }
+        }
+    }
+
+    private final class ArrayFrame extends Frame {
+        private final Object[] array;
+        private int index;
+
+        ArrayFrame(final Object[] array) {
+            super(array);
+            this.array = array;
+        }
+
+        @Override
+        boolean step() {
+            if (waiting) {
+                waiting = false;
+                writeOperation(STORE, o, index - 1, array[index - 1]);
+            }
+
+            while (index < array.length) {
+                final Object element = array[index++];
+                if (element != null) {
+                    if (enter(element)) {
+                        waiting = true;
+                        return false;
+                    }
+                    writeOperation(STORE, o, index - 1, element);
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A growable byte buffer with the encodings of the format
+     */
+    private static final class Output {
+        private byte[] bytes = new byte[256];
+        private int length;
+
+        void reset() {
+            length = 0;
+        }
+
+        void writeByte(final int b) {
+            ensure(1);
+            bytes[length++] = (byte) b;
+        }
+
+        void writeBytes(final byte[] b) {
+            ensure(b.length);
+            System.arraycopy(b, 0, bytes, length, b.length);
+            length += b.length;
+        }
+
+        void writeFixedInt(final int i) {
+            ensure(4);
+            bytes[length++] = (byte) (i >>> 24);
+            bytes[length++] = (byte) (i >>> 16);
+            bytes[length++] = (byte) (i >>> 8);
+            bytes[length++] = (byte) i;
+        }
+
+        void writeFixedLong(final long l) {
+            writeFixedInt((int) (l >>> 32));
+            writeFixedInt((int) l);
+        }
+
+        void writeVarint(long value) {
+            ensure(10);
+            while ((value & ~0x7fL) != 0) {
+                bytes[length++] = (byte) (value & 0x7f | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte) value;
+        }
+
+        void writeSignedVarint(final long value) {
+            writeVarint(value << 1 ^ value >> 63);
+        }
+
+        Output append(final Output other) {
+            ensure(other.length);
+            System.arraycopy(other.bytes, 0, bytes, length, other.length);
+            length += other.length;
+            return this;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, length);
+        }
+
+        private void ensure(final int n) {
+            if (length + n > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + n));
+            }
+        }
+    }
+}
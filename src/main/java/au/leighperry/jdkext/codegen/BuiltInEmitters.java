@@ -0,0 +1,285 @@
+package au.leighperry.jdkext.codegen;
+
+import java.math.BigInteger;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.MonthDay;
+import java.time.OffsetDateTime;
+import java.time.OffsetTime;
+import java.time.Period;
+import java.time.Year;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalDouble;
+import java.util.OptionalInt;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.function.Function;
+
+/**
+ * Emitters for common JDK value types, which have no bean properties to generate from.
+ */
+final class BuiltInEmitters {
+    private static final Map<Class<?>, TypeEmitter> EMITTERS = new HashMap<>();
+
+    // Types whose emitted expressions depend only on the value, ie all but Optional
+    private static final Set<Class<?>> IMMUTABLE_TYPES = new HashSet<>();
+
+    static {
+        EMITTERS.put(BigInteger.class, (value, context) -> "new java.math.BigInteger(\"" + value + "\")");
+        EMITTERS.put(UUID.class, parse("java.util.UUID.fromString"));
+
+        EMITTERS.put(Duration.class, parse("java.time.Duration.parse"));
+        EMITTERS.put(Instant.class, parse("java.time.Instant.parse"));
+        EMITTERS.put(LocalDate.class, parse("java.time.LocalDate.parse"));
+        EMITTERS.put(LocalDateTime.class, parse("java.time.LocalDateTime.parse"));
+        EMITTERS.put(LocalTime.class, parse("java.time.LocalTime.parse"));
+        EMITTERS.put(MonthDay.class, parse("java.time.MonthDay.parse"));
+        EMITTERS.put(OffsetDateTime.class, parse("java.time.OffsetDateTime.parse"));
+        EMITTERS.put(OffsetTime.class, parse("java.time.OffsetTime.parse"));
+        EMITTERS.put(Period.class, parse("java.time.Period.parse"));
+        EMITTERS.put(Year.class, (value, context) -> "java.time.Year.of(" + ((Year) value).getValue() + ')');
+        EMITTERS.put(YearMonth.class, parse("java.time.YearMonth.parse"));
+        EMITTERS.put(ZonedDateTime.class, parse("java.time.ZonedDateTime.parse"));
+
+        EMITTERS.put(
+            Optional.class,
+            new Wrapping(
+                value -> ((Optional<?>) value).orElse(null),
+                value -> "java.util.Optional.empty",
+                value -> "java.util.Optional.of"
+            )
+        );
+        EMITTERS.put(
+            OptionalInt.class,
+            (value, context) -> {
+                final OptionalInt optional = (OptionalInt) value;
+                return optional.isPresent()
+                    ? "java.util.OptionalInt.of(" + optional.getAsInt() + ')'
+                    : "java.util.OptionalInt.empty()";
+            }
+        );
+        EMITTERS.put(
+            OptionalLong.class,
+            (value, context) -> {
+                final OptionalLong optional = (OptionalLong) value;
+                return optional.isPresent()
+                    ? "java.util.OptionalLong.of(" + optional.getAsLong() + "L)"
+                    : "java.util.OptionalLong.empty()";
+            }
+        );
+        EMITTERS.put(
+            OptionalDouble.class,
+            (value, context) -> {
+                final OptionalDouble optional = (OptionalDouble) value;
+                return optional.isPresent()
+                    ? "java.util.OptionalDouble.of(" + Literals.appendDouble(new StringBuilder(), optional.getAsDouble()) + ')'
+                    : "java.util.OptionalDouble.empty()";
+            }
+        );
+
+        IMMUTABLE_TYPES.addAll(EMITTERS.keySet());
+        IMMUTABLE_TYPES.remove(Optional.class);
+    }
+
+    private BuiltInEmitters() {
+    }
+
+    /**
+     * @return the built-in emitter for {@code type}, or null
+     */
+    static TypeEmitter forType(final Class<?> type) {
+        final TypeEmitter emitter = EMITTERS.get(type);
+        if (emitter != null) {
+            return emitter;
+        }
+
+        if (ZoneOffset.class.isAssignableFrom(type)) {
+            // As ZoneId.of is typed as a ZoneId, even for offsets
+            return (value, context) -> "java.time.ZoneOffset.of(\"" + ((ZoneOffset) value).getId() + "\")";
+        }
+        if (ZoneId.class.isAssignableFrom(type)) {
+            // Regions
+            return (value, context) -> "java.time.ZoneId.of(\"" + ((ZoneId) value).getId() + "\")";
+        }
+
+        if (isUnmodifiable(type.getName())) {
+            return unmodifiableEmitter(type);
+        }
+
+        return null;
+    }
+
+    /**
+     * @return whether instances of {@code type} are immutable values, for a type with a built-in emitter
+     */
+    static boolean isImmutable(final Class<?> type) {
+        return IMMUTABLE_TYPES.contains(type) || ZoneId.class.isAssignableFrom(type);
+    }
+
+    private static TypeEmitter parse(final String factory) {
+        return (value, context) -> factory + "(\"" + value + "\")";
+    }
+
+    /**
+     * Whether the class is one of the JDK's unmodifiable collection implementations, none of which can be
+     * instantiated directly
+     */
+    private static boolean isUnmodifiable(final String className) {
+        return className.startsWith("java.util.ImmutableCollections$") ||
+            className.startsWith("java.util.Collections$Unmodifiable") ||
+            className.startsWith("java.util.Collections$Empty") ||
+            className.startsWith("java.util.Collections$Singleton");
+    }
+
+    /**
+     * Generate a modifiable copy of the collection, then wrap it
+     */
+    private static TypeEmitter unmodifiableEmitter(final Class<?> type) {
+        if (List.class.isAssignableFrom(type)) {
+            return unmodifiable(value -> "List", value -> new ArrayList<>((List<?>) value));
+        }
+        if (SortedSet.class.isAssignableFrom(type)) {
+            return unmodifiable(
+                value -> isNaturallyOrdered(value) ? "SortedSet" : "Set",
+                value -> isNaturallyOrdered(value)
+                    ? new TreeSet<>((SortedSet<?>) value)
+                    : new LinkedHashSet<>((SortedSet<?>) value)
+            );
+        }
+        if (Set.class.isAssignableFrom(type)) {
+            return unmodifiable(value -> "Set", value -> new LinkedHashSet<>((Set<?>) value));
+        }
+        if (Collection.class.isAssignableFrom(type)) {
+            return new Wrapping(
+                value -> ((Collection<?>) value).isEmpty() ? null : new ArrayList<>((Collection<?>) value),
+                value -> "java.util.Collections.emptyList",
+                value -> "java.util.Collections.unmodifiableCollection"
+            );
+        }
+        if (SortedMap.class.isAssignableFrom(type)) {
+            return unmodifiable(
+                value -> isNaturallyOrdered(value) ? "SortedMap" : "Map",
+                value -> isNaturallyOrdered(value)
+                    ? new TreeMap<>((SortedMap<?, ?>) value)
+                    : new LinkedHashMap<>((SortedMap<?, ?>) value)
+            );
+        }
+        if (Map.class.isAssignableFrom(type)) {
+            return unmodifiable(value -> "Map", value -> new LinkedHashMap<>((Map<?, ?>) value));
+        }
+        return null;
+    }
+
+    /**
+     * @param kind the kind of collection, naming the {@code Collections} factories, eg {@code "List"}
+     * @param copy the modifiable copy of a non-empty collection or map
+     */
+    private static Wrapping unmodifiable(final Function<Object, String> kind, final Function<Object, Object> copy) {
+        return new Wrapping(
+            value -> isEmpty(value) ? null : copy.apply(value),
+            value -> "java.util.Collections.empty" + kind.apply(value),
+            value -> "java.util.Collections.unmodifiable" + kind.apply(value)
+        );
+    }
+
+    private static boolean isEmpty(final Object value) {
+        return value instanceof Map ? ((Map<?, ?>) value).isEmpty() : ((Collection<?>) value).isEmpty();
+    }
+
+    /**
+     * Whether a sorted set or map has no comparator, so a copy can be sorted too
+     */
+    private static boolean isNaturallyOrdered(final Object value) {
+        return value instanceof SortedMap
+            ? ((SortedMap<?, ?>) value).comparator() == null
+            : ((SortedSet<?>) value).comparator() == null;
+    }
+
+    /**
+     * An emitter of a value wrapping at most one other, eg an {@code Optional}. The generator generates the
+     * wrapped value from its own stack of frames, rather than through {@link EmitContext#expression(Object)},
+     * so chains of wrapped values of any length can be generated without a deep call stack. A value is created
+     * by a public static factory method, taking no arguments if it is empty, otherwise its contents, so it can
+     * also be created reflectively, as by {@link BinarySnapshotReader}.
+     */
+    static final class Wrapping implements TypeEmitter {
+        private final Function<Object, Object> contents;
+        private final Function<Object, String> emptyFactory;
+        private final Function<Object, String> wrapFactory;
+
+        /**
+         * @param emptyFactory the qualified name of the factory method of an empty value
+         * @param wrapFactory  the qualified name of the factory method of a value wrapping its contents
+         */
+        Wrapping(
+            final Function<Object, Object> contents,
+            final Function<Object, String> emptyFactory,
+            final Function<Object, String> wrapFactory
+        ) {
+            this.contents = contents;
+            this.emptyFactory = emptyFactory;
+            this.wrapFactory = wrapFactory;
+        }
+
+        /**
+         * @return the value wrapped by {@code value}, or null if it is empty
+         */
+        Object contents(final Object value) {
+            return contents.apply(value);
+        }
+
+        /**
+         * @return the qualified name of the factory method creating {@code value}, which is empty
+         */
+        String emptyFactory(final Object value) {
+            return emptyFactory.apply(value);
+        }
+
+        /**
+         * @return the qualified name of the factory method creating {@code value} from its contents
+         */
+        String wrapFactory(final Object value) {
+            return wrapFactory.apply(value);
+        }
+
+        /**
+         * @return the expression for {@code value}, which is empty
+         */
+        String empty(final Object value) {
+            return emptyFactory(value) + "()";
+        }
+
+        /**
+         * @return the expression for {@code value}, given the expression for its contents
+         */
+        String wrap(final Object value, final String contents) {
+            return wrapFactory(value) + '(' + contents + ')';
+        }
+
+        @Override
+        public String emit(final Object value, final EmitContext context) {
+            final Object wrapped = contents(value);
+            return wrapped == null ? empty(value) : wrap(value, context.expression(wrapped));
+        }
+    }
+}
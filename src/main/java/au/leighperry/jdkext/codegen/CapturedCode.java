@@ -0,0 +1,41 @@
+package au.leighperry.jdkext.codegen;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The code generated for an object captured by an {@link AsyncCapture}, as it was when it was captured.
+ */
+public final class CapturedCode {
+    private final List<String> preamble;
+    private final String expression;
+    private final List<Truncation> truncations;
+
+    CapturedCode(final List<String> preamble, final String expression, final List<Truncation> truncations) {
+        this.preamble = Collections.unmodifiableList(preamble);
+        this.expression = expression;
+        this.truncations = truncations;
+    }
+
+    /**
+     * @return the initialisation-code, one statement per line, as per
+     * {@link CodeGen#getPreambleAndExpression(Object)}
+     */
+    public List<String> preamble() {
+        return preamble;
+    }
+
+    /**
+     * @return the expression for the object, which may refer to variables declared in the preamble
+     */
+    public String expression() {
+        return expression;
+    }
+
+    /**
+     * @return what the limits of the options cut short, in output order
+     */
+    public List<Truncation> truncations() {
+        return truncations;
+    }
+}
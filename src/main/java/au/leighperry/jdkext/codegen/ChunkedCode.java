@@ -0,0 +1,68 @@
+package au.leighperry.jdkext.codegen;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Generated code split into compilation units small enough for javac and the JVM's method and class limits.
+ * <p>
+ * The preamble is partitioned across helper methods in a chain of package-private classes, each extending the
+ * previous one so that the variables declared by earlier classes (held as static fields) are in scope. The
+ * final unit is the public root class, whose {@code public static Object create()} runs every helper method
+ * in order and returns the generated object.
+ */
+public final class ChunkedCode {
+    private final List<Unit> units;
+
+    ChunkedCode(final List<Unit> units) {
+        this.units = Collections.unmodifiableList(units);
+    }
+
+    /**
+     * @return every compilation unit, in dependency order, the last being the root class
+     */
+    public List<Unit> units() {
+        return units;
+    }
+
+    /**
+     * @return the root class unit
+     */
+    public Unit root() {
+        return units.get(units.size() - 1);
+    }
+
+    /**
+     * A single generated class.
+     */
+    public static final class Unit {
+        private final String packageName;
+        private final String className;
+        private final String source;
+
+        Unit(final String packageName, final String className, final String source) {
+            this.packageName = packageName;
+            this.className = className;
+            this.source = source;
+        }
+
+        public String packageName() {
+            return packageName;
+        }
+
+        public String className() {
+            return className;
+        }
+
+        public String qualifiedName() {
+            return packageName.isEmpty() ? className : packageName + '.' + className;
+        }
+
+        /**
+         * @return the source of the whole compilation unit
+         */
+        public String source() {
+            return source;
+        }
+    }
+}
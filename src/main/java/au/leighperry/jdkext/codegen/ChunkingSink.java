@@ -0,0 +1,154 @@
+package au.leighperry.jdkext.codegen;
+
+import java.util.function.Consumer;
+
+/**
+ * Partitions statements into bounded helper methods across a chain of classes, see {@link ChunkedCode}.
+ * <p>
+ * Variables become static fields of the class in which they are first assigned, so they remain visible to
+ * the helper methods of that class and of every later class in the chain.
+ */
+final class ChunkingSink extends CodeSink {
+    private static final String IMPORTS =
+        "import java.util.List;\n" +
+            "import java.util.Map;\n" +
+            "import java.util.Set;\n";
+
+    private final String packageName;
+    private final String className;
+    private final int methodSize;
+    private final int methodsPerClass;
+    private final Consumer<ChunkedCode.Unit> units;
+
+    private int classCount;
+    private final StringBuilder fields = new StringBuilder();
+    private final StringBuilder methods = new StringBuilder();
+    private final StringBuilder body = new StringBuilder();
+    private int methodCount;
+
+    ChunkingSink(
+        final String packageName,
+        final String className,
+        final CodeGenOptions options,
+        final Consumer<ChunkedCode.Unit> units
+    ) {
+        super(new StringBuilder(128));
+        this.packageName = packageName;
+        this.className = className;
+        this.methodSize = options.chunkMethodSize();
+        this.methodsPerClass = options.chunkMethodsPerClass();
+        this.units = units;
+    }
+
+    @Override
+    CodeSink beginDeclaration(final String type, final String name) {
+        fields.append(INDENT).append("static ").append(type).append(' ').append(name).append(";\n");
+        buffer.append(INDENT).append(name).append(" = ");
+        return this;
+    }
+
+    @Override
+    CodeSink beginArrayInitialiser(final String type) {
+        // An assignment to the field, where a bare initialiser is not allowed
+        buffer.append("new ").append(type).append(' ');
+        return this;
+    }
+
+    @Override
+    int maxStatementLength() {
+        // A statement no longer than a method lands in a method of its own at worst
+        return methodSize;
+    }
+
+    @Override
+    void statementEnded() {
+        if (body.length() > 0 && body.length() + buffer.length() > methodSize) {
+            endMethod();
+        }
+        body.append(INDENT).append(buffer).append('\n');
+        buffer.setLength(0);
+    }
+
+    /**
+     * Complete the remaining units, ending with the root class returning {@code rootExpression}
+     */
+    void finish(final String rootExpression) {
+        endClass();
+
+        final StringBuilder source = header();
+        source.append("public class ").append(className);
+        if (classCount > 0) {
+            source.append(" extends ").append(chunkClassName(classCount - 1));
+        }
+        source.append(" {\n")
+            .append(INDENT).append("public static Object create() {\n");
+        for (int i = 0; i < classCount; ++i) {
+            source.append(INDENT).append(INDENT).append(chunkClassName(i)).append(".init();\n");
+        }
+        source.append(INDENT).append(INDENT).append("return ").append(rootExpression).append(";\n")
+            .append(INDENT).append("}\n")
+            .append("}\n");
+
+        units.accept(new ChunkedCode.Unit(packageName, className, source.toString()));
+    }
+
+    private void endMethod() {
+        if (body.length() == 0) {
+            return;
+        }
+
+        methods.append('\n')
+            .append(INDENT).append("private static void part").append(methodCount).append("() {\n")
+            .append(body)
+            .append(INDENT).append("}\n");
+        body.setLength(0);
+        if (++methodCount == methodsPerClass) {
+            endClass();
+        }
+    }
+
+    private void endClass() {
+        endMethod();
+        if (methodCount == 0) {
+            return;
+        }
+
+        final String chunkClassName = chunkClassName(classCount);
+        final StringBuilder source = header();
+        source.append("class ").append(chunkClassName);
+        if (classCount > 0) {
+            source.append(" extends ").append(chunkClassName(classCount - 1));
+        }
+        source.append(" {\n")
+            .append(fields);
+        if (fields.length() > 0) {
+            source.append('\n');
+        }
+        source.append(INDENT).append("static void init() {\n");
+        for (int i = 0; i < methodCount; ++i) {
+            source.append(INDENT).append(INDENT).append("part").append(i).append("();\n");
+        }
+        source.append(INDENT).append("}\n")
+            .append(methods)
+            .append("}\n");
+
+        units.accept(new ChunkedCode.Unit(packageName, chunkClassName, source.toString()));
+
+        ++classCount;
+        fields.setLength(0);
+        methods.setLength(0);
+        methodCount = 0;
+    }
+
+    private StringBuilder header() {
+        final StringBuilder source = new StringBuilder(methodSize * 2);
+        if (!packageName.isEmpty()) {
+            source.append("package ").append(packageName).append(";\n\n");
+        }
+        return source.append(IMPORTS).append('\n');
+    }
+
+    private String chunkClassName(final int index) {
+        return className + "Chunk" + index;
+    }
+}
@@ -0,0 +1,226 @@
+package au.leighperry.jdkext.codegen;
+
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Per-class information needed by {@link CodeGen}, resolved once per class and cached.
+ * <p>
+ * The cache is a {@link ClassValue}, so entries do not keep classes (or their class loaders) reachable.
+ */
+final class ClassMetadata {
+    private static final ClassValue<ClassMetadata> CACHE =
+        new ClassValue<ClassMetadata>() {
+            @Override
+            protected ClassMetadata computeValue(final Class<?> type) {
+                return new ClassMetadata(type);
+            }
+        };
+
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+    private static final MethodHandle METHOD_INVOKE;
+
+    static {
+        try {
+            METHOD_INVOKE =
+                MethodHandles.lookup()
+                    .findVirtual(Method.class, "invoke", MethodType.methodType(Object.class, Object.class, Object[].class));
+        } catch (final NoSuchMethodException | IllegalAccessException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final Class<?> type;
+    private final String canonicalName;
+    private final String variableStem;
+
+    // Resolved on first use, since most classes seen are simple values or collections
+    private volatile List<Property> properties;
+
+    // Resolved on first use; NOT_COMPILED when the properties cannot be compiled
+    private volatile Object compiledBean;
+
+    private static final Object NOT_COMPILED = new Object();
+
+    // Resolved on first use; NO_FIELD_ACCESS when the class cannot be generated from its fields
+    private volatile Object fieldAccess;
+
+    private static final Object NO_FIELD_ACCESS = new Object();
+
+    private ClassMetadata(final Class<?> type) {
+        this.type = type;
+        this.canonicalName = type.getCanonicalName();
+        this.variableStem =
+            type.isArray() ? capitalise(of(type.getComponentType()).variableStem) + "Array" : type.getSimpleName();
+    }
+
+    static ClassMetadata of(final Class<?> type) {
+        return CACHE.get(type);
+    }
+
+    String canonicalName() {
+        return canonicalName;
+    }
+
+    /**
+     * @return the basis for variable names of instances of the class, eg {@code IntArray} for {@code int[]}
+     */
+    String variableStem() {
+        return variableStem;
+    }
+
+    /**
+     * @return the name of the nearest public class of this class and its superclasses, eg to declare a variable
+     * holding instances
+     */
+    String publicTypeName() {
+        Class<?> publicType = type;
+        while (!Modifier.isPublic(publicType.getModifiers())) {
+            publicType = publicType.getSuperclass();
+        }
+        return publicType == type ? canonicalName : of(publicType).canonicalName;
+    }
+
+    /**
+     * @return the array creation expression for an array of this (array) class, eg {@code new int[3][]}
+     */
+    String arrayCreation(final int length) {
+        Class<?> elementType = type.getComponentType();
+        final StringBuilder dimensions = new StringBuilder().append('[').append(length).append(']');
+        while (elementType.isArray()) {
+            dimensions.append("[]");
+            elementType = elementType.getComponentType();
+        }
+        return "new " + of(elementType).canonicalName + dimensions;
+    }
+
+    /**
+     * @return the read/write bean properties of the class, in {@link Introspector} order
+     */
+    List<Property> properties() {
+        List<Property> result = properties;
+        if (result == null) {
+            result = resolveProperties(type);
+            properties = result;
+        }
+        return result;
+    }
+
+    /**
+     * @return specialised accessors for the bean properties of the class, or null if they cannot be compiled
+     */
+    CompiledBean compiledBean() {
+        Object result = compiledBean;
+        if (result == null) {
+            final CompiledBean compiled = CompiledBean.compile(type, properties());
+            result = compiled != null ? compiled : NOT_COMPILED;
+            compiledBean = result;
+        }
+        return result != NOT_COMPILED ? (CompiledBean) result : null;
+    }
+
+    /**
+     * @return access to the instance fields of the class, or null if it cannot be generated from its fields
+     */
+    FieldAccess fieldAccess() {
+        Object result = fieldAccess;
+        if (result == null) {
+            final FieldAccess access = FieldAccess.resolve(type, this);
+            result = access != null ? access : NO_FIELD_ACCESS;
+            fieldAccess = result;
+        }
+        return result != NO_FIELD_ACCESS ? (FieldAccess) result : null;
+    }
+
+    private static List<Property> resolveProperties(final Class<?> type) {
+        try {
+            final PropertyDescriptor[] descriptors = Introspector.getBeanInfo(type).getPropertyDescriptors();
+
+            final List<Property> result = new ArrayList<>(descriptors.length);
+            for (final PropertyDescriptor descriptor : descriptors) {
+                final Method readMethod = descriptor.getReadMethod();
+                if (descriptor.getWriteMethod() != null && readMethod != null) {
+                    result.add(new Property(descriptor.getName(), descriptor.getPropertyType(), readMethod, getter(readMethod)));
+                }
+            }
+            return Collections.unmodifiableList(result);
+        } catch (final IntrospectionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static MethodHandle getter(final Method readMethod) {
+        try {
+            readMethod.setAccessible(true);
+        } catch (final RuntimeException e) {
+            // Not permitted (eg module encapsulation) - fall through to the access-checked path
+        }
+
+        try {
+            return MethodHandles.lookup().unreflect(readMethod).asType(GETTER_TYPE);
+        } catch (final IllegalAccessException e) {
+            // Preserve plain reflection semantics, access errors surface when the property is read
+            return MethodHandles.insertArguments(METHOD_INVOKE, 0, readMethod)
+                .asCollector(Object[].class, 0)
+                .asType(GETTER_TYPE);
+        }
+    }
+
+    private static String capitalise(final String s) {
+        return s.isEmpty() ? s : s.substring(0, 1).toUpperCase() + s.substring(1);
+    }
+
+    /**
+     * A bean property having both a getter and a setter.
+     */
+    static final class Property {
+        private final String name;
+        private final String setterName;
+        private final Class<?> type;
+        private final Method readMethod;
+        private final MethodHandle getter;
+
+        Property(final String name, final Class<?> type, final Method readMethod, final MethodHandle getter) {
+            this.name = name;
+            this.setterName = "set" + capitalise(name);
+            this.type = type;
+            this.readMethod = readMethod;
+            this.getter = getter;
+        }
+
+        String name() {
+            return name;
+        }
+
+        String setterName() {
+            return setterName;
+        }
+
+        Class<?> type() {
+            return type;
+        }
+
+        Method readMethod() {
+            return readMethod;
+        }
+
+        Object read(final Object source) {
+            try {
+                return getter.invokeExact(source);
+            } catch (final RuntimeException | Error e) {
+                throw e;
+            } catch (final Throwable e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
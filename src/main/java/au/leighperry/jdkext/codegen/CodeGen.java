@@ -1,32 +1,29 @@
 package au.leighperry.jdkext.codegen;
 
 import org.jooq.lambda.Seq;
-import org.jooq.lambda.Unchecked;
 import org.jooq.lambda.tuple.Tuple2;
-import org.jooq.lambda.tuple.Tuple3;
-
-import java.beans.IntrospectionException;
-import java.beans.Introspector;
-import java.beans.PropertyDescriptor;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.math.BigDecimal;
+
+import java.nio.file.Path;
 import java.util.List;
-import java.util.Map;
-import java.util.Objects;
-import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
-import static org.jooq.lambda.Seq.seq;
-import static org.jooq.lambda.tuple.Tuple.tuple;
-
+/**
+ * Static code generation API. Variable numbering is global across all threads, see {@link CodeGenSession}
+ * for independent, reproducible numbering.
+ */
 public class CodeGen {
     private static final AtomicInteger objectId = new AtomicInteger();
+    private static final FixtureCompiler SHARED_COMPILER = new FixtureCompiler();
 
     public static void resetObjectId() {
         objectId.set(0);
     }
 
+    private static CodeGenSession session(final CodeGenOptions options) {
+        return new CodeGenSession(options, objectId::getAndIncrement);
+    }
+
     /**
      * Reflectively write java code to generate an instance of an object
      *
@@ -36,188 +33,178 @@ public class CodeGen {
      * is a stream of instantiation code and expression contains the nested variable.
      */
     public static Tuple2<Seq<String>, String> getPreambleAndExpression(final Object o) {
-        if (o == null) {
-            return tuple(Seq.empty(), null);
-        }
-
-        final Class<?> type = o.getClass();
-        final String typeName = type.getCanonicalName();
-
-        if (type.isEnum()) {
-            // return the object value as the expression
-            final String s = String.format("%s.%s", typeName, o);
-            return tuple(Seq.empty(), s);
-        }
-
-        if (isSimpleType(typeName, o)) {
-            // return the object value as the expression
-            if (Objects.equals(type, Long.class) || typeName.equals("long")) {
-                return tuple(Seq.empty(), String.format("%sL", o));
-            } else if (Objects.equals(type, String.class)) {
-                return tuple(Seq.empty(), String.format("\"%s\"", o));
-            } else if (Objects.equals(type, BigDecimal.class)) {
-                return tuple(Seq.empty(), String.format("new java.math.BigDecimal(\"%s\")", ((BigDecimal) o).toPlainString()));
-            } else {
-                return tuple(Seq.empty(), o.toString());
-            }
-        }
-
-        final String objectVariableName = getObjectVariableName(o);
-
-        if (o instanceof List) {
-            // Avoid private Arrays.asList()
-            final String listTypeName = typeName.equals("java.util.Arrays.ArrayList") ? "java.util.ArrayList" : typeName;
-
-            final String listInstantiation = String.format("    final List %s = new %s();", objectVariableName, listTypeName);
-            return getCollectionPreambleAndExpression((List<?>) o, objectVariableName, listInstantiation);
-        }
-
-        if (o instanceof Set) {
-            final String setInstantiation = String.format("    final Set %s = new %s();", objectVariableName, typeName);
-            return getCollectionPreambleAndExpression((Set<?>) o, objectVariableName, setInstantiation);
-        }
-
-        if (o instanceof Map) {
-            final Map<?, ?> mapObject = (Map<?, ?>) o;
-
-            final String mapKeyInstantiation = String.format("    final Map %s = new %s();", objectVariableName, typeName);
-
-            // Generate the code for each item in the map
-            final Seq<String> mapKeyInitialisation =
-                seq(mapObject)
-                    .flatMap(
-                        entry -> {
-                            final Tuple2<Seq<String>, String> preambleAndExpressionKey = getPreambleAndExpression(entry.v1);
-                            final Tuple2<Seq<String>, String> preambleAndExpressionValue = getPreambleAndExpression(entry.v2);
-
-                            // preamble code for each mapKey item plus adding to the generated mapKey
-                            return seq(preambleAndExpressionKey.v1)
-                                .append(preambleAndExpressionValue.v1)
-                                .append(
-                                    String.format(
-                                        "    %s.put(%s, %s);",
-                                        objectVariableName,
-                                        preambleAndExpressionKey.v2,
-                                        preambleAndExpressionValue.v2
-                                    )
-                                );
-                        }
-                    )
-                    .prepend(mapKeyInstantiation);
-
-            return tuple(mapKeyInitialisation, objectVariableName);
-        }
-
-        // TODO other collections
-
-        // Handle generic object fields via reflection
-        final Seq<String> preamble =
-            getProperties(o)
-                .flatMap(
-                    p -> {
-                        // tuple is (field-name, value, type)
-                        // preamble code for each object field plus setting the value via setter
-                        final String fieldName = p.v1;
-                        final Tuple2<Seq<String>, String> preambleAndExpression = getPreambleAndExpression(p.v2);
-
-                        final String setter =
-                            String.format(
-                                "set%s%s",
-                                fieldName.substring(0, 1).toUpperCase(),
-                                fieldName.substring(1)
-                            );
-
-                        return seq(preambleAndExpression.v1)
-                            .append(String.format("    %s.%s(%s);", objectVariableName, setter, preambleAndExpression.v2));
-                    }
-                )
-                .prepend(String.format("    final %s %s = new %s();", typeName, objectVariableName, typeName));
-
-        return tuple(preamble, objectVariableName);
+        return getPreambleAndExpression(o, CodeGenOptions.DEFAULTS);
+    }
+
+    /**
+     * As per {@link #getPreambleAndExpression(Object)}, with non-default options
+     */
+    public static Tuple2<Seq<String>, String> getPreambleAndExpression(final Object o, final CodeGenOptions options) {
+        return session(options).getPreambleAndExpression(o);
+    }
+
+    /**
+     * Reflectively write java code to generate an instance of an object, streaming the initialisation
+     * code to {@code out} rather than accumulating it.
+     *
+     * @param o   the object of code generation
+     * @param out receives the initialisation-code, one statement per line. A {@link StringBuilder} is
+     *            appended to directly, other targets are written to in large blocks.
+     * @return the expression for the object, as per {@link #getPreambleAndExpression(Object)}
+     * @throws java.io.UncheckedIOException if writing to {@code out} fails
+     */
+    public static String writePreambleAndExpression(final Object o, final Appendable out) {
+        return writePreambleAndExpression(o, out, CodeGenOptions.DEFAULTS);
+    }
+
+    /**
+     * As per {@link #writePreambleAndExpression(Object, Appendable)}, with non-default options
+     */
+    public static String writePreambleAndExpression(
+        final Object o,
+        final Appendable out,
+        final CodeGenOptions options
+    ) {
+        return session(options).writePreambleAndExpression(o, out);
+    }
+
+    /**
+     * Reflectively write java code to generate an instance of an object, partitioned into compilation units
+     * that each stay within the JVM's method and class size limits. Use this for fixtures too large to
+     * compile as a single method.
+     *
+     * @param o           the object of code generation
+     * @param packageName the package of the generated classes, empty for the default package
+     * @param className   the name of the root class, whose {@code create()} method returns the object
+     * @param options     options, including the chunk sizes
+     */
+    public static ChunkedCode getChunkedCode(
+        final Object o,
+        final String packageName,
+        final String className,
+        final CodeGenOptions options
+    ) {
+        return session(options).getChunkedCode(o, packageName, className);
+    }
+
+    /**
+     * Reflectively write java code to generate an instance of an object, and compile and load it in memory,
+     * eg to check that the code generated for an object rebuilds it. Compiled classes are cached in memory by
+     * a compiler shared by these calls, so code for an object equal to one loaded before is not compiled again.
+     *
+     * @return a supplier of new copies of {@code o}
+     */
+    public static Supplier<Object> getSupplier(final Object o) {
+        return getSupplier(o, CodeGenOptions.DEFAULTS, SHARED_COMPILER);
+    }
+
+    /**
+     * As per {@link #getSupplier(Object)}, with non-default options, and a compiler of the caller's, eg one
+     * caching on disk
+     */
+    public static Supplier<Object> getSupplier(
+        final Object o,
+        final CodeGenOptions options,
+        final FixtureCompiler compiler
+    ) {
+        return session(options).getSupplier(o, compiler);
+    }
+
+    /**
+     * Write an object as compact binary data, with a small loader class that rebuilds it. Use this for
+     * fixtures whose generated code would be too large to compile quickly, or at all.
+     *
+     * @param o           the object of code generation
+     * @param packageName the package of the loader class, empty for the default package
+     * @param className   the name of the loader class, whose {@code create()} method returns the object
+     * @param options     options, of which the limits, parallelism, hoisting and collection initialisation
+     *                    apply only to values written as source
+     */
+    public static BinarySnapshot getBinarySnapshot(
+        final Object o,
+        final String packageName,
+        final String className,
+        final CodeGenOptions options
+    ) {
+        return session(options).getBinarySnapshot(o, packageName, className);
     }
 
-    private static Tuple2<Seq<String>, String> getCollectionPreambleAndExpression(
-        final Iterable<?> collection,
-        final String objectVariableName,
-        final String listInstantiation
+    /**
+     * Reflectively write java code to generate an instance of an object, as per
+     * {@link #getChunkedCode(Object, String, String, CodeGenOptions)}, to a source file per unit under
+     * {@code directory}. Each unit is written on a thread of the options' write executor as soon as it is
+     * complete, so the code for a large graph is never held in memory as a whole. Use this for dumps too
+     * large to collect as strings. If generation or a write fails, the files written are deleted.
+     *
+     * @param directory the source root, under which files are written to the directories of the package
+     * @return the files written, in dependency order, the last being that of the root class, whose
+     * {@code create()} method assembles the object from the others. Files left by an earlier generation with
+     * more units are not deleted.
+     */
+    public static List<Path> writeChunkedCode(
+        final Object o,
+        final String packageName,
+        final String className,
+        final Path directory,
+        final CodeGenOptions options
     ) {
-        // Generate the code for each item in the list
-        final Seq<String> listInitialisation =
-            seq(collection)
-                .map(CodeGen::getPreambleAndExpression)
-                .flatMap(
-                    // preamble code for each list item plus adding to the generated list
-                    preambleAndExpression ->
-                        seq(preambleAndExpression.v1)
-                            .append(String.format("    %s.add(%s);", objectVariableName, preambleAndExpression.v2))
-                )
-                .prepend(listInstantiation);
-
-        return tuple(listInitialisation, objectVariableName);
+        return session(options).writeChunkedCode(o, packageName, className, directory);
     }
 
-    private static boolean isSimpleType(final String typeName, final Object value) {
-        switch (typeName) {
-            case "boolean":
-            case "java.lang.Boolean":
-            case "byte":
-            case "java.lang.Byte":
-            case "char":
-            case "java.lang.Character":
-            case "double":
-            case "java.lang.Double":
-            case "float":
-            case "java.lang.Float":
-            case "int":
-            case "java.lang.Integer":
-            case "long":
-            case "java.lang.Long":
-            case "short":
-            case "java.lang.Short":
-            case "java.lang.String":
-            case "java.math.BigDecimal":
-                return true;
-            default:
-                return false;
-        }
+    /**
+     * @return the fingerprint of the graph reachable from {@code o}, as the baseline for a later
+     * {@link #getDiff(Fingerprint, Object, String)}
+     */
+    public static Fingerprint fingerprint(final Object o) {
+        return Fingerprint.of(o);
     }
 
-    // Tuple is (field-name, value, type)
-    private static Seq<? extends Tuple3<String, Object, ? extends Class<?>>> getProperties(final Object source) {
-        try {
-            final PropertyDescriptor[] sourceProperties = Introspector.getBeanInfo(source.getClass()).getPropertyDescriptors();
-
-            return Seq.of(sourceProperties)
-                .map(Unchecked.function(sp -> isReadWrite(source, sp)))
-                .filter(Objects::nonNull);
-        } catch (final IntrospectionException e) {
-            throw new RuntimeException(e);
-        }
+    /**
+     * Reflectively write java code to update an object in place from the state of {@code baseline} to that of
+     * {@code current}, as per {@link #getDiff(Fingerprint, Object, String)}
+     *
+     * @param baseline an object in the state the code to be updated last had, eg an earlier copy of
+     *                 {@code current}
+     */
+    public static Tuple2<Seq<String>, Fingerprint> getDiff(
+        final Object baseline,
+        final Object current,
+        final String target
+    ) {
+        return getDiff(fingerprint(baseline), current, target, CodeGenOptions.DEFAULTS);
     }
 
-    // Tuple is (field-name, value, type)
-    private static Tuple3<String, Object, ? extends Class<?>> isReadWrite(
-        final Object source,
-        final PropertyDescriptor sp
-    ) throws IllegalAccessException, InvocationTargetException {
-
-        final Class<?> type = sp.getPropertyType();
-        final String name = sp.getName();
-        final Method writeMethod = sp.getWriteMethod();
-        if (writeMethod == null) {
-            return null;
-        }
-
-        final Method readMethod = sp.getReadMethod();
-        if (readMethod == null) {
-            return null;
-        }
-
-        final Object value = readMethod.invoke(source);
-        return tuple(name, value, type);
+    /**
+     * Reflectively write java code to update an object in place from the state recorded by {@code baseline}
+     * to that of {@code current}. Unchanged parts of the graph are skipped by comparing fingerprints, so the
+     * work done and the code generated depend on the extent of the changes rather than the size of the graph.
+     *
+     * @param baseline the fingerprint of the object when the code to be updated last saw it
+     * @param current  the object in its current state
+     * @param target   an expression for the instance being updated, eg the variable returned when it was
+     *                 first generated
+     * @return (update-code, fingerprint). The update-code is a stream of statements updating {@code target},
+     * declaring variables for new values and for the nested instances updated. The fingerprint is that of
+     * {@code current}, the baseline for the next update.
+     * @throws IllegalArgumentException if {@code target} cannot be updated in place, eg its type has changed
+     */
+    public static Tuple2<Seq<String>, Fingerprint> getDiff(
+        final Fingerprint baseline,
+        final Object current,
+        final String target
+    ) {
+        return getDiff(baseline, current, target, CodeGenOptions.DEFAULTS);
     }
 
-    private static String getObjectVariableName(final Object o) {
-        return 'e' + o.getClass().getSimpleName() + objectId.getAndIncrement();
+    /**
+     * As per {@link #getDiff(Fingerprint, Object, String)}, with non-default options
+     */
+    public static Tuple2<Seq<String>, Fingerprint> getDiff(
+        final Fingerprint baseline,
+        final Object current,
+        final String target,
+        final CodeGenOptions options
+    ) {
+        return session(options).getDiff(baseline, current, target);
     }
 }
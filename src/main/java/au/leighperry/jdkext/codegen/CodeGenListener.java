@@ -0,0 +1,59 @@
+package au.leighperry.jdkext.codegen;
+
+/**
+ * Observes where code generation spends its time, and what it produces, eg to tune the options of capture
+ * jobs from production. {@link CodeGenMetrics} aggregates the events into counters.
+ * <p>
+ * Register a listener with {@link CodeGenOptions#withListener(CodeGenListener)}. Every method does nothing by
+ * default, and without a listener the clock is not read, so an unused event costs nothing. Parallel
+ * generation calls a listener from several threads at once, so it must be thread safe.
+ */
+public interface CodeGenListener {
+    CodeGenListener NONE = new CodeGenListener() {
+    };
+
+    enum Phase {
+        /**
+         * Resolving how instances of a class are generated, including introspecting and compiling its bean
+         * properties the first time the class is seen
+         */
+        INTROSPECTION,
+
+        /**
+         * Reading the property values of a bean, attributed to the bean class. Primitive values written
+         * directly as literals are formatted in this phase too.
+         */
+        READING,
+
+        /**
+         * Formatting a literal or emitting a value with a {@link TypeEmitter}, attributed to the value class.
+         * An emitter's time includes that of the nested values it generates.
+         */
+        FORMATTING
+    }
+
+    /**
+     * A non-null value was reached, whether generated or referred to
+     */
+    default void visited(final Class<?> type) {
+    }
+
+    /**
+     * A phase of the generation of an instance of {@code type} took {@code nanos}
+     */
+    default void timed(final Phase phase, final Class<?> type, final long nanos) {
+    }
+
+    /**
+     * The fragment cache was searched for an expression, see {@link CodeGenOptions#withFragmentCache(int)}
+     */
+    default void fragmentCacheLookup(final boolean hit) {
+    }
+
+    /**
+     * A generation completed, having written {@code statements} statements totalling {@code characters}
+     * characters in {@code nanos}
+     */
+    default void generated(final long characters, final int statements, final long nanos) {
+    }
+}
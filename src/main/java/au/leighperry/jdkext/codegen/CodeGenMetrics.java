@@ -0,0 +1,152 @@
+package au.leighperry.jdkext.codegen;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An in-process registry of code generation metrics, fed as a {@link CodeGenListener}. Counters are
+ * {@link LongAdder}s, so concurrent generations update them without contention, and {@link #scrape()} reads
+ * them all by name for export to a monitoring system.
+ * <p>
+ * Metrics are kept for each class reached (how often, and the count and total time of each
+ * {@link CodeGenListener.Phase}), and for generation as a whole. Classes are identified by name, so a
+ * long-lived registry holds no reference to them or their class loaders, and classes of the same name loaded
+ * by different loaders share their metrics.
+ */
+public final class CodeGenMetrics implements CodeGenListener {
+    private final LongAdder generations = new LongAdder();
+    private final LongAdder generationNanos = new LongAdder();
+    private final LongAdder characters = new LongAdder();
+    private final LongAdder statements = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+
+    private final ConcurrentHashMap<String, TypeMetrics> types = new ConcurrentHashMap<>();
+
+    @Override
+    public void visited(final Class<?> type) {
+        metricsOf(type).visited.increment();
+    }
+
+    @Override
+    public void timed(final Phase phase, final Class<?> type, final long nanos) {
+        final TypeMetrics metrics = metricsOf(type);
+        metrics.counts[phase.ordinal()].increment();
+        metrics.nanos[phase.ordinal()].add(nanos);
+    }
+
+    @Override
+    public void fragmentCacheLookup(final boolean hit) {
+        (hit ? cacheHits : cacheMisses).increment();
+    }
+
+    @Override
+    public void generated(final long characters, final int statements, final long nanos) {
+        generations.increment();
+        generationNanos.add(nanos);
+        this.characters.add(characters);
+        this.statements.add(statements);
+    }
+
+    private TypeMetrics metricsOf(final Class<?> type) {
+        final String name = type.getName();
+        final TypeMetrics metrics = types.get(name);
+        return metrics != null ? metrics : types.computeIfAbsent(name, n -> new TypeMetrics());
+    }
+
+    /**
+     * @return the number of generations completed
+     */
+    public long generations() {
+        return generations.sum();
+    }
+
+    /**
+     * @return the number of characters of statements generated
+     */
+    public long characters() {
+        return characters.sum();
+    }
+
+    /**
+     * @return the number of statements generated
+     */
+    public long statements() {
+        return statements.sum();
+    }
+
+    /**
+     * @return the number of values of {@code type} reached
+     */
+    public long visits(final Class<?> type) {
+        final TypeMetrics metrics = types.get(type.getName());
+        return metrics == null ? 0 : metrics.visited.sum();
+    }
+
+    /**
+     * @return the total time spent in {@code phase} for instances of {@code type}
+     */
+    public long nanos(final Phase phase, final Class<?> type) {
+        final TypeMetrics metrics = types.get(type.getName());
+        return metrics == null ? 0 : metrics.nanos[phase.ordinal()].sum();
+    }
+
+    /**
+     * @return the proportion of fragment cache lookups that found an expression, NaN if there were none
+     */
+    public double fragmentCacheHitRate() {
+        final long hits = cacheHits.sum();
+        final long lookups = hits + cacheMisses.sum();
+        return lookups == 0 ? Double.NaN : (double) hits / lookups;
+    }
+
+    /**
+     * @return every metric by name, in name order. Overall metrics are named {@code codegen.<metric>}, and
+     * those of each class {@code codegen.type.<class-name>.<metric>}, where the metrics of a phase are named
+     * {@code <phase>.count} and {@code <phase>.nanos}, eg {@code codegen.type.java.lang.String.formatting.nanos}.
+     */
+    public SortedMap<String, Long> scrape() {
+        final SortedMap<String, Long> result = new TreeMap<>();
+        result.put("codegen.generations", generations.sum());
+        result.put("codegen.generation.nanos", generationNanos.sum());
+        result.put("codegen.characters", characters.sum());
+        result.put("codegen.statements", statements.sum());
+        result.put("codegen.fragmentCache.hits", cacheHits.sum());
+        result.put("codegen.fragmentCache.misses", cacheMisses.sum());
+
+        for (final Map.Entry<String, TypeMetrics> entry : types.entrySet()) {
+            final String prefix = "codegen.type." + entry.getKey() + '.';
+            final TypeMetrics metrics = entry.getValue();
+            result.put(prefix + "visited", metrics.visited.sum());
+            for (final Phase phase : PHASES) {
+                final String name = prefix + phase.name().toLowerCase(Locale.ROOT);
+                final long count = metrics.counts[phase.ordinal()].sum();
+                if (count != 0) {
+                    result.put(name + ".count", count);
+                    result.put(name + ".nanos", metrics.nanos[phase.ordinal()].sum());
+                }
+            }
+        }
+        return result;
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private static final class TypeMetrics {
+        final LongAdder visited = new LongAdder();
+        final LongAdder[] counts = adders();
+        final LongAdder[] nanos = adders();
+
+        private static LongAdder[] adders() {
+            final LongAdder[] result = new LongAdder[PHASES.length];
+            for (int i = 0; i < result.length; ++i) {
+                result[i] = new LongAdder();
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,529 @@
+package au.leighperry.jdkext.codegen;
+
+import java.time.Duration;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Immutable settings controlling the code generated by {@link CodeGen}.
+ * <p>
+ * Start from {@link #DEFAULTS} and derive variations using the {@code with...} methods.
+ */
+public final class CodeGenOptions {
+    public static final CodeGenOptions DEFAULTS = new Builder().build();
+
+    private final int base64Threshold;
+    private final int chunkMethodSize;
+    private final int chunkMethodsPerClass;
+    private final int parallelThreshold;
+    private final int parallelRangeSize;
+    private final ForkJoinPool parallelPool;
+    private final Executor writeExecutor;
+    private final EmitterRegistry emitters;
+    private final boolean beanCompilation;
+    private final boolean fieldAccess;
+    private final int maxDepth;
+    private final int maxElements;
+    private final long maxOutput;
+    private final Duration timeLimit;
+    private final FragmentCache fragmentCache;
+    private final int hoistingThreshold;
+    private final boolean hoisting;
+    private final CodeGenListener listener;
+    private final boolean presizing;
+    private final boolean bulkInitialisation;
+
+    private CodeGenOptions(final Builder builder) {
+        this.base64Threshold = builder.base64Threshold;
+        this.chunkMethodSize = builder.chunkMethodSize;
+        this.chunkMethodsPerClass = builder.chunkMethodsPerClass;
+        this.parallelThreshold = builder.parallelThreshold;
+        this.parallelRangeSize = builder.parallelRangeSize;
+        this.parallelPool = builder.parallelPool;
+        this.writeExecutor = builder.writeExecutor;
+        this.emitters = builder.emitters;
+        this.beanCompilation = builder.beanCompilation;
+        this.fieldAccess = builder.fieldAccess;
+        this.maxDepth = builder.maxDepth;
+        this.maxElements = builder.maxElements;
+        this.maxOutput = builder.maxOutput;
+        this.timeLimit = builder.timeLimit;
+        this.fragmentCache = builder.fragmentCache;
+        this.hoistingThreshold = builder.hoistingThreshold;
+        this.hoisting = builder.hoisting;
+        this.listener = builder.listener;
+        this.presizing = builder.presizing;
+        this.bulkInitialisation = builder.bulkInitialisation;
+    }
+
+    /**
+     * @return the length at which a {@code byte[]} is emitted as Base64 rather than an array initialiser
+     */
+    public int base64Threshold() {
+        return base64Threshold;
+    }
+
+    /**
+     * @param base64Threshold the length at which a {@code byte[]} is emitted as Base64 rather than an
+     *                        array initialiser, {@link Integer#MAX_VALUE} to never use Base64
+     */
+    public CodeGenOptions withBase64Threshold(final int base64Threshold) {
+        requireNonNegative("base64Threshold", base64Threshold);
+        final Builder builder = new Builder(this);
+        builder.base64Threshold = base64Threshold;
+        return builder.build();
+    }
+
+    /**
+     * @return the maximum characters of statements in one generated helper method, see
+     * {@link CodeGen#getChunkedCode(Object, String, String, CodeGenOptions)}
+     */
+    public int chunkMethodSize() {
+        return chunkMethodSize;
+    }
+
+    /**
+     * @return the maximum number of helper methods in one generated class, see
+     * {@link CodeGen#getChunkedCode(Object, String, String, CodeGenOptions)}
+     */
+    public int chunkMethodsPerClass() {
+        return chunkMethodsPerClass;
+    }
+
+    /**
+     * @param chunkMethodSize      the maximum characters of statements in one generated helper method. The
+     *                             default keeps the bytecode of a method well within the JVM's 64KB limit.
+     *                             The initialiser of a large primitive array is split into segments
+     *                             copied into the array by separate statements. Any other single
+     *                             statement larger than this, such as the literal of a large byte array
+     *                             encoded in Base64, is placed in a method of its own; its string
+     *                             constants add little bytecode.
+     * @param chunkMethodsPerClass the maximum number of helper methods in one generated class, bounding the
+     *                             class file constant pool
+     */
+    public CodeGenOptions withChunking(final int chunkMethodSize, final int chunkMethodsPerClass) {
+        requirePositive("chunkMethodSize", chunkMethodSize);
+        requirePositive("chunkMethodsPerClass", chunkMethodsPerClass);
+        final Builder builder = new Builder(this);
+        builder.chunkMethodSize = chunkMethodSize;
+        builder.chunkMethodsPerClass = chunkMethodsPerClass;
+        return builder.build();
+    }
+
+    /**
+     * @return the size at which a collection or map is generated in parallel, {@link Integer#MAX_VALUE}
+     * (the default) if never
+     */
+    public int parallelThreshold() {
+        return parallelThreshold;
+    }
+
+    /**
+     * @return the number of elements generated by each parallel task
+     */
+    public int parallelRangeSize() {
+        return parallelRangeSize;
+    }
+
+    /**
+     * @return the pool running parallel tasks
+     */
+    public ForkJoinPool parallelPool() {
+        return parallelPool == null ? ForkJoinPool.commonPool() : parallelPool;
+    }
+
+    /**
+     * Generate the elements of large collections and maps in parallel, in ranges of {@code rangeSize}
+     * elements. The output is the same however the work is scheduled, but differs from sequential output: the
+     * variables of each range are named within a range-specific scope, and an instance shared between ranges
+     * (rather than with the enclosing graph) is emitted once per range. Collections nested within a range are
+     * generated sequentially.
+     *
+     * @param threshold the size at which a collection or map is generated in parallel
+     * @param rangeSize the number of elements generated by each parallel task
+     * @param pool      the pool running parallel tasks, null for the common pool
+     */
+    public CodeGenOptions withParallelism(final int threshold, final int rangeSize, final ForkJoinPool pool) {
+        requirePositive("threshold", threshold);
+        requirePositive("rangeSize", rangeSize);
+        final Builder builder = new Builder(this);
+        builder.parallelThreshold = threshold;
+        builder.parallelRangeSize = rangeSize;
+        builder.parallelPool = pool;
+        return builder.build();
+    }
+
+    /**
+     * @return the executor writing the files of
+     * {@link CodeGen#writeChunkedCode(Object, String, String, java.nio.file.Path, CodeGenOptions)}, null (the
+     * default) for threads started and stopped by each call
+     */
+    public Executor writeExecutor() {
+        return writeExecutor;
+    }
+
+    /**
+     * @param writeExecutor runs the blocking file writes of
+     *                      {@link CodeGen#writeChunkedCode(Object, String, String, java.nio.file.Path, CodeGenOptions)},
+     *                      eg a pool dedicated to I/O, null for a few threads started and stopped by each call.
+     *                      The executor is not shut down.
+     */
+    public CodeGenOptions withWriteExecutor(final Executor writeExecutor) {
+        final Builder builder = new Builder(this);
+        builder.writeExecutor = writeExecutor;
+        return builder.build();
+    }
+
+    EmitterRegistry emitters() {
+        return emitters;
+    }
+
+    /**
+     * Generate instances of {@code type}, and its subtypes, with {@code emitter} rather than the built-in
+     * handling
+     */
+    public CodeGenOptions withEmitter(final Class<?> type, final TypeEmitter emitter) {
+        final Builder builder = new Builder(this);
+        builder.emitters = emitters.with(type, emitter);
+        if (fragmentCache != null) {
+            // The cached expressions may be those of the replaced emitter
+            builder.fragmentCache = new FragmentCache(fragmentCache.capacity());
+        }
+        return builder.build();
+    }
+
+    /**
+     * Treat instances of {@code type}, and its subtypes, as immutable: they are not modified once generated,
+     * and equal instances are interchangeable. Their expressions may be cached (see
+     * {@link #withFragmentCache(int)}) and equal instances may share a variable (see {@link #withHoisting(int)}).
+     * Strings, numbers, enums and the JDK value types with built-in handling are always immutable.
+     */
+    public CodeGenOptions withImmutableType(final Class<?> type) {
+        final Builder builder = new Builder(this);
+        builder.emitters = emitters.withImmutable(type);
+        return builder.build();
+    }
+
+    FragmentCache fragmentCache() {
+        return fragmentCache;
+    }
+
+    /**
+     * @return the number of expressions held by the fragment cache, 0 (the default) if there is none
+     */
+    public int fragmentCacheSize() {
+        return fragmentCache == null ? 0 : fragmentCache.capacity();
+    }
+
+    /**
+     * Cache the expressions generated for immutable values that need no preamble, eg strings, decimals and
+     * dates, so each distinct value is formatted once. The cache belongs to the returned options, and is shared
+     * by every session using them (or options derived from them).
+     *
+     * @param size the maximum number of expressions held, beyond which the least recently used are evicted, 0
+     *             for no cache
+     */
+    public CodeGenOptions withFragmentCache(final int size) {
+        requireNonNegative("size", size);
+        final Builder builder = new Builder(this);
+        builder.fragmentCache = size == 0 ? null : new FragmentCache(size);
+        return builder.build();
+    }
+
+    /**
+     * @return whether repeated immutable values are declared once and shared, see {@link #withHoisting(int)}
+     */
+    public boolean hoisting() {
+        return hoisting;
+    }
+
+    /**
+     * @return the length at which the expression of a repeated immutable value is declared as a variable
+     */
+    public int hoistingThreshold() {
+        return hoistingThreshold;
+    }
+
+    /**
+     * Declare repeated immutable values once, as variables shared by their occurrences. An immutable value
+     * needing no preamble (eg a string or date) whose expression is at least {@code threshold} characters
+     * long is declared on its second occurrence, and later occurrences refer to that variable. An instance of
+     * a type declared with {@link #withImmutableType(Class)} that equals an instance already generated refers
+     * to the variable of that instance, so identical subgraphs are generated once.
+     *
+     * @param threshold the length at which an expression is hoisted, {@link Integer#MAX_VALUE} to share only
+     *                  instances of declared immutable types
+     */
+    public CodeGenOptions withHoisting(final int threshold) {
+        requirePositive("threshold", threshold);
+        final Builder builder = new Builder(this);
+        builder.hoisting = true;
+        builder.hoistingThreshold = threshold;
+        return builder.build();
+    }
+
+    /**
+     * @return the listener observing generation, {@link CodeGenListener#NONE} (the default) if none
+     */
+    public CodeGenListener listener() {
+        return listener;
+    }
+
+    /**
+     * @param listener observes the time taken by each phase of generation and what it produces, eg a
+     *                 {@link CodeGenMetrics}, null for none
+     */
+    public CodeGenOptions withListener(final CodeGenListener listener) {
+        final Builder builder = new Builder(this);
+        builder.listener = listener == null ? CodeGenListener.NONE : listener;
+        return builder.build();
+    }
+
+    /**
+     * @return whether collections and maps are instantiated with the capacity for their elements
+     */
+    public boolean presizing() {
+        return presizing;
+    }
+
+    /**
+     * @param presizing whether to instantiate collections and maps with the capacity for the elements they are
+     *                  populated with, so they are not resized while the generated code runs. Applies to the
+     *                  JDK classes with capacity constructors, eg {@code ArrayList} and {@code HashMap}.
+     */
+    public CodeGenOptions withPresizing(final boolean presizing) {
+        final Builder builder = new Builder(this);
+        builder.presizing = presizing;
+        return builder.build();
+    }
+
+    /**
+     * @return whether collections and maps are populated in bulk, see {@link #withBulkInitialisation(boolean)}
+     */
+    public boolean bulkInitialisation() {
+        return bulkInitialisation;
+    }
+
+    /**
+     * @param bulkInitialisation whether to populate collections and maps in bulk, making the generated code
+     *                           smaller and faster to compile. Consecutive elements of a JDK collection are
+     *                           added by one {@code addAll(java.util.Arrays.asList(...))} call, and consecutive
+     *                           entries of a map are put by a loop over an array of keys and values. Set
+     *                           elements and map keys referring back to an instance still being populated are
+     *                           added individually, as are the elements of collections generated in parallel.
+     */
+    public CodeGenOptions withBulkInitialisation(final boolean bulkInitialisation) {
+        final Builder builder = new Builder(this);
+        builder.bulkInitialisation = bulkInitialisation;
+        return builder.build();
+    }
+
+    /**
+     * @return whether bean properties are read through accessors compiled per class, rather than reflectively
+     */
+    public boolean beanCompilation() {
+        return beanCompilation;
+    }
+
+    /**
+     * @param beanCompilation whether to read bean properties through accessors compiled per class (the
+     *                        default), which also write primitive properties without boxing. Classes whose
+     *                        getters cannot be linked from this library are read reflectively either way,
+     *                        and the output is the same.
+     */
+    public CodeGenOptions withBeanCompilation(final boolean beanCompilation) {
+        final Builder builder = new Builder(this);
+        builder.beanCompilation = beanCompilation;
+        return builder.build();
+    }
+
+    /**
+     * @return whether objects are generated from their fields rather than their bean properties
+     */
+    public boolean fieldAccess() {
+        return fieldAccess;
+    }
+
+    /**
+     * @param fieldAccess whether to generate objects other than collections, maps and emitted values from
+     *                    their instance fields (other than static and transient fields), read through method
+     *                    handles cached per class, rather than their bean properties. This suits immutable
+     *                    classes, and classes without setters. Each object is constructed by, in order of
+     *                    preference:
+     *                    <ul>
+     *                    <li>a public constructor taking the fields: matched by parameter name if the class
+     *                    was compiled with {@code -parameters}, otherwise by parameter type in declaration
+     *                    order, superclass fields first, provided no two fields share a type</li>
+     *                    <li>a public static factory method of the class taking the fields, matched likewise</li>
+     *                    <li>its no-argument constructor, after which each field is assigned directly if public,
+     *                    otherwise through {@link FieldAssignment}, which the generated code then depends on
+     *                    at runtime. Not for classes with transient fields, which nothing would derive.</li>
+     *                    </ul>
+     *                    Classes with none of these, whose fields cannot be read, or whose state is not held in
+     *                    their fields (they have none, or define {@code writeObject}) are generated from their
+     *                    bean properties. An object constructed by a constructor or factory cannot be referred
+     *                    to by its own fields, directly or through others so constructed, and collections
+     *                    referring back to it are populated with it only once it is constructed. Fingerprints,
+     *                    diffs and binary snapshots are taken from bean properties either way.
+     */
+    public CodeGenOptions withFieldAccess(final boolean fieldAccess) {
+        final Builder builder = new Builder(this);
+        builder.fieldAccess = fieldAccess;
+        return builder.build();
+    }
+
+    /**
+     * @return the maximum nesting of instances populated by the generated code, {@link Integer#MAX_VALUE}
+     * (the default) if unlimited
+     */
+    public int maxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * @param maxDepth the maximum nesting of instances populated by the generated code, where 1 populates
+     *                 only the root instance. Instances nested deeper are left out: the element, entry or
+     *                 value wrapping them is not added, and the property or field referring to them is not
+     *                 set, other than a constructor argument, which is null.
+     * @see Truncation.Reason#DEPTH
+     */
+    public CodeGenOptions withMaxDepth(final int maxDepth) {
+        requirePositive("maxDepth", maxDepth);
+        final Builder builder = new Builder(this);
+        builder.maxDepth = maxDepth;
+        return builder.build();
+    }
+
+    /**
+     * @return the maximum number of elements generated for each collection, map or object array,
+     * {@link Integer#MAX_VALUE} (the default) if unlimited
+     */
+    public int maxElements() {
+        return maxElements;
+    }
+
+    /**
+     * @param maxElements the maximum number of elements generated for each collection, map or object array,
+     *                    in iteration order. Primitive arrays are always generated in full.
+     * @see Truncation.Reason#ELEMENTS
+     */
+    public CodeGenOptions withMaxElements(final int maxElements) {
+        requireNonNegative("maxElements", maxElements);
+        final Builder builder = new Builder(this);
+        builder.maxElements = maxElements;
+        return builder.build();
+    }
+
+    /**
+     * @return the number of characters of statements after which generation stops, {@link Long#MAX_VALUE}
+     * (the default) if unlimited
+     */
+    public long maxOutput() {
+        return maxOutput;
+    }
+
+    /**
+     * @param maxOutput the number of characters of statements after which generation stops. The limit is
+     *                  checked between elements and properties, so it may be exceeded by the statements for
+     *                  one of them. With parallel generation each range is allowed an equal share of what
+     *                  remains when the ranges start.
+     * @see Truncation.Reason#OUTPUT
+     */
+    public CodeGenOptions withMaxOutput(final long maxOutput) {
+        if (maxOutput < 0) {
+            throw new IllegalArgumentException("maxOutput must not be negative: " + maxOutput);
+        }
+        final Builder builder = new Builder(this);
+        builder.maxOutput = maxOutput;
+        return builder.build();
+    }
+
+    /**
+     * @return the time after which generation stops, null (the default) if unlimited
+     */
+    public Duration timeLimit() {
+        return timeLimit;
+    }
+
+    /**
+     * @param timeLimit the time, from the start of each generation, after which it stops, null if unlimited.
+     *                  The clock is only read every few hundred elements and properties.
+     * @see Truncation.Reason#TIME
+     */
+    public CodeGenOptions withTimeLimit(final Duration timeLimit) {
+        if (timeLimit != null && timeLimit.isNegative()) {
+            throw new IllegalArgumentException("timeLimit must not be negative: " + timeLimit);
+        }
+        final Builder builder = new Builder(this);
+        builder.timeLimit = timeLimit;
+        return builder.build();
+    }
+
+    private static void requireNonNegative(final String name, final int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException(name + " must not be negative: " + value);
+        }
+    }
+
+    private static void requirePositive(final String name, final int value) {
+        if (value <= 0) {
+            throw new IllegalArgumentException(name + " must be positive: " + value);
+        }
+    }
+
+    /**
+     * The settings of options being derived, assigned before the options are constructed from them
+     */
+    private static final class Builder {
+        private int base64Threshold = 1024;
+        private int chunkMethodSize = 16_000;
+        private int chunkMethodsPerClass = 20;
+        private int parallelThreshold = Integer.MAX_VALUE;
+        private int parallelRangeSize = 1024;
+        private ForkJoinPool parallelPool;
+        private Executor writeExecutor;
+        private EmitterRegistry emitters = EmitterRegistry.DEFAULT;
+        private boolean beanCompilation = true;
+        private boolean fieldAccess;
+        private int maxDepth = Integer.MAX_VALUE;
+        private int maxElements = Integer.MAX_VALUE;
+        private long maxOutput = Long.MAX_VALUE;
+        private Duration timeLimit;
+        private FragmentCache fragmentCache;
+        private int hoistingThreshold = Integer.MAX_VALUE;
+        private boolean hoisting;
+        private CodeGenListener listener = CodeGenListener.NONE;
+        private boolean presizing;
+        private boolean bulkInitialisation;
+
+        Builder() {
+        }
+
+        Builder(final CodeGenOptions other) {
+            this.base64Threshold = other.base64Threshold;
+            this.chunkMethodSize = other.chunkMethodSize;
+            this.chunkMethodsPerClass = other.chunkMethodsPerClass;
+            this.parallelThreshold = other.parallelThreshold;
+            this.parallelRangeSize = other.parallelRangeSize;
+            this.parallelPool = other.parallelPool;
+            this.writeExecutor = other.writeExecutor;
+            this.emitters = other.emitters;
+            this.beanCompilation = other.beanCompilation;
+            this.fieldAccess = other.fieldAccess;
+            this.maxDepth = other.maxDepth;
+            this.maxElements = other.maxElements;
+            this.maxOutput = other.maxOutput;
+            this.timeLimit = other.timeLimit;
+            this.fragmentCache = other.fragmentCache;
+            this.hoistingThreshold = other.hoistingThreshold;
+            this.hoisting = other.hoisting;
+            this.listener = other.listener;
+            this.presizing = other.presizing;
+            this.bulkInitialisation = other.bulkInitialisation;
+        }
+
+        CodeGenOptions build() {
+            return new CodeGenOptions(this);
+        }
+    }
+}
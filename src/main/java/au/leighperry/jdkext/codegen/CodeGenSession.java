@@ -0,0 +1,214 @@
+package au.leighperry.jdkext.codegen;
+
+import org.jooq.lambda.Seq;
+import org.jooq.lambda.tuple.Tuple2;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+
+import static org.jooq.lambda.Seq.seq;
+import static org.jooq.lambda.tuple.Tuple.tuple;
+
+/**
+ * A code generation context owning its variable naming and options, as an alternative to the static
+ * {@link CodeGen} methods.
+ * <p>
+ * A session shares no mutable state with other sessions, so threads can generate code concurrently each with
+ * their own session, and the output of a session depends only on the objects passed to it. Variable numbering
+ * continues across calls on the same session, so the code from several calls can be combined in one method.
+ * <p>
+ * A session is not thread safe.
+ */
+public final class CodeGenSession {
+    private static final String FIXTURE_CLASS_NAME = "GeneratedFixture";
+
+    private final CodeGenOptions options;
+    private final IntSupplier objectIds;
+
+    private int nextObjectId;
+    private List<Truncation> truncations = Collections.emptyList();
+
+    public CodeGenSession() {
+        this(CodeGenOptions.DEFAULTS);
+    }
+
+    public CodeGenSession(final CodeGenOptions options) {
+        this.options = options;
+        this.objectIds = () -> nextObjectId++;
+    }
+
+    // For the static API, whose variable numbering is global
+    CodeGenSession(final CodeGenOptions options, final IntSupplier objectIds) {
+        this.options = options;
+        this.objectIds = objectIds;
+    }
+
+    public CodeGenOptions options() {
+        return options;
+    }
+
+    /**
+     * Restart variable numbering from zero
+     */
+    public void resetObjectId() {
+        nextObjectId = 0;
+    }
+
+    int nextObjectId() {
+        return objectIds.getAsInt();
+    }
+
+    /**
+     * @return what the limits of the options cut short in the most recent generation by this session, in
+     * output order
+     */
+    public List<Truncation> truncations() {
+        return truncations;
+    }
+
+    private String write(final CodeSink sink, final Object o) {
+        final long start = startTime();
+        final CodeGenerator generator = new CodeGenerator(sink, this);
+        final String expression = generator.write(o);
+        finished(generator, sink, start);
+        return expression;
+    }
+
+    private long startTime() {
+        return options.listener() != CodeGenListener.NONE ? System.nanoTime() : 0;
+    }
+
+    private void finished(final CodeGenerator generator, final CodeSink sink, final long start) {
+        truncations = Collections.unmodifiableList(generator.truncations());
+        if (options.listener() != CodeGenListener.NONE) {
+            options.listener().generated(sink.written(), sink.statements(), System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @see CodeGen#getPreambleAndExpression(Object)
+     */
+    public Tuple2<Seq<String>, String> getPreambleAndExpression(final Object o) {
+        final LinesSink sink = new LinesSink();
+        final String expression = write(sink, o);
+        return tuple(seq(sink.lines()), expression);
+    }
+
+    /**
+     * Generate {@code snapshot} as per {@link #getPreambleAndExpression(Object)}, populating its root from the
+     * state the snapshot recorded
+     */
+    CapturedCode getCapturedCode(final Snapshot snapshot) {
+        final long start = startTime();
+        final LinesSink sink = new LinesSink();
+        final CodeGenerator generator = new CodeGenerator(sink, this);
+        final String expression = generator.write(snapshot);
+        finished(generator, sink, start);
+        return new CapturedCode(sink.lines(), expression, truncations);
+    }
+
+    /**
+     * @see CodeGen#writePreambleAndExpression(Object, Appendable)
+     */
+    public String writePreambleAndExpression(final Object o, final Appendable out) {
+        final AppendableSink sink = new AppendableSink(out);
+        final String expression = write(sink, o);
+        sink.flush();
+        return expression;
+    }
+
+    /**
+     * @see CodeGen#fingerprint(Object)
+     */
+    public Fingerprint fingerprint(final Object o) {
+        return Fingerprint.of(o, options.emitters());
+    }
+
+    /**
+     * @see CodeGen#getDiff(Object, Object, String)
+     */
+    public Tuple2<Seq<String>, Fingerprint> getDiff(final Object baseline, final Object current, final String target) {
+        return getDiff(fingerprint(baseline), current, target);
+    }
+
+    /**
+     * @see CodeGen#getDiff(Fingerprint, Object, String)
+     */
+    public Tuple2<Seq<String>, Fingerprint> getDiff(
+        final Fingerprint baseline,
+        final Object current,
+        final String target
+    ) {
+        final long start = startTime();
+        final LinesSink sink = new LinesSink();
+        final CodeGenerator generator = new CodeGenerator(sink, this);
+        final Fingerprint fingerprint = fingerprint(current);
+        new DiffWriter(generator, options.emitters()).write(baseline, fingerprint, current, target);
+        finished(generator, sink, start);
+        return tuple(seq(sink.lines()), fingerprint);
+    }
+
+    /**
+     * @see CodeGen#getChunkedCode(Object, String, String, CodeGenOptions)
+     */
+    public ChunkedCode getChunkedCode(final Object o, final String packageName, final String className) {
+        final List<ChunkedCode.Unit> units = new ArrayList<>();
+        final ChunkingSink sink = new ChunkingSink(packageName, className, options, units::add);
+        final String expression = write(sink, o);
+        sink.finish(expression);
+        return new ChunkedCode(units);
+    }
+
+    /**
+     * @see CodeGen#getBinarySnapshot(Object, String, String, CodeGenOptions)
+     */
+    public BinarySnapshot getBinarySnapshot(final Object o, final String packageName, final String className) {
+        final long start = startTime();
+        final LinesSink sink = new LinesSink();
+        final CodeGenerator generator = new CodeGenerator(sink, this);
+        final BinarySnapshotWriter writer = new BinarySnapshotWriter(generator, options);
+        final byte[] data = writer.write(o);
+        finished(generator, sink, start);
+        return new BinarySnapshot(packageName, className, sink.lines(), writer.externals(), data);
+    }
+
+    /**
+     * @see CodeGen#writeChunkedCode(Object, String, String, Path, CodeGenOptions)
+     */
+    public List<Path> writeChunkedCode(
+        final Object o,
+        final String packageName,
+        final String className,
+        final Path directory
+    ) {
+        final ShardWriter writer = new ShardWriter(directory, options);
+        try {
+            final ChunkingSink sink = new ChunkingSink(packageName, className, options, writer);
+            final String expression = write(sink, o);
+            sink.finish(expression);
+            return writer.finish();
+        } catch (final RuntimeException | Error e) {
+            writer.abort();
+            throw e;
+        }
+    }
+
+    /**
+     * Generate {@code o} as per {@link #getChunkedCode(Object, String, String)}, and compile and load it with
+     * {@code compiler}. The code is generated with variables numbered from zero, independently of this
+     * session, so that equal objects generate identical code and are compiled once.
+     *
+     * @return a supplier of new copies of {@code o}
+     * @see FixtureCompiler#load(ChunkedCode)
+     */
+    public Supplier<Object> getSupplier(final Object o, final FixtureCompiler compiler) {
+        final CodeGenSession session = new CodeGenSession(options);
+        final ChunkedCode code = session.getChunkedCode(o, "", FIXTURE_CLASS_NAME);
+        truncations = session.truncations;
+        return compiler.load(code);
+    }
+}
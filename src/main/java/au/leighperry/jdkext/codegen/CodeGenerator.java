@@ -0,0 +1,1429 @@
+package au.leighperry.jdkext.codegen;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.math.BigDecimal;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Walks an object graph writing the statements needed to recreate it to a {@link CodeSink}.
+ * <p>
+ * Traversal is driven by an explicit stack of {@link Frame}s rather than recursion, so graphs of any depth
+ * can be generated without a deep call stack.
+ * <p>
+ * Objects are tracked by identity, so an instance reachable more than once is instantiated once and its
+ * variable reused. A reference back to an object still being populated (ie a cycle) is written in place,
+ * keeping the order of lists and arrays, except where the object would be hashed or compared (a set element
+ * or map key) or is not yet constructed: then it is wired up once that object is complete.
+ * <p>
+ * Large collections and maps may optionally be split into ranges generated in parallel, each by a range
+ * generator writing to its own {@link RecordingSink}. A range generator sees the instances of its parent
+ * (which is blocked until the ranges complete) but records new instances itself, and the recordings are
+ * replayed into the parent sink in range order.
+ * <p>
+ * The limits of {@link CodeGenOptions} are checked before each element or property, and whatever they cut
+ * short is recorded as a {@link Truncation} and marked with a comment.
+ */
+final class CodeGenerator implements EmitContext {
+    private final CodeSink sink;
+    private final CodeGenSession session;
+    private final CodeGenOptions options;
+    private final EmitterRegistry emitters;
+
+    // Whether primitive bean properties may be written directly as literals, ie are not handled by emitters
+    private final boolean primitiveLiterals;
+
+    // For range generators, the generator of the enclosing graph, otherwise null
+    private final CodeGenerator parent;
+
+    // For range generators, distinguishes variable names from those of other ranges
+    private final String nameScope;
+    private int nextLocalId;
+
+    // Nesting depth of the parent
+    private final int depthBase;
+
+    // For range generators, the variable of the collection or map being populated, otherwise null
+    private final String container;
+
+    // Number of characters of output after which generation stops
+    private final long outputLimit;
+
+    // System.nanoTime() after which generation stops, if timeLimited
+    private final boolean timeLimited;
+    private final long deadline;
+
+    // Counts limit checks, so the clock is only read occasionally
+    private int clock;
+    private static final int CLOCK_MASK = 0xff;
+
+    // Whether the output or time limit has been reached
+    private boolean stopped;
+
+    private final List<Truncation> truncations = new ArrayList<>();
+
+    // Variable names of every instance emitted so far
+    private final IdentityHashMap<Object, String> names = new IdentityHashMap<>();
+
+    // Instances being populated, by nesting depth
+    private final IdentityHashMap<Object, Integer> inProgress = new IdentityHashMap<>();
+
+    // In-progress instances constructed from their field values, so not yet declared
+    private final IdentityHashMap<Object, Boolean> unconstructed = new IdentityHashMap<>();
+
+    // Statements referring to an in-progress instance, written once that instance is complete
+    private final IdentityHashMap<Object, List<String>> deferred = new IdentityHashMap<>();
+
+    // With hoisting, the variables shared by equal immutable values, or SEEN_ONCE for a value seen only once
+    private final HashMap<Object, String> shared = new HashMap<>();
+    private static final String SEEN_ONCE = "";
+
+    // The listener of the options, and whether it is not NONE, so the clock is only read for a listener
+    private final CodeGenListener listener;
+    private final boolean listening;
+
+    // Calls back from emitters, so expressions depending on the generation are not cached
+    private int contextCalls;
+
+    // Frames of the instances being populated, innermost first
+    private final ArrayDeque<Frame> stack = new ArrayDeque<>();
+
+    // The expression of the instance most recently entered or completed
+    private String expression;
+
+    // Whether the instance most recently entered was cut short by the depth limit, so is left out altogether
+    private boolean truncated;
+
+    // The outermost in-progress instance referred to by the expressions returned since the last statement
+    private Object backReference;
+
+    CodeGenerator(final CodeSink sink, final CodeGenSession session) {
+        this.sink = sink;
+        this.session = session;
+        this.options = session.options();
+        this.emitters = options.emitters();
+        this.primitiveLiterals = options.beanCompilation() && isSimple(emitters);
+        this.parent = null;
+        this.nameScope = null;
+        this.depthBase = 0;
+        this.container = null;
+        this.outputLimit = options.maxOutput();
+        this.timeLimited = options.timeLimit() != null;
+        this.deadline = timeLimited ? System.nanoTime() + options.timeLimit().toNanos() : 0;
+        this.listener = options.listener();
+        this.listening = listener != CodeGenListener.NONE;
+    }
+
+    private CodeGenerator(
+        final CodeGenerator parent,
+        final String nameScope,
+        final String container,
+        final long outputLimit
+    ) {
+        this.sink = new RecordingSink(parent.sink.maxStatementLength());
+        this.session = parent.session;
+        this.options = parent.options;
+        this.emitters = parent.emitters;
+        this.primitiveLiterals = parent.primitiveLiterals;
+        this.parent = parent;
+        this.nameScope = nameScope;
+        this.depthBase = parent.depthBase + parent.inProgress.size();
+        this.container = container;
+        this.outputLimit = outputLimit;
+        this.timeLimited = parent.timeLimited;
+        this.deadline = parent.deadline;
+        this.listener = parent.listener;
+        this.listening = parent.listening;
+    }
+
+    /**
+     * @return what the limits of the options cut short, in output order
+     */
+    List<Truncation> truncations() {
+        return truncations;
+    }
+
+    private static boolean isSimple(final EmitterRegistry emitters) {
+        for (final Class<?> type : PRIMITIVE_WRAPPERS) {
+            if (emitters.dispatch(type).kind != Dispatch.Kind.SIMPLE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The most elements or entries populated by one bulk statement
+    private static final int BULK_ELEMENTS = 256;
+
+    // Characters of a System.arraycopy statement besides the initialiser and the array name
+    private static final int SEGMENT_OVERHEAD = 64;
+
+    private static final Class<?>[] PRIMITIVE_WRAPPERS = {
+        Boolean.class, Byte.class, Character.class, Short.class, Integer.class, Long.class, Float.class, Double.class
+    };
+
+    /**
+     * Write the preamble for {@code o} to the sink
+     *
+     * @return the expression for {@code o}, which may refer to variables declared in the preamble
+     */
+    String write(final Object o) {
+        return enter(o) ? drive() : expression;
+    }
+
+    /**
+     * Write the preamble for the root of {@code snapshot} to the sink, populating it from the snapshot
+     * rather than its current state
+     *
+     * @return the expression for the root
+     */
+    String write(final Snapshot snapshot) {
+        return enter(snapshot.root, snapshot.contents) ? drive() : expression;
+    }
+
+    /**
+     * @return the expression of the instance whose frame was last pushed, once it and everything reachable
+     * from it has been generated
+     */
+    private String drive() {
+        // Drive the frames pushed for the instance, and for everything reachable from it
+        final int base = stack.size() - 1;
+        while (stack.size() > base) {
+            final Frame frame = stack.peek();
+            if (frame.step()) {
+                stack.pop();
+                if (frame.isInstance()) {
+                    complete(frame.o, frame.name);
+                }
+            }
+        }
+        return expression;
+    }
+
+    private boolean enter(final Object o) {
+        return enter(o, o);
+    }
+
+    /**
+     * Start generating {@code o}. If it is fully generated, leave its expression in {@link #expression},
+     * otherwise push a frame to populate it.
+     *
+     * @param contents what {@code o} is populated from: {@code o} itself, or its {@link Snapshot} contents
+     * @return whether a frame was pushed
+     */
+    private boolean enter(final Object o, final Object contents) {
+        truncated = false;
+        if (o == null) {
+            expression = null;
+            return false;
+        }
+
+        final Dispatch dispatch;
+        if (listening) {
+            final long start = System.nanoTime();
+            dispatch = emitters.dispatch(o.getClass());
+            timed(CodeGenListener.Phase.INTROSPECTION, o.getClass(), start);
+            listener.visited(o.getClass());
+        } else {
+            dispatch = emitters.dispatch(o.getClass());
+        }
+
+        if (dispatch.emitter instanceof BuiltInEmitters.Wrapping) {
+            return enterWrapping(o, (BuiltInEmitters.Wrapping) dispatch.emitter);
+        }
+
+        switch (dispatch.kind) {
+            case SIMPLE:
+            case EMITTER:
+                // return the object value as the expression
+                expression = valueExpression(o, dispatch);
+                truncated = false;
+                return false;
+            case ENUM:
+                expression = dispatch.declaredType + '.' + ((Enum<?>) o).name();
+                return false;
+            default:
+                break;
+        }
+
+        final String existingName = nameOf(o);
+        if (existingName != null) {
+            noteBackReference(o);
+            expression = existingName;
+            return false;
+        }
+
+        if (dispatch.immutable && options.hoisting()) {
+            final String equalName = sharedNameOf(o);
+            if (equalName != null) {
+                expression = equalName;
+                return false;
+            }
+        }
+
+        if (depthBase + inProgress.size() >= options.maxDepth()) {
+            truncate(
+                Truncation.Reason.DEPTH,
+                stack.isEmpty() ? container : stack.peek().name,
+                dispatch.declaredType + " beyond depth " + options.maxDepth()
+            );
+            expression = null;
+            truncated = true;
+            return false;
+        }
+
+        final String objectVariableName = getObjectVariableName(dispatch.metadata);
+        names.put(o, objectVariableName);
+        inProgress.put(o, depthBase + inProgress.size());
+
+        final Frame frame = start(o, contents, dispatch, objectVariableName);
+        if (frame == null) {
+            complete(o, objectVariableName);
+            return false;
+        }
+        stack.push(frame);
+        return true;
+    }
+
+    /**
+     * Start generating a value wrapping another, which is generated by a frame of its own
+     *
+     * @return whether a frame was pushed
+     */
+    private boolean enterWrapping(final Object o, final BuiltInEmitters.Wrapping wrapping) {
+        final Object contents = wrapping.contents(o);
+        if (contents == null) {
+            expression = wrapping.empty(o);
+            return false;
+        }
+        stack.push(new WrapperFrame(o, contents, wrapping, stack.peek()));
+        return true;
+    }
+
+    /**
+     * @return the expression for a value generated as a literal or by an emitter
+     */
+    private String valueExpression(final Object o, final Dispatch dispatch) {
+        if (!dispatch.immutable) {
+            return render(o, dispatch);
+        }
+
+        final FragmentCache cache = options.fragmentCache();
+        String result = cache != null ? cache.get(o) : null;
+        if (cache != null && listening) {
+            listener.fragmentCacheLookup(result != null);
+        }
+        if (result == null) {
+            final int calls = contextCalls;
+            result = render(o, dispatch);
+            if (contextCalls != calls) {
+                // Depends on what has been generated, and may itself be shared
+                return result;
+            }
+            if (cache != null) {
+                cache.put(o, result);
+            }
+        }
+
+        if (options.hoisting() && result.length() >= options.hoistingThreshold()) {
+            return hoist(o, dispatch, result);
+        }
+        return result;
+    }
+
+    private String render(final Object o, final Dispatch dispatch) {
+        final long start = listening ? System.nanoTime() : 0;
+        final String result =
+            dispatch.kind == Dispatch.Kind.SIMPLE ? simpleExpression(o) : dispatch.emitter.emit(o, this);
+        if (listening) {
+            timed(CodeGenListener.Phase.FORMATTING, o.getClass(), start);
+        }
+        return result;
+    }
+
+    private void timed(final CodeGenListener.Phase phase, final Class<?> type, final long start) {
+        listener.timed(phase, type, System.nanoTime() - start);
+    }
+
+    /**
+     * @return a variable for {@code o} if it has been seen before, otherwise {@code expression}
+     */
+    private String hoist(final Object o, final Dispatch dispatch, final String expression) {
+        final String existing = sharedNameOf(o);
+        if (existing == null) {
+            shared.put(o, SEEN_ONCE);
+            return expression;
+        } else if (existing != SEEN_ONCE) {
+            return existing;
+        }
+
+        final String name = getObjectVariableName(dispatch.metadata);
+        sink.beginDeclaration(dispatch.metadata.publicTypeName(), name).append(expression).endStatement();
+        shared.put(o, name);
+        return name;
+    }
+
+    private String sharedNameOf(final Object o) {
+        final String name = shared.get(o);
+        return name != null || parent == null ? name : parent.sharedNameOf(o);
+    }
+
+    private void complete(final Object o, final String objectVariableName) {
+        inProgress.remove(o);
+        if (options.hoisting() && emitters.dispatch(o.getClass()).immutable) {
+            shared.putIfAbsent(o, objectVariableName);
+        }
+
+        final List<String> statements = deferred.remove(o);
+        if (statements != null) {
+            for (final String statement : statements) {
+                sink.beginStatement().append(statement).endStatement();
+            }
+        }
+        expression = objectVariableName;
+        truncated = false;
+    }
+
+    /**
+     * Write the instantiation of {@code o}
+     *
+     * @return a frame to populate {@code o}, or null if it needs no further population
+     */
+    private Frame start(
+        final Object o,
+        final Object contents,
+        final Dispatch dispatch,
+        final String objectVariableName
+    ) {
+        switch (dispatch.kind) {
+            case ARRAY:
+                return startArray(o, contents, dispatch.metadata, dispatch.declaredType, objectVariableName);
+
+            case LIST:
+            case SET:
+                final Collection<?> collection = (Collection<?>) contents;
+                writeInstantiation(
+                    dispatch.declaredType,
+                    objectVariableName,
+                    instantiation(dispatch, collection.size())
+                );
+                return startCollection(o, collection, dispatch, objectVariableName);
+
+            case ENUM_SET:
+                writeInstantiation(
+                    dispatch.declaredType,
+                    objectVariableName,
+                    "java.util.EnumSet.noneOf(" + canonicalName(enumSetElementType((EnumSet<?>) contents)) + ".class)"
+                );
+                return startCollection(o, (Collection<?>) contents, dispatch, objectVariableName);
+
+            case MAP:
+            case ENUM_MAP:
+                final Map<?, ?> map = (Map<?, ?>) contents;
+                final String instantiation =
+                    dispatch.kind == Dispatch.Kind.MAP
+                        ? instantiation(dispatch, map.size())
+                        : "new java.util.EnumMap(" + canonicalName(enumMapKeyType((EnumMap<?, ?>) map)) + ".class)";
+                writeInstantiation(dispatch.declaredType, objectVariableName, instantiation);
+
+                if (isParallel(map.size())) {
+                    writeParallel(map.entrySet().toArray(), true, true, objectVariableName);
+                    return null;
+                }
+                return new MapFrame(o, map, objectVariableName, options.bulkInitialisation());
+
+            default:
+                final FieldAccess fields = options.fieldAccess() ? dispatch.metadata.fieldAccess() : null;
+                if (fields != null) {
+                    return startFields(o, contents, dispatch, fields, objectVariableName);
+                }
+
+                // Handle generic object fields via cached property accessors
+                writeInstantiation(dispatch.declaredType, objectVariableName, dispatch.instantiation);
+                final long start = listening ? System.nanoTime() : 0;
+                final List<ClassMetadata.Property> properties = dispatch.metadata.properties();
+                final CompiledBean compiled = options.beanCompilation() ? dispatch.metadata.compiledBean() : null;
+                if (listening) {
+                    timed(CodeGenListener.Phase.INTROSPECTION, o.getClass(), start);
+                }
+                return new BeanFrame(
+                    o,
+                    contents == o ? null : (Object[]) contents,
+                    objectVariableName,
+                    properties,
+                    compiled
+                );
+        }
+    }
+
+    private Frame startFields(
+        final Object o,
+        final Object contents,
+        final Dispatch dispatch,
+        final FieldAccess fields,
+        final String objectVariableName
+    ) {
+        if (fields.construction() == FieldAccess.Construction.ASSIGNMENT) {
+            writeInstantiation(
+                dispatch.declaredType,
+                objectVariableName,
+                fields.construct(dispatch.metadata, Collections.emptyList())
+            );
+        } else {
+            unconstructed.put(o, Boolean.TRUE);
+        }
+        return new FieldFrame(o, contents == o ? null : (Object[]) contents, objectVariableName, dispatch, fields);
+    }
+
+    /**
+     * @return the instantiation expression for a collection or map of {@code size} elements
+     */
+    private String instantiation(final Dispatch dispatch, final int size) {
+        return options.presizing()
+            ? dispatch.instantiation(Math.min(size, options.maxElements()))
+            : dispatch.instantiation;
+    }
+
+    private static String canonicalName(final Class<?> type) {
+        return ClassMetadata.of(type).canonicalName();
+    }
+
+    static Class<?> enumSetElementType(final EnumSet<?> set) {
+        // An EnumSet and its complement together hold every constant
+        final EnumSet<?> nonEmpty = set.isEmpty() ? EnumSet.complementOf(set) : set;
+        if (nonEmpty.isEmpty()) {
+            throw new IllegalArgumentException("Cannot determine the element type of an EnumSet of an empty enum");
+        }
+        return nonEmpty.iterator().next().getDeclaringClass();
+    }
+
+    static Class<?> enumMapKeyType(final EnumMap<?, ?> map) {
+        if (!map.isEmpty()) {
+            return map.keySet().iterator().next().getDeclaringClass();
+        }
+
+        // The key type of an empty map is only available reflectively
+        try {
+            final Field keyType = EnumMap.class.getDeclaredField("keyType");
+            keyType.setAccessible(true);
+            return (Class<?>) keyType.get(map);
+        } catch (final ReflectiveOperationException | RuntimeException e) {
+            throw new IllegalArgumentException("Cannot determine the key type of an empty EnumMap", e);
+        }
+    }
+
+    private Frame startArray(
+        final Object o,
+        final Object array,
+        final ClassMetadata metadata,
+        final String typeName,
+        final String objectVariableName
+    ) {
+        sink.beginDeclaration(typeName, objectVariableName);
+
+        if (array instanceof byte[] && ((byte[]) array).length >= options.base64Threshold()) {
+            Literals.writeBase64(sink, (byte[]) array);
+            sink.endStatement();
+            return null;
+        } else if (array.getClass().getComponentType().isPrimitive()) {
+            final int length = Array.getLength(array);
+            final Class<?> componentType = array.getClass().getComponentType();
+            if (Literals.maxInitialiserLength(componentType, length) <= sink.maxStatementLength()) {
+                Literals.writeInitialiser(sink.beginArrayInitialiser(typeName), array);
+                sink.endStatement();
+            } else {
+                sink.append(metadata.arrayCreation(length)).endStatement();
+                writeSegments(array, length, typeName, objectVariableName);
+            }
+            return null;
+        } else {
+            final Object[] elements = (Object[]) array;
+            sink.append(metadata.arrayCreation(elements.length)).endStatement();
+            return new ArrayFrame(o, elements, objectVariableName);
+        }
+    }
+
+    /**
+     * Copy the elements of a primitive array into {@code name} from initialisers of separate statements, so
+     * none is too large for a method
+     */
+    private void writeSegments(final Object array, final int length, final String typeName, final String name) {
+        final int maxLength = sink.maxStatementLength() - SEGMENT_OVERHEAD - name.length();
+        for (int from = 0; from < length; ) {
+            sink.beginStatement().append("System.arraycopy(new ").append(typeName).append(' ');
+            final int to = Literals.writeInitialiser(sink, array, from, maxLength);
+            sink.append(", 0, ").append(name).append(", ").append(from).append(", ").append(to - from).append(')')
+                .endStatement();
+            from = to;
+        }
+    }
+
+    /**
+     * @return whether the population of {@code frame} ends before its next element, because a limit has
+     * been reached
+     */
+    private boolean isCutShort(final Frame frame) {
+        if (isStopped(frame.name)) {
+            return true;
+        }
+        if (frame.elements == options.maxElements()) {
+            truncateElements(frame.name, frame.elements, frame.size);
+            return true;
+        }
+        ++frame.elements;
+        return false;
+    }
+
+    /**
+     * @return whether the output or time limit has been reached, ending the population of every instance
+     */
+    private boolean isStopped(final String variableName) {
+        if (!stopped) {
+            if (sink.written() >= outputLimit) {
+                stopped = true;
+                truncate(
+                    Truncation.Reason.OUTPUT,
+                    variableName,
+                    "output limit of " + options.maxOutput() + " characters reached"
+                );
+            } else if (timeLimited && (++clock & CLOCK_MASK) == 0 && System.nanoTime() - deadline >= 0) {
+                stopped = true;
+                truncate(
+                    Truncation.Reason.TIME,
+                    variableName,
+                    "time limit of " + options.timeLimit().toMillis() + "ms reached"
+                );
+            }
+        }
+        return stopped;
+    }
+
+    private void truncateElements(final String variableName, final int generated, final int size) {
+        truncate(Truncation.Reason.ELEMENTS, variableName, generated + " of " + size + " elements");
+    }
+
+    private void truncate(final Truncation.Reason reason, final String variableName, final String detail) {
+        final Truncation truncation = new Truncation(reason, variableName, variableName + ": " + detail);
+        truncations.add(truncation);
+        if (!stack.isEmpty()) {
+            // The comment follows what was generated before it
+            stack.peek().flush();
+        }
+        sink.comment("truncated " + truncation);
+    }
+
+    /**
+     * Write {@code target[index] = expression}, deferring it if the expression refers to an unconstructed
+     * instance
+     */
+    private void writeElement(final String target, final int index, final String expression) {
+        final Object referenced = takeAwaited(false);
+
+        if (referenced == null) {
+            sink.beginStatement()
+                .append(target)
+                .append('[')
+                .append(index)
+                .append("] = ")
+                .append(expression)
+                .endStatement();
+        } else {
+            defer(referenced, target + '[' + index + "] = " + expression);
+        }
+    }
+
+    /**
+     * Write {@code target.method(arguments)}, deferring it until {@code referenced} is complete, if not null
+     */
+    private void writeCall(final String target, final String method, final String arguments, final Object referenced) {
+
+        if (referenced == null) {
+            sink.beginStatement()
+                .append(target)
+                .append('.')
+                .append(method)
+                .append('(')
+                .append(arguments)
+                .append(')')
+                .endStatement();
+        } else {
+            defer(referenced, target + '.' + method + '(' + arguments + ')');
+        }
+    }
+
+    /**
+     * Write {@code target.field = expression}, deferring it if the expression refers to an unconstructed
+     * instance
+     */
+    private void writeAssignment(final String target, final String field, final String expression) {
+        final Object referenced = takeAwaited(false);
+
+        if (referenced == null) {
+            sink.beginStatement()
+                .append(target)
+                .append('.')
+                .append(field)
+                .append(" = ")
+                .append(expression)
+                .endStatement();
+        } else {
+            defer(referenced, target + '.' + field + " = " + expression);
+        }
+    }
+
+    private void defer(final Object referenced, final String statement) {
+        deferred.computeIfAbsent(referenced, k -> new ArrayList<>()).add(statement);
+    }
+
+    /**
+     * @return the in-progress instance that the expression just written refers to, if a statement using the
+     * expression must wait for it to complete, otherwise null. A statement waits if {@code hashing} (its target
+     * would hash or compare the incomplete instance, as a set does its elements and a map its keys), or if
+     * the instance is not yet constructed, so has no variable. Otherwise it is written in place, keeping the
+     * order of lists and arrays.
+     */
+    private Object takeAwaited(final boolean hashing) {
+        final Object referenced = takeBackReference();
+        return referenced != null && (hashing || isUnconstructed(referenced)) ? referenced : null;
+    }
+
+    private Object takeBackReference() {
+        final Object referenced = backReference;
+        backReference = null;
+        return referenced;
+    }
+
+    /**
+     * @return whether a collection hashes or compares its elements, or may, so cannot take an incomplete
+     * instance; only lists are known not to
+     */
+    private static boolean isHashing(final Collection<?> collection) {
+        return !(collection instanceof List);
+    }
+
+    private void noteBackReference(final Object o) {
+        final Integer depth = depthOf(o);
+        if (depth != null && (backReference == null || depth < depthOf(backReference))) {
+            backReference = o;
+        }
+    }
+
+    private String nameOf(final Object o) {
+        final String name = names.get(o);
+        return name != null || parent == null ? name : parent.nameOf(o);
+    }
+
+    private boolean isUnconstructed(final Object o) {
+        return unconstructed.containsKey(o) || parent != null && parent.isUnconstructed(o);
+    }
+
+    private Integer depthOf(final Object o) {
+        final Integer depth = inProgress.get(o);
+        return depth != null || parent == null ? depth : parent.depthOf(o);
+    }
+
+    private void writeInstantiation(final String declaredType, final String variableName, final String instantiation) {
+        sink.beginDeclaration(declaredType, variableName)
+            .append(instantiation)
+            .endStatement();
+    }
+
+    private Frame startCollection(
+        final Object o,
+        final Collection<?> collection,
+        final Dispatch dispatch,
+        final String objectVariableName
+    ) {
+        if (isParallel(collection.size())) {
+            writeParallel(collection.toArray(), false, isHashing(collection), objectVariableName);
+            return null;
+        }
+        final boolean bulk = options.bulkInitialisation() && dispatch.standardCollection;
+        return new CollectionFrame(o, collection, objectVariableName, bulk);
+    }
+
+    private void writeEntry(final Map.Entry<?, ?> entry, final String objectVariableName) {
+        final String keyExpression = write(entry.getKey());
+        final Object keyBackReference = takeBackReference();
+        if (truncated) {
+            return;
+        }
+
+        final String valueExpression = write(entry.getValue());
+        final Object valueAwaited = takeAwaited(false);
+        if (truncated) {
+            return;
+        }
+        writeCall(
+            objectVariableName,
+            "put",
+            keyExpression + ", " + valueExpression,
+            awaited(keyBackReference, valueAwaited)
+        );
+    }
+
+    /**
+     * @return which of the instances awaited by the key and value of an entry completes last, if either
+     */
+    private Object awaited(final Object key, final Object value) {
+        // The shallower completes last
+        return key == null || value != null && depthOf(value) < depthOf(key) ? value : key;
+    }
+
+    private boolean isParallel(final int size) {
+        // Ranges are not themselves split
+        return parent == null && size >= options.parallelThreshold();
+    }
+
+    /**
+     * Generate {@code items} (collection elements or map entries) in ranges on the fork/join pool, then
+     * replay the output of each range in order
+     */
+    private void writeParallel(
+        final Object[] all,
+        final boolean entries,
+        final boolean hashing,
+        final String objectVariableName
+    ) {
+        final Object[] items = all.length > options.maxElements() ? Arrays.copyOf(all, options.maxElements()) : all;
+        final int rangeSize = options.parallelRangeSize();
+        final CodeGenerator[] ranges = new CodeGenerator[(items.length + rangeSize - 1) / rangeSize];
+
+        // Ranges depend only on the item count, so names (and output limits) do not depend on scheduling
+        final String scope = "_" + session.nextObjectId() + '_';
+        final long rangeOutputLimit =
+            outputLimit == Long.MAX_VALUE
+                ? Long.MAX_VALUE
+                : Math.max(0, outputLimit - sink.written()) / Math.max(1, ranges.length);
+        for (int i = 0; i < ranges.length; ++i) {
+            ranges[i] = new CodeGenerator(this, scope + i + '_', objectVariableName, rangeOutputLimit);
+        }
+        options.parallelPool()
+            .invoke(new RangeTask(ranges, items, entries, hashing, objectVariableName, 0, ranges.length));
+
+        for (final CodeGenerator range : ranges) {
+            ((RecordingSink) range.sink).replay(sink);
+            truncations.addAll(range.truncations);
+
+            // Instances now declared in the parent scope
+            for (final Map.Entry<Object, String> entry : range.names.entrySet()) {
+                names.putIfAbsent(entry.getKey(), entry.getValue());
+            }
+            for (final Map.Entry<Object, String> entry : range.shared.entrySet()) {
+                shared.merge(
+                    entry.getKey(),
+                    entry.getValue(),
+                    (name, rangeName) -> name == SEEN_ONCE ? rangeName : name
+                );
+            }
+
+            // What remains refers to instances in progress in this generator
+            for (final Map.Entry<Object, List<String>> entry : range.deferred.entrySet()) {
+                deferred.computeIfAbsent(entry.getKey(), k -> new ArrayList<>()).addAll(entry.getValue());
+            }
+        }
+
+        if (items != all) {
+            truncateElements(objectVariableName, items.length, all.length);
+        }
+    }
+
+    private static final class RangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final CodeGenerator[] ranges;
+        private final Object[] items;
+        private final boolean entries;
+        private final boolean hashing;
+        private final String objectVariableName;
+        private final int from;
+        private final int to;
+
+        RangeTask(
+            final CodeGenerator[] ranges,
+            final Object[] items,
+            final boolean entries,
+            final boolean hashing,
+            final String objectVariableName,
+            final int from,
+            final int to
+        ) {
+            this.ranges = ranges;
+            this.items = items;
+            this.entries = entries;
+            this.hashing = hashing;
+            this.objectVariableName = objectVariableName;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                final int middle = (from + to) >>> 1;
+                invokeAll(
+                    new RangeTask(ranges, items, entries, hashing, objectVariableName, from, middle),
+                    new RangeTask(ranges, items, entries, hashing, objectVariableName, middle, to)
+                );
+            } else {
+                final CodeGenerator range = ranges[from];
+                final int rangeSize = range.options.parallelRangeSize();
+                final int end = Math.min(items.length, (from + 1) * rangeSize);
+                for (int i = from * rangeSize; i < end && !range.isStopped(objectVariableName); ++i) {
+                    if (entries) {
+                        range.writeEntry((Map.Entry<?, ?>) items[i], objectVariableName);
+                    } else {
+                        final String expression = range.write(items[i]);
+                        if (!range.truncated) {
+                            range.writeCall(objectVariableName, "add", expression, range.takeAwaited(hashing));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The population of an instance, advanced a step at a time. A step ends either when the instance is
+     * complete, or when the frame for a referenced instance has been pushed. In the latter case the next step
+     * resumes with the expression for that instance in {@link CodeGenerator#expression}.
+     */
+    private abstract static class Frame {
+        final Object o;
+        final String name;
+
+        // Whether the frame is waiting on the expression of a pushed frame
+        boolean waiting;
+
+        // Number of elements started, and the total, for collections, maps and arrays
+        int elements;
+        final int size;
+
+        Frame(final Object o, final String name, final int size) {
+            this.o = o;
+            this.name = name;
+            this.size = size;
+        }
+
+        /**
+         * @return whether the instance is complete
+         */
+        abstract boolean step();
+
+        /**
+         * Write the population statements held back to be written in bulk
+         */
+        void flush() {
+        }
+
+        /**
+         * @return whether the frame populates a named instance, rather than wrapping the expression of a value
+         */
+        boolean isInstance() {
+            return true;
+        }
+    }
+
+    /**
+     * Generates the contents of a value with a {@link BuiltInEmitters.Wrapping} emitter, then wraps their
+     * expression, leaving it in {@link CodeGenerator#expression}
+     */
+    private final class WrapperFrame extends Frame {
+        private final Object contents;
+        private final BuiltInEmitters.Wrapping wrapping;
+
+        // The frame of the instance the value belongs to, if any
+        private final Frame enclosing;
+
+        WrapperFrame(
+            final Object o,
+            final Object contents,
+            final BuiltInEmitters.Wrapping wrapping,
+            final Frame enclosing
+        ) {
+            super(o, enclosing != null ? enclosing.name : container, 0);
+            this.contents = contents;
+            this.wrapping = wrapping;
+            this.enclosing = enclosing;
+        }
+
+        @Override
+        boolean step() {
+            if (!waiting && enter(contents)) {
+                waiting = true;
+                return false;
+            }
+            waiting = false;
+            if (!truncated) {
+                expression = wrapping.wrap(o, expression);
+            }
+            return true;
+        }
+
+        @Override
+        void flush() {
+            if (enclosing != null) {
+                enclosing.flush();
+            }
+        }
+
+        @Override
+        boolean isInstance() {
+            return false;
+        }
+    }
+
+    private final class CollectionFrame extends Frame {
+        private final Iterator<?> items;
+        private final boolean hashing;
+
+        // With bulk initialisation, the expressions of the elements not yet added
+        private final List<String> pending;
+
+        CollectionFrame(final Object o, final Collection<?> collection, final String name, final boolean bulk) {
+            super(o, name, collection.size());
+            this.items = collection.iterator();
+            this.hashing = isHashing(collection);
+            this.pending = bulk ? new ArrayList<>() : null;
+        }
+
+        @Override
+        boolean step() {
+            if (waiting) {
+                waiting = false;
+                add(expression);
+            }
+
+            // Generate the code for each item in the collection
+            while (items.hasNext()) {
+                if (isCutShort(this)) {
+                    flush();
+                    return true;
+                }
+                if (enter(items.next())) {
+                    waiting = true;
+                    return false;
+                }
+                add(expression);
+            }
+            flush();
+            return true;
+        }
+
+        private void add(final String expression) {
+            if (truncated) {
+                return;
+            }
+            final Object awaited = takeAwaited(hashing);
+            if (pending == null || awaited != null) {
+                flush();
+                writeCall(name, "add", expression, awaited);
+            } else {
+                pending.add(expression);
+                if (pending.size() == BULK_ELEMENTS) {
+                    flush();
+                }
+            }
+        }
+
+        @Override
+        void flush() {
+            if (pending == null || pending.isEmpty()) {
+                return;
+            }
+
+            sink.beginStatement().append(name);
+            if (pending.size() == 1) {
+                // As Arrays.asList would spread a single array
+                sink.append(".add(").append(pending.get(0));
+            } else {
+                sink.append(".addAll(java.util.Arrays.asList(").append(String.join(", ", pending)).append(')');
+            }
+            sink.append(')').endStatement();
+            pending.clear();
+        }
+    }
+
+    private final class MapFrame extends Frame {
+        private final Iterator<? extends Map.Entry<?, ?>> entries;
+
+        private Map.Entry<?, ?> entry;
+        private boolean awaitingKey;
+        private String keyExpression;
+        private Object keyBackReference;
+
+        // With bulk initialisation, the expressions of the keys and values not yet put, alternately
+        private final List<String> pending;
+
+        MapFrame(final Object o, final Map<?, ?> map, final String name, final boolean bulk) {
+            super(o, name, map.size());
+            this.entries = map.entrySet().iterator();
+            this.pending = bulk ? new ArrayList<>() : null;
+        }
+
+        @Override
+        boolean step() {
+            if (waiting) {
+                waiting = false;
+                if (awaitingKey) {
+                    if (keyEntered()) {
+                        return false;
+                    }
+                } else {
+                    valueEntered();
+                }
+            }
+
+            // Generate the code for each item in the map
+            while (entries.hasNext()) {
+                if (isCutShort(this)) {
+                    flush();
+                    return true;
+                }
+                entry = entries.next();
+                awaitingKey = true;
+                if (enter(entry.getKey())) {
+                    waiting = true;
+                    return false;
+                }
+                if (keyEntered()) {
+                    return false;
+                }
+            }
+            flush();
+            return true;
+        }
+
+        /**
+         * @return whether a frame was pushed for the value
+         */
+        private boolean keyEntered() {
+            awaitingKey = false;
+            keyExpression = expression;
+            keyBackReference = takeBackReference();
+            if (truncated) {
+                return false;
+            }
+
+            if (enter(entry.getValue())) {
+                waiting = true;
+                return true;
+            }
+            valueEntered();
+            return false;
+        }
+
+        private void valueEntered() {
+            final Object valueAwaited = takeAwaited(false);
+            if (truncated) {
+                return;
+            }
+            final Object awaited = awaited(keyBackReference, valueAwaited);
+            if (pending == null || awaited != null) {
+                flush();
+                writeCall(name, "put", keyExpression + ", " + expression, awaited);
+            } else {
+                pending.add(keyExpression);
+                pending.add(expression);
+                if (pending.size() == 2 * BULK_ELEMENTS) {
+                    flush();
+                }
+            }
+        }
+
+        @Override
+        void flush() {
+            if (pending == null || pending.isEmpty()) {
+                return;
+            }
+
+            if (pending.size() == 2) {
+                sink.beginStatement()
+                    .append(name)
+                    .append(".put(")
+                    .append(pending.get(0))
+                    .append(", ")
+                    .append(pending.get(1))
+                    .append(')')
+                    .endStatement();
+            } else {
+                final String items = getObjectVariableName(ClassMetadata.of(Object[].class));
+                sink.beginDeclaration("Object[]", items)
+                    .append("new Object[] {")
+                    .append(String.join(", ", pending))
+                    .append('}')
+                    .endStatement();
+                sink.beginStatement()
+                    .append("for (int i = 0; i < ")
+                    .append(items)
+                    .append(".length; i += 2) ")
+                    .append(name)
+                    .append(".put(")
+                    .append(items)
+                    .append("[i], ")
+                    .append(items)
+                    .append("[i + 1])")
+                    .endStatement();
+            }
+            pending.clear();
+        }
+    }
+
+    private final class BeanFrame extends Frame {
+        private final List<ClassMetadata.Property> properties;
+        private final CompiledBean compiled;
+
+        // Property values read in advance, otherwise null
+        private final Object[] values;
+        private int index;
+
+        BeanFrame(
+            final Object bean,
+            final Object[] values,
+            final String name,
+            final List<ClassMetadata.Property> properties,
+            final CompiledBean compiled
+        ) {
+            super(bean, name, 0);
+            this.properties = properties;
+            this.compiled = compiled;
+            this.values = values;
+        }
+
+        @Override
+        boolean step() {
+            if (waiting) {
+                waiting = false;
+                set(properties.get(index - 1));
+            }
+
+            // preamble code for each object field plus setting the value via setter
+            while (index < properties.size()) {
+                if (isStopped(name)) {
+                    return true;
+                }
+                final ClassMetadata.Property p = properties.get(index++);
+                final long start = listening ? System.nanoTime() : 0;
+                final Object value;
+                if (values != null) {
+                    value = values[index - 1];
+                } else if (compiled == null) {
+                    value = p.read(o);
+                } else {
+                    final CompiledBean.Slot slot = compiled.slot(index - 1);
+                    if (primitiveLiterals && slot.isPrimitive()) {
+                        // No back reference is pending, as none can be taken by a primitive value
+                        slot.appendLiteral(sink.beginStatement().append(name).append(slot.callPrefix()).buffer, o);
+                        sink.append(')').endStatement();
+                        if (listening) {
+                            timed(CodeGenListener.Phase.READING, o.getClass(), start);
+                        }
+                        continue;
+                    }
+                    value = slot.read(o);
+                }
+                if (listening) {
+                    timed(CodeGenListener.Phase.READING, o.getClass(), start);
+                }
+
+                if (enter(value)) {
+                    waiting = true;
+                    return false;
+                }
+                set(p);
+            }
+            return true;
+        }
+
+        private void set(final ClassMetadata.Property p) {
+            if (!truncated) {
+                writeCall(name, p.setterName(), expression, takeAwaited(false));
+            }
+        }
+    }
+
+    private final class FieldFrame extends Frame {
+        private final Dispatch dispatch;
+        private final FieldAccess fields;
+
+        // Field values read in advance, otherwise null
+        private final Object[] values;
+
+        // The expressions of the constructor or factory arguments, null if the fields are assigned
+        private final List<String> arguments;
+        private int index;
+
+        FieldFrame(
+            final Object o,
+            final Object[] values,
+            final String name,
+            final Dispatch dispatch,
+            final FieldAccess fields
+        ) {
+            super(o, name, 0);
+            this.dispatch = dispatch;
+            this.fields = fields;
+            this.values = values;
+            this.arguments =
+                fields.construction() == FieldAccess.Construction.ASSIGNMENT ? null : new ArrayList<>(fields.size());
+        }
+
+        @Override
+        boolean step() {
+            if (waiting) {
+                waiting = false;
+                fieldEntered(fields.slot(index - 1));
+            }
+
+            while (index < fields.size()) {
+                // The arguments of a constructor are not cut short, as the instance would never be declared
+                if (arguments == null && isStopped(name)) {
+                    return true;
+                }
+                final FieldAccess.Slot slot = fields.slot(index++);
+                final long start = listening ? System.nanoTime() : 0;
+                final Object value = values != null ? values[index - 1] : slot.read(o);
+                if (listening) {
+                    timed(CodeGenListener.Phase.READING, o.getClass(), start);
+                }
+
+                if (value != null && isUnconstructed(value)) {
+                    throw new IllegalArgumentException(
+                        "Cannot generate " + dispatch.metadata.canonicalName() + '.' + slot.name() +
+                            ", which refers to an instance constructed from its fields that it is reachable from"
+                    );
+                }
+                if (enter(value)) {
+                    waiting = true;
+                    return false;
+                }
+                fieldEntered(slot);
+            }
+
+            if (arguments != null) {
+                unconstructed.remove(o);
+                writeInstantiation(dispatch.declaredType, name, fields.construct(dispatch.metadata, arguments));
+            }
+            return true;
+        }
+
+        private void fieldEntered(final FieldAccess.Slot slot) {
+            if (arguments != null) {
+                // Instances referred to are declared, if not yet complete, and the construction cannot wait
+                takeBackReference();
+                arguments.add(expression != null ? expression : "(" + canonicalName(slot.type()) + ") null");
+            } else if (truncated) {
+                // Left unassigned
+            } else if (slot.isAssignable()) {
+                writeAssignment(name, slot.name(), expression);
+            } else {
+                writeCall(
+                    FieldAssignment.class.getName(),
+                    "set",
+                    name + ", \"" + slot.name() + "\", " + expression,
+                    takeAwaited(false)
+                );
+            }
+        }
+    }
+
+    private final class ArrayFrame extends Frame {
+        private final Object[] array;
+        private int index;
+
+        ArrayFrame(final Object o, final Object[] array, final String name) {
+            super(o, name, array.length);
+            this.array = array;
+        }
+
+        @Override
+        boolean step() {
+            if (waiting) {
+                waiting = false;
+                setElement();
+            }
+
+            while (index < array.length) {
+                if (isCutShort(this)) {
+                    return true;
+                }
+                final Object element = array[index++];
+                if (element != null) {
+                    if (enter(element)) {
+                        waiting = true;
+                        return false;
+                    }
+                    setElement();
+                }
+            }
+            return true;
+        }
+
+        private void setElement() {
+            if (!truncated) {
+                writeElement(name, index - 1, expression);
+            }
+        }
+    }
+
+    static String simpleExpression(final Object o) {
+        if (o instanceof Long) {
+            return o + "L";
+        } else if (o instanceof String) {
+            return '"' + (String) o + '"';
+        } else if (o instanceof BigDecimal) {
+            return "new java.math.BigDecimal(\"" + ((BigDecimal) o).toPlainString() + "\")";
+        } else if (o instanceof Double) {
+            return Literals.appendDouble(new StringBuilder(), (Double) o).toString();
+        } else if (o instanceof Float) {
+            return Literals.appendFloat(new StringBuilder(), (Float) o).toString();
+        } else if (o instanceof Character) {
+            return Literals.appendChar(new StringBuilder(), (Character) o).toString();
+        } else if (o instanceof Short) {
+            return Literals.appendShort(new StringBuilder(), (Short) o).toString();
+        } else if (o instanceof Byte) {
+            return Literals.appendByte(new StringBuilder(), (Byte) o).toString();
+        } else {
+            return o.toString();
+        }
+    }
+
+    @Override
+    public String expression(final Object value) {
+        ++contextCalls;
+        return write(value);
+    }
+
+    @Override
+    public String declare(final String declaredType, final Class<?> type, final String initialiser) {
+        ++contextCalls;
+        final String name = getObjectVariableName(ClassMetadata.of(type));
+        sink.beginDeclaration(declaredType, name).append(initialiser).endStatement();
+        return name;
+    }
+
+    @Override
+    public void statement(final String statement) {
+        ++contextCalls;
+        sink.beginStatement().append(statement).endStatement();
+    }
+
+    private String getObjectVariableName(final ClassMetadata metadata) {
+        if (parent != null) {
+            return 'e' + metadata.variableStem() + nameScope + nextLocalId++;
+        }
+        return 'e' + metadata.variableStem() + session.nextObjectId();
+    }
+}
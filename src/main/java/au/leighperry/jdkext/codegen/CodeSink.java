@@ -0,0 +1,117 @@
+package au.leighperry.jdkext.codegen;
+
+/**
+ * Destination for generated statements.
+ * <p>
+ * Statements are assembled piecewise into a buffer, between {@link #beginStatement()} (or
+ * {@link #beginDeclaration(String, String)}) and {@link #endStatement()}, so no intermediate strings are
+ * created per statement. Subclasses decide what happens to each completed statement.
+ */
+abstract class CodeSink {
+    static final String INDENT = "    ";
+
+    final StringBuilder buffer;
+
+    // Length of the buffer once the last statement ended, and the total length and number of the statements so far
+    private int mark;
+    private long written;
+    private int statements;
+
+    CodeSink(final StringBuilder buffer) {
+        this.buffer = buffer;
+        this.mark = buffer.length();
+    }
+
+    CodeSink beginStatement() {
+        buffer.append(INDENT);
+        return this;
+    }
+
+    /**
+     * Start a local variable declaration, leaving the buffer positioned for the initialiser expression.
+     */
+    CodeSink beginDeclaration(final String type, final String name) {
+        buffer.append(INDENT).append("final ").append(type).append(' ').append(name).append(" = ");
+        return this;
+    }
+
+    /**
+     * Start the array initialiser of a declaration of {@code type}, whose elements follow in braces
+     */
+    CodeSink beginArrayInitialiser(final String type) {
+        return this;
+    }
+
+    /**
+     * @return the length of statement beyond which a large literal should be split across statements
+     */
+    int maxStatementLength() {
+        return Integer.MAX_VALUE;
+    }
+
+    final CodeSink append(final String s) {
+        buffer.append(s);
+        return this;
+    }
+
+    final CodeSink append(final char c) {
+        buffer.append(c);
+        return this;
+    }
+
+    final CodeSink append(final int i) {
+        buffer.append(i);
+        return this;
+    }
+
+    final CodeSink append(final long l) {
+        buffer.append(l);
+        return this;
+    }
+
+    final void endStatement() {
+        buffer.append(';');
+        ended();
+    }
+
+    /**
+     * Write a line comment in place of a statement
+     */
+    void comment(final String text) {
+        buffer.append(INDENT).append("// ").append(text);
+        ended();
+    }
+
+    private void ended() {
+        written += buffer.length() - mark;
+        ++statements;
+        statementEnded();
+        mark = buffer.length();
+    }
+
+    /**
+     * @return the number of characters of the statements ended so far, excluding any formatting added by
+     * the subclass
+     */
+    final long written() {
+        return written;
+    }
+
+    /**
+     * @return the number of statements (and comments) ended so far
+     */
+    final int statements() {
+        return statements;
+    }
+
+    /**
+     * Called once the buffer holds a complete statement.
+     */
+    abstract void statementEnded();
+
+    /**
+     * Called once generation is complete.
+     */
+    void flush() {
+    }
+}
@@ -0,0 +1,255 @@
+package au.leighperry.jdkext.codegen;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Specialised property access for one bean class, using classes spun by {@link LambdaMetafactory} that call
+ * each getter directly. Primitive properties are read through primitive functional interfaces, so their
+ * literals are written without boxing or dispatch.
+ * <p>
+ * Compilation is only attempted where the generated classes can link against the bean: the bean class must
+ * be visible from this library's class loader, and the bean class and getters accessible from this package.
+ * Otherwise, or if the JDK refuses, {@link #compile(Class, List)} returns null and the reflective
+ * {@link ClassMetadata.Property} accessors are used.
+ */
+final class CompiledBean {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    // Parallel to the bean's properties
+    private final Slot[] slots;
+
+    private CompiledBean(final Slot[] slots) {
+        this.slots = slots;
+    }
+
+    Slot slot(final int index) {
+        return slots[index];
+    }
+
+    /**
+     * @return the compiled accessors for the properties of {@code type}, or null if they cannot be compiled
+     */
+    static CompiledBean compile(final Class<?> type, final List<ClassMetadata.Property> properties) {
+        if (!isLinkable(type)) {
+            return null;
+        }
+
+        try {
+            final Slot[] slots = new Slot[properties.size()];
+            for (int i = 0; i < slots.length; ++i) {
+                final ClassMetadata.Property property = properties.get(i);
+                if (!isLinkable(property.readMethod())) {
+                    return null;
+                }
+                slots[i] = new Slot(type, property);
+            }
+            return new CompiledBean(slots);
+        } catch (final Throwable e) {
+            // eg LambdaConversionException, or a linkage failure spinning the class
+            return null;
+        }
+    }
+
+    private static boolean isLinkable(final Class<?> type) {
+        try {
+            if (Class.forName(type.getName(), false, CompiledBean.class.getClassLoader()) != type) {
+                return false;
+            }
+        } catch (final ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+        return Modifier.isPublic(type.getModifiers()) || isSamePackage(type);
+    }
+
+    private static boolean isLinkable(final Method method) {
+        final Class<?> declaringClass = method.getDeclaringClass();
+        return isLinkable(declaringClass) &&
+            (Modifier.isPublic(method.getModifiers()) || (!Modifier.isPrivate(method.getModifiers()) && isSamePackage(declaringClass)));
+    }
+
+    private static boolean isSamePackage(final Class<?> type) {
+        final String name = type.getName();
+        final String packagePrefix = CompiledBean.class.getName().substring(0, CompiledBean.class.getName().lastIndexOf('.') + 1);
+        return name.startsWith(packagePrefix) && name.indexOf('.', packagePrefix.length()) < 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T lambda(
+        final Class<T> functionalInterface,
+        final String methodName,
+        final MethodType erasedType,
+        final MethodHandle implementation,
+        final MethodType instantiatedType
+    ) throws Throwable {
+        final CallSite site =
+            LambdaMetafactory.metafactory(
+                LOOKUP,
+                methodName,
+                MethodType.methodType(functionalInterface),
+                erasedType,
+                implementation,
+                instantiatedType
+            );
+        return (T) site.getTarget().invoke();
+    }
+
+    /**
+     * Access to a single property.
+     */
+    static final class Slot {
+        private final Class<?> type;
+
+        // '.' + setter name + '('
+        private final String callPrefix;
+
+        // Exactly one getter is non-null, according to the property type
+        private final ToIntFunction<Object> intGetter;
+        private final ToLongFunction<Object> longGetter;
+        private final ToDoubleFunction<Object> doubleGetter;
+        private final Predicate<Object> booleanGetter;
+        private final Function<Object, Object> objectGetter;
+
+        @SuppressWarnings("unchecked")
+        Slot(final Class<?> beanType, final ClassMetadata.Property property) throws Throwable {
+            final Method readMethod = property.readMethod();
+            final Class<?> returnType = readMethod.getReturnType();
+            final MethodHandle implementation = LOOKUP.unreflect(readMethod);
+
+            this.type = returnType;
+            this.callPrefix = '.' + property.setterName() + '(';
+
+            ToIntFunction<Object> intGetter = null;
+            ToLongFunction<Object> longGetter = null;
+            ToDoubleFunction<Object> doubleGetter = null;
+            Predicate<Object> booleanGetter = null;
+            Function<Object, Object> objectGetter = null;
+
+            if (returnType == int.class || returnType == short.class || returnType == byte.class || returnType == char.class) {
+                intGetter =
+                    lambda(
+                        ToIntFunction.class,
+                        "applyAsInt",
+                        MethodType.methodType(int.class, Object.class),
+                        implementation,
+                        MethodType.methodType(int.class, beanType)
+                    );
+            } else if (returnType == long.class) {
+                longGetter =
+                    lambda(
+                        ToLongFunction.class,
+                        "applyAsLong",
+                        MethodType.methodType(long.class, Object.class),
+                        implementation,
+                        MethodType.methodType(long.class, beanType)
+                    );
+            } else if (returnType == double.class || returnType == float.class) {
+                doubleGetter =
+                    lambda(
+                        ToDoubleFunction.class,
+                        "applyAsDouble",
+                        MethodType.methodType(double.class, Object.class),
+                        implementation,
+                        MethodType.methodType(double.class, beanType)
+                    );
+            } else if (returnType == boolean.class) {
+                booleanGetter =
+                    lambda(
+                        Predicate.class,
+                        "test",
+                        MethodType.methodType(boolean.class, Object.class),
+                        implementation,
+                        MethodType.methodType(boolean.class, beanType)
+                    );
+            } else {
+                objectGetter =
+                    lambda(
+                        Function.class,
+                        "apply",
+                        MethodType.methodType(Object.class, Object.class),
+                        implementation,
+                        MethodType.methodType(Object.class, beanType)
+                    );
+            }
+
+            this.intGetter = intGetter;
+            this.longGetter = longGetter;
+            this.doubleGetter = doubleGetter;
+            this.booleanGetter = booleanGetter;
+            this.objectGetter = objectGetter;
+        }
+
+        boolean isPrimitive() {
+            return objectGetter == null;
+        }
+
+        String callPrefix() {
+            return callPrefix;
+        }
+
+        /**
+         * Append the literal value of a primitive property
+         */
+        void appendLiteral(final StringBuilder sb, final Object bean) {
+            if (intGetter != null) {
+                final int value = intGetter.applyAsInt(bean);
+                if (type == int.class) {
+                    sb.append(value);
+                } else if (type == short.class) {
+                    Literals.appendShort(sb, (short) value);
+                } else if (type == byte.class) {
+                    Literals.appendByte(sb, (byte) value);
+                } else {
+                    Literals.appendChar(sb, (char) value);
+                }
+            } else if (longGetter != null) {
+                sb.append(longGetter.applyAsLong(bean)).append('L');
+            } else if (doubleGetter != null) {
+                final double value = doubleGetter.applyAsDouble(bean);
+                if (type == double.class) {
+                    Literals.appendDouble(sb, value);
+                } else {
+                    Literals.appendFloat(sb, (float) value);
+                }
+            } else {
+                sb.append(booleanGetter.test(bean));
+            }
+        }
+
+        /**
+         * Read the (boxed, for primitives) property value
+         */
+        Object read(final Object bean) {
+            if (objectGetter != null) {
+                return objectGetter.apply(bean);
+            } else if (intGetter != null) {
+                final int value = intGetter.applyAsInt(bean);
+                if (type == int.class) {
+                    return value;
+                } else if (type == short.class) {
+                    return (short) value;
+                } else if (type == byte.class) {
+                    return (byte) value;
+                }
+                return (char) value;
+            } else if (longGetter != null) {
+                return longGetter.applyAsLong(bean);
+            } else if (doubleGetter != null) {
+                final double value = doubleGetter.applyAsDouble(bean);
+                return type == double.class ? (Object) value : (Object) (float) value;
+            }
+            return booleanGetter.test(bean);
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package au.leighperry.jdkext.codegen;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes the statements updating an object graph in place, from the state recorded by a baseline
+ * {@link Fingerprint} to the state of the current graph.
+ * <p>
+ * The baseline and current fingerprints are walked together, skipping every subtree whose hashes match. A
+ * changed bean, list, array, set or map of the same type is updated in place via a variable holding it, by
+ * setter calls, {@code set}/{@code add}/{@code put} calls and removals. Anything else that changed is
+ * replaced by a newly generated value, so sharing and cycles are only preserved in unchanged regions.
+ * <p>
+ * Updates are driven from an explicit stack, so changes at any depth are written without a deep call stack.
+ */
+final class DiffWriter {
+    private final CodeGenerator generator;
+    private final EmitterRegistry emitters;
+
+    // Updates still to be written, next first
+    private final ArrayDeque<Update> pending = new ArrayDeque<>();
+
+    // Updates found while writing the current one, in order
+    private final List<Update> found = new ArrayList<>();
+
+    DiffWriter(final CodeGenerator generator, final EmitterRegistry emitters) {
+        this.generator = generator;
+        this.emitters = emitters;
+    }
+
+    /**
+     * Write the statements updating {@code target}, last seen as {@code baseline}, to {@code o}
+     *
+     * @param current the fingerprint of {@code o}
+     * @param target  an expression for the instance to update
+     * @throws IllegalArgumentException if the instance cannot be updated in place, eg its type has changed
+     */
+    void write(final Fingerprint baseline, final Fingerprint current, final Object o, final String target) {
+        if (baseline.hash == current.hash) {
+            return;
+        }
+        if (!baseline.isUpdatableTo(current)) {
+            throw new IllegalArgumentException("Cannot update " + baseline + " in place to " + current);
+        }
+
+        pending.push(new Update(baseline, current, o, target));
+        while (!pending.isEmpty()) {
+            final Update update = pending.pop();
+            switch (update.current.kind) {
+                case BEAN:
+                    writeBean(update);
+                    break;
+                case LIST:
+                    writeList(update);
+                    break;
+                case ARRAY:
+                    writeArray(update);
+                    break;
+                case SET:
+                    writeSet(update);
+                    break;
+                default:
+                    writeMap(update);
+                    break;
+            }
+
+            for (int i = found.size() - 1; i >= 0; --i) {
+                pending.push(found.get(i));
+            }
+            found.clear();
+        }
+    }
+
+    private void writeBean(final Update update) {
+        final List<ClassMetadata.Property> properties = ClassMetadata.of(update.o.getClass()).properties();
+        final Fingerprint[] baseline = update.baseline.children;
+        final Fingerprint[] current = update.current.children;
+
+        for (int i = 0; i < current.length; ++i) {
+            if (baseline[i].hash != current[i].hash) {
+                final ClassMetadata.Property p = properties.get(i);
+                final Object value = p.read(update.o);
+                final String getterCall = update.target + '.' + p.readMethod().getName() + "()";
+                if (!updateInPlace(baseline[i], current[i], value, getterCall)) {
+                    statement(update.target, p.setterName(), generator.expression(value));
+                }
+            }
+        }
+    }
+
+    private void writeList(final Update update) {
+        final Object[] items = ((List<?>) update.o).toArray();
+        final Fingerprint[] baseline = update.baseline.children;
+        final Fingerprint[] current = update.current.children;
+
+        final int common = Math.min(baseline.length, current.length);
+        for (int i = 0; i < common; ++i) {
+            if (baseline[i].hash != current[i].hash &&
+                !updateInPlace(baseline[i], current[i], items[i], update.target + ".get(" + i + ')')) {
+                statement(update.target, "set", i + ", " + generator.expression(items[i]));
+            }
+        }
+
+        // Remove from the end, so earlier indices are unaffected
+        for (int i = baseline.length - 1; i >= current.length; --i) {
+            statement(update.target, "remove", Integer.toString(i));
+        }
+        for (int i = baseline.length; i < current.length; ++i) {
+            statement(update.target, "add", generator.expression(items[i]));
+        }
+    }
+
+    private void writeArray(final Update update) {
+        final Object[] elements = (Object[]) update.o;
+        final Fingerprint[] baseline = update.baseline.children;
+        final Fingerprint[] current = update.current.children;
+
+        for (int i = 0; i < current.length; ++i) {
+            final String element = update.target + '[' + i + ']';
+            if (baseline[i].hash != current[i].hash && !updateInPlace(baseline[i], current[i], elements[i], element)) {
+                generator.statement(element + " = " + generator.expression(elements[i]));
+            }
+        }
+    }
+
+    private void writeSet(final Update update) {
+        final Set<String> baseline = new HashSet<>(Arrays.asList(update.baseline.keys));
+        final Set<String> current = new HashSet<>(Arrays.asList(update.current.keys));
+
+        for (final String element : update.baseline.keys) {
+            if (!current.contains(element)) {
+                statement(update.target, "remove", element);
+            }
+        }
+        for (final String element : update.current.keys) {
+            if (!baseline.contains(element)) {
+                statement(update.target, "add", element);
+            }
+        }
+    }
+
+    private void writeMap(final Update update) {
+        final String[] baselineKeys = update.baseline.keys;
+        final Map<String, Integer> baseline = new HashMap<>();
+        for (int i = 0; i < baselineKeys.length; ++i) {
+            baseline.put(baselineKeys[i], i);
+        }
+        final Set<String> current = new HashSet<>(Arrays.asList(update.current.keys));
+
+        for (final String key : baselineKeys) {
+            if (!current.contains(key)) {
+                statement(update.target, "remove", key);
+            }
+        }
+
+        // In the order fingerprinted
+        final Object[] entries = ((Map<?, ?>) update.o).entrySet().toArray();
+        for (int i = 0; i < entries.length; ++i) {
+            final String key = update.current.keys[i];
+            final Fingerprint value = update.current.children[i];
+            final Integer index = baseline.get(key);
+            if (index == null || update.baseline.children[index].hash != value.hash) {
+                final Object o = ((Map.Entry<?, ?>) entries[i]).getValue();
+                if (index == null ||
+                    !updateInPlace(update.baseline.children[index], value, o, update.target + ".get(" + key + ')')) {
+                    statement(update.target, "put", key + ", " + generator.expression(o));
+                }
+            }
+        }
+    }
+
+    /**
+     * Arrange for the instance at {@code access}, last seen as {@code baseline}, to be updated in place if it
+     * can be
+     *
+     * @return whether it will be, otherwise the instance must be replaced
+     */
+    private boolean updateInPlace(
+        final Fingerprint baseline,
+        final Fingerprint current,
+        final Object o,
+        final String access
+    ) {
+        if (!baseline.isUpdatableTo(current)) {
+            return false;
+        }
+
+        final String declaredType = emitters.dispatch(o.getClass()).declaredType;
+        final String variable = generator.declare(declaredType, o.getClass(), "(" + declaredType + ") " + access);
+        found.add(new Update(baseline, current, o, variable));
+        return true;
+    }
+
+    private void statement(final String target, final String method, final String arguments) {
+        generator.statement(target + '.' + method + '(' + arguments + ')');
+    }
+
+    private static final class Update {
+        final Fingerprint baseline;
+        final Fingerprint current;
+        final Object o;
+        final String target;
+
+        Update(final Fingerprint baseline, final Fingerprint current, final Object o, final String target) {
+            this.baseline = baseline;
+            this.current = current;
+            this.o = o;
+            this.target = target;
+        }
+    }
+}
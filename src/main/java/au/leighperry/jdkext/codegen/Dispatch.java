@@ -0,0 +1,151 @@
+package au.leighperry.jdkext.codegen;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * How instances of a class are generated, resolved once per class by an {@link EmitterRegistry}.
+ */
+final class Dispatch {
+    enum Kind {
+        /** The value itself as a literal, eg numbers and strings */
+        SIMPLE,
+        ENUM,
+        EMITTER,
+        ARRAY,
+        LIST,
+        SET,
+        MAP,
+        /** An {@link java.util.EnumSet}, which is created via a factory method */
+        ENUM_SET,
+        /** An {@link java.util.EnumMap}, which is created with its key type */
+        ENUM_MAP,
+        /** Generic object, populated via its bean properties */
+        BEAN
+    }
+
+    final Kind kind;
+    final ClassMetadata metadata;
+
+    // The declared type of variables holding instances
+    final String declaredType;
+
+    // The instantiation expression for the class, where it is the same for all instances
+    final String instantiation;
+
+    final TypeEmitter emitter;
+
+    // Whether instances are never modified, so equal instances are interchangeable
+    final boolean immutable;
+
+    // How the instantiation expression is presized, if it can be
+    final Capacity capacity;
+
+    // Whether the instantiated class is a JDK collection, whose addAll is equivalent to adding each element
+    final boolean standardCollection;
+
+    enum Capacity {
+        /** No capacity constructor */
+        NONE,
+        /** A constructor taking the expected number of elements */
+        ELEMENTS,
+        /** A constructor taking the capacity of a hash table with the default load factor of 0.75 */
+        HASHED
+    }
+
+    private Dispatch(
+        final Kind kind,
+        final ClassMetadata metadata,
+        final String declaredType,
+        final String instantiation,
+        final TypeEmitter emitter,
+        final boolean immutable,
+        final Capacity capacity,
+        final boolean standardCollection
+    ) {
+        this.kind = kind;
+        this.metadata = metadata;
+        this.declaredType = declaredType;
+        this.instantiation = instantiation;
+        this.emitter = emitter;
+        this.immutable = immutable;
+        this.capacity = capacity;
+        this.standardCollection = standardCollection;
+    }
+
+    static Dispatch of(final Kind kind, final ClassMetadata metadata) {
+        final boolean immutable = kind == Kind.SIMPLE || kind == Kind.ENUM;
+        return new Dispatch(kind, metadata, metadata.canonicalName(), null, null, immutable, Capacity.NONE, false);
+    }
+
+    static Dispatch emitter(final ClassMetadata metadata, final TypeEmitter emitter, final boolean immutable) {
+        return new Dispatch(
+            Kind.EMITTER,
+            metadata,
+            metadata.canonicalName(),
+            null,
+            emitter,
+            immutable,
+            Capacity.NONE,
+            false
+        );
+    }
+
+    static Dispatch instantiated(
+        final Kind kind,
+        final ClassMetadata metadata,
+        final String declaredType,
+        final String typeName
+    ) {
+        return new Dispatch(
+            kind,
+            metadata,
+            declaredType,
+            "new " + typeName + "()",
+            null,
+            false,
+            CAPACITIES.getOrDefault(typeName, Capacity.NONE),
+            typeName.startsWith("java.util.")
+        );
+    }
+
+    Dispatch asImmutable() {
+        return new Dispatch(kind, metadata, declaredType, instantiation, emitter, true, capacity, standardCollection);
+    }
+
+    /**
+     * @return the instantiation expression for an instance that will hold {@code size} elements, presized
+     * where the class has a capacity constructor
+     */
+    String instantiation(final int size) {
+        switch (capacity) {
+            case ELEMENTS:
+                return withArgument(size);
+            case HASHED:
+                // The smallest capacity whose resize threshold is at least size, ie ceil(size / 0.75)
+                return withArgument((int) Math.min(Integer.MAX_VALUE, (size * 4L + 2) / 3));
+            default:
+                return instantiation;
+        }
+    }
+
+    private String withArgument(final int argument) {
+        return instantiation.substring(0, instantiation.length() - 1) + argument + ')';
+    }
+
+    // Only the JDK classes themselves, as a subclass may not have the constructor
+    private static final Map<String, Capacity> CAPACITIES = new HashMap<>();
+
+    static {
+        CAPACITIES.put("java.util.ArrayList", Capacity.ELEMENTS);
+        CAPACITIES.put("java.util.Vector", Capacity.ELEMENTS);
+        CAPACITIES.put("java.util.IdentityHashMap", Capacity.ELEMENTS);
+        CAPACITIES.put("java.util.concurrent.ConcurrentHashMap", Capacity.ELEMENTS);
+        CAPACITIES.put("java.util.HashMap", Capacity.HASHED);
+        CAPACITIES.put("java.util.LinkedHashMap", Capacity.HASHED);
+        CAPACITIES.put("java.util.HashSet", Capacity.HASHED);
+        CAPACITIES.put("java.util.LinkedHashSet", Capacity.HASHED);
+        CAPACITIES.put("java.util.Hashtable", Capacity.HASHED);
+        CAPACITIES.put("java.util.WeakHashMap", Capacity.HASHED);
+    }
+}
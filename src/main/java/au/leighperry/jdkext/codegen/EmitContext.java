@@ -0,0 +1,28 @@
+package au.leighperry.jdkext.codegen;
+
+/**
+ * Services available to a {@link TypeEmitter} while it generates an instance.
+ */
+public interface EmitContext {
+    /**
+     * Generate a nested value, writing any statements it needs
+     *
+     * @return the expression for {@code value}
+     */
+    String expression(Object value);
+
+    /**
+     * Write a local variable declaration
+     *
+     * @param declaredType the declared type of the variable
+     * @param type         the class of the value, naming the variable
+     * @param initialiser  the initialiser expression
+     * @return the name of the declared variable
+     */
+    String declare(String declaredType, Class<?> type, String initialiser);
+
+    /**
+     * Write a statement, which should not include the terminating semicolon
+     */
+    void statement(String statement);
+}
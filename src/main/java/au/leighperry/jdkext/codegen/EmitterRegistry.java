@@ -0,0 +1,160 @@
+package au.leighperry.jdkext.codegen;
+
+import java.math.BigDecimal;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Resolves the {@link Dispatch} for each class, combining the registered {@link TypeEmitter}s and immutable
+ * types with the built-in handling. Registries are immutable, and each caches its dispatch per class.
+ */
+final class EmitterRegistry {
+    static final EmitterRegistry DEFAULT = new EmitterRegistry(Collections.emptyMap(), Collections.emptySet());
+
+    private static final Set<Class<?>> SIMPLE_TYPES =
+        new HashSet<>(
+            Arrays.asList(
+                Boolean.class,
+                Byte.class,
+                Character.class,
+                Double.class,
+                Float.class,
+                Integer.class,
+                Long.class,
+                Short.class,
+                String.class,
+                BigDecimal.class
+            )
+        );
+
+    private final Map<Class<?>, TypeEmitter> emitters;
+    private final Set<Class<?>> immutableTypes;
+
+    private final ClassValue<Dispatch> dispatch =
+        new ClassValue<Dispatch>() {
+            @Override
+            protected Dispatch computeValue(final Class<?> type) {
+                return resolve(type);
+            }
+        };
+
+    private EmitterRegistry(final Map<Class<?>, TypeEmitter> emitters, final Set<Class<?>> immutableTypes) {
+        this.emitters = emitters;
+        this.immutableTypes = immutableTypes;
+    }
+
+    EmitterRegistry with(final Class<?> type, final TypeEmitter emitter) {
+        final Map<Class<?>, TypeEmitter> result = new LinkedHashMap<>(emitters);
+        result.put(type, emitter);
+        return new EmitterRegistry(Collections.unmodifiableMap(result), immutableTypes);
+    }
+
+    EmitterRegistry withImmutable(final Class<?> type) {
+        final Set<Class<?>> result = new HashSet<>(immutableTypes);
+        result.add(type);
+        return new EmitterRegistry(emitters, Collections.unmodifiableSet(result));
+    }
+
+    Dispatch dispatch(final Class<?> type) {
+        return dispatch.get(type);
+    }
+
+    private Dispatch resolve(final Class<?> type) {
+        final Dispatch dispatch = resolveKind(type);
+        return !dispatch.immutable && isDeclaredImmutable(type) ? dispatch.asImmutable() : dispatch;
+    }
+
+    private Dispatch resolveKind(final Class<?> type) {
+        final ClassMetadata metadata = ClassMetadata.of(type);
+
+        final TypeEmitter registered = registeredEmitter(type);
+        if (registered != null) {
+            return Dispatch.emitter(metadata, registered, false);
+        }
+
+        if (Enum.class.isAssignableFrom(type)) {
+            // Constants with bodies are subclasses of the enum
+            final Class<?> enumType = type.isEnum() ? type : type.getSuperclass();
+            return Dispatch.of(Dispatch.Kind.ENUM, ClassMetadata.of(enumType));
+        }
+
+        if (SIMPLE_TYPES.contains(type)) {
+            return Dispatch.of(Dispatch.Kind.SIMPLE, metadata);
+        }
+
+        final TypeEmitter builtIn = BuiltInEmitters.forType(type);
+        if (builtIn != null) {
+            return Dispatch.emitter(metadata, builtIn, BuiltInEmitters.isImmutable(type));
+        }
+
+        if (type.isArray()) {
+            return Dispatch.of(Dispatch.Kind.ARRAY, metadata);
+        }
+
+        final String typeName = metadata.canonicalName();
+        if (EnumSet.class.isAssignableFrom(type)) {
+            return Dispatch.instantiated(Dispatch.Kind.ENUM_SET, metadata, "Set", typeName);
+        }
+        if (EnumMap.class.isAssignableFrom(type)) {
+            return Dispatch.instantiated(Dispatch.Kind.ENUM_MAP, metadata, "Map", typeName);
+        }
+        if (List.class.isAssignableFrom(type)) {
+            // Avoid private Arrays.asList()
+            final String listTypeName = typeName.equals("java.util.Arrays.ArrayList") ? "java.util.ArrayList" : typeName;
+            return Dispatch.instantiated(Dispatch.Kind.LIST, metadata, "List", listTypeName);
+        }
+        if (Set.class.isAssignableFrom(type)) {
+            return Dispatch.instantiated(Dispatch.Kind.SET, metadata, "Set", typeName);
+        }
+        if (Map.class.isAssignableFrom(type)) {
+            return Dispatch.instantiated(Dispatch.Kind.MAP, metadata, "Map", typeName);
+        }
+
+        // TODO other collections
+
+        return Dispatch.instantiated(Dispatch.Kind.BEAN, metadata, typeName, typeName);
+    }
+
+    private boolean isDeclaredImmutable(final Class<?> type) {
+        return !immutableTypes.isEmpty() && nearestSupertype(type, immutableTypes::contains) != null;
+    }
+
+    /**
+     * @return the emitter registered for the most specific supertype of {@code type}, or null
+     */
+    private TypeEmitter registeredEmitter(final Class<?> type) {
+        return emitters.isEmpty() ? null : emitters.get(nearestSupertype(type, emitters::containsKey));
+    }
+
+    /**
+     * @return the nearest of {@code type} and its supertypes matching {@code matches}, or null
+     */
+    private static Class<?> nearestSupertype(final Class<?> type, final Predicate<Class<?>> matches) {
+        // Breadth first over the supertypes, so nearer supertypes take precedence
+        final ArrayDeque<Class<?>> pending = new ArrayDeque<>();
+        final Set<Class<?>> seen = new HashSet<>();
+        pending.add(type);
+        while (!pending.isEmpty()) {
+            final Class<?> candidate = pending.remove();
+            if (seen.add(candidate)) {
+                if (matches.test(candidate)) {
+                    return candidate;
+                }
+                if (candidate.getSuperclass() != null) {
+                    pending.add(candidate.getSuperclass());
+                }
+                Collections.addAll(pending, candidate.getInterfaces());
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,319 @@
+package au.leighperry.jdkext.codegen;
+
+import java.io.ObjectOutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Executable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Parameter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Access to the instance fields of one class, and how the generated code constructs an instance from their
+ * values, see {@link CodeGenOptions#withFieldAccess(boolean)}.
+ * <p>
+ * Fields are read through method handles resolved once per class, so reading a field costs a direct field
+ * read rather than a getter invocation.
+ */
+final class FieldAccess {
+    enum Construction {
+        /** {@code new X(f0, f1, ...)} */
+        CONSTRUCTOR,
+        /** {@code X.factory(f0, f1, ...)} */
+        FACTORY,
+        /** {@code new X()}, then an assignment per field */
+        ASSIGNMENT
+    }
+
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+
+    private final Slot[] slots;
+    private final Construction construction;
+
+    // The factory method name, or for ASSIGNMENT the instantiation expression
+    private final String creator;
+
+    // The index of the field passed as each constructor or factory argument, null for ASSIGNMENT
+    private final int[] arguments;
+
+    private FieldAccess(
+        final Slot[] slots,
+        final Construction construction,
+        final String creator,
+        final int[] arguments
+    ) {
+        this.slots = slots;
+        this.construction = construction;
+        this.creator = creator;
+        this.arguments = arguments;
+    }
+
+    int size() {
+        return slots.length;
+    }
+
+    Slot slot(final int index) {
+        return slots[index];
+    }
+
+    Construction construction() {
+        return construction;
+    }
+
+    /**
+     * @param values the expressions of the field values, in field order
+     * @return the expression constructing an instance from the expressions of its field values
+     */
+    String construct(final ClassMetadata metadata, final List<String> values) {
+        if (construction == Construction.ASSIGNMENT) {
+            return creator;
+        }
+
+        final StringBuilder joined = new StringBuilder();
+        for (final int field : arguments) {
+            if (joined.length() > 0) {
+                joined.append(", ");
+            }
+            joined.append(values.get(field));
+        }
+        switch (construction) {
+            case CONSTRUCTOR:
+                return "new " + metadata.canonicalName() + '(' + joined + ')';
+            case FACTORY:
+                return metadata.canonicalName() + '.' + creator + '(' + joined + ')';
+            default:
+                return creator;
+        }
+    }
+
+    /**
+     * @return the field access of {@code type}, or null if its fields cannot be read, do not hold its state,
+     * or it has no way of being constructed from them
+     */
+    static FieldAccess resolve(final Class<?> type, final ClassMetadata metadata) {
+        final int modifiers = type.getModifiers();
+        if (!Modifier.isPublic(modifiers) || Modifier.isAbstract(modifiers) || type.isInterface()) {
+            return null;
+        }
+
+        final List<Field> fields = instanceFields(type);
+        if (fields.isEmpty() || hasCustomSerialisation(type)) {
+            // Its state is held, or only completely held, elsewhere, eg the transient fields of java.util.Date
+            return null;
+        }
+
+        final Slot[] slots = new Slot[fields.size()];
+        try {
+            for (int i = 0; i < slots.length; ++i) {
+                final Field field = fields.get(i);
+                field.setAccessible(true);
+                slots[i] = new Slot(field, MethodHandles.lookup().unreflectGetter(field).asType(GETTER_TYPE));
+            }
+        } catch (final IllegalAccessException | RuntimeException e) {
+            // eg module encapsulation of a JDK class
+            return null;
+        }
+
+        final boolean shadowing = isShadowing(fields);
+        for (final Constructor<?> constructor : type.getConstructors()) {
+            final int[] arguments = arguments(constructor, fields, shadowing);
+            if (arguments != null) {
+                return new FieldAccess(slots, Construction.CONSTRUCTOR, null, arguments);
+            }
+        }
+
+        final Method factory = factory(type, fields, shadowing);
+        if (factory != null) {
+            return new FieldAccess(slots, Construction.FACTORY, factory.getName(), arguments(factory, fields, shadowing));
+        }
+
+        if (shadowing || hasTransientFields(type)) {
+            // Assigned by name, so only the nearest of two fields of a name could be. Nor would anything
+            // derive the transient fields, as a constructor or factory would.
+            return null;
+        }
+        final Constructor<?> noArgs;
+        try {
+            noArgs = type.getDeclaredConstructor();
+        } catch (final NoSuchMethodException e) {
+            return null;
+        }
+        final String instantiation =
+            Modifier.isPublic(noArgs.getModifiers())
+                ? "new " + metadata.canonicalName() + "()"
+                : FieldAssignment.class.getName() + ".newInstance(" + metadata.canonicalName() + ".class)";
+        return new FieldAccess(slots, Construction.ASSIGNMENT, instantiation, null);
+    }
+
+    /**
+     * @return the index of the field passed as each parameter of {@code executable}, or null if its parameters
+     * are not unambiguously the fields. Parameters are matched by name where the class was compiled with
+     * {@code -parameters}, otherwise by type in field order, which is ambiguous if two fields share a type.
+     */
+    private static int[] arguments(final Executable executable, final List<Field> fields, final boolean shadowing) {
+        final Parameter[] parameters = executable.getParameters();
+        if (parameters.length != fields.size()) {
+            return null;
+        }
+
+        final int[] result = new int[parameters.length];
+        if (!shadowing && parameters.length > 0 && parameters[0].isNamePresent()) {
+            final Map<String, Integer> indexes = new HashMap<>();
+            for (int i = 0; i < fields.size(); ++i) {
+                indexes.put(fields.get(i).getName(), i);
+            }
+
+            // Names are unique, so each field is passed once
+            for (int i = 0; i < parameters.length; ++i) {
+                final Integer index = indexes.get(parameters[i].getName());
+                if (index == null || parameters[i].getType() != fields.get(index).getType()) {
+                    return null;
+                }
+                result[i] = index;
+            }
+            return result;
+        }
+
+        final Set<Class<?>> types = new HashSet<>();
+        for (int i = 0; i < parameters.length; ++i) {
+            if (parameters[i].getType() != fields.get(i).getType() || !types.add(parameters[i].getType())) {
+                return null;
+            }
+            result[i] = i;
+        }
+        return result;
+    }
+
+    /**
+     * @return whether {@code type} or a superclass writes its own serialised form, so its fields may not be
+     * all of its state
+     */
+    private static boolean hasCustomSerialisation(final Class<?> type) {
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            try {
+                final Method writeObject = c.getDeclaredMethod("writeObject", ObjectOutputStream.class);
+                if (Modifier.isPrivate(writeObject.getModifiers())) {
+                    return true;
+                }
+            } catch (final NoSuchMethodException e) {
+                // Default serialisation, at least at this level
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasTransientFields(final Class<?> type) {
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (final Field field : c.getDeclaredFields()) {
+                final int modifiers = field.getModifiers();
+                if (Modifier.isTransient(modifiers) && !Modifier.isStatic(modifiers)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the non-static, non-transient fields of {@code type} and its superclasses, superclass fields first
+     */
+    private static List<Field> instanceFields(final Class<?> type) {
+        final Deque<Class<?>> hierarchy = new ArrayDeque<>();
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            hierarchy.push(c);
+        }
+
+        final List<Field> result = new ArrayList<>();
+        for (final Class<?> c : hierarchy) {
+            for (final Field field : c.getDeclaredFields()) {
+                final int modifiers = field.getModifiers();
+                if (!Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers) && !field.isSynthetic()) {
+                    result.add(field);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static boolean isShadowing(final List<Field> fields) {
+        final Set<String> names = new HashSet<>();
+        for (final Field field : fields) {
+            if (!names.add(field.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the public static method of {@code type} returning it from its fields, the first by name if there
+     * are several
+     */
+    private static Method factory(final Class<?> type, final List<Field> fields, final boolean shadowing) {
+        Method result = null;
+        for (final Method method : type.getMethods()) {
+            if (Modifier.isStatic(method.getModifiers()) &&
+                method.getDeclaringClass() == type &&
+                method.getReturnType() == type &&
+                arguments(method, fields, shadowing) != null &&
+                (result == null || method.getName().compareTo(result.getName()) < 0)) {
+                result = method;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Access to a single field.
+     */
+    static final class Slot {
+        private final Field field;
+        private final MethodHandle getter;
+        private final boolean assignable;
+
+        Slot(final Field field, final MethodHandle getter) {
+            this.field = field;
+            this.getter = getter;
+            final int modifiers = field.getModifiers();
+            this.assignable =
+                Modifier.isPublic(modifiers) && !Modifier.isFinal(modifiers) &&
+                    Modifier.isPublic(field.getDeclaringClass().getModifiers());
+        }
+
+        String name() {
+            return field.getName();
+        }
+
+        Class<?> type() {
+            return field.getType();
+        }
+
+        /**
+         * @return whether the generated code can assign the field directly
+         */
+        boolean isAssignable() {
+            return assignable;
+        }
+
+        Object read(final Object source) {
+            try {
+                return getter.invokeExact(source);
+            } catch (final RuntimeException | Error e) {
+                throw e;
+            } catch (final Throwable e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
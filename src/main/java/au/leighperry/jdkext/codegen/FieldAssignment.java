@@ -0,0 +1,96 @@
+package au.leighperry.jdkext.codegen;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Runtime support for code generated with {@link CodeGenOptions#withFieldAccess(boolean)}, to create instances
+ * and assign fields that the generated code cannot access directly.
+ * <p>
+ * Field setters are resolved once per field and cached, so that code assigning the fields of many instances
+ * of a class costs a method handle invocation per field.
+ */
+public final class FieldAssignment {
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+    private static final MethodHandle FIELD_SET;
+
+    static {
+        try {
+            FIELD_SET =
+                MethodHandles.lookup()
+                    .findVirtual(Field.class, "set", MethodType.methodType(void.class, Object.class, Object.class));
+        } catch (final NoSuchMethodException | IllegalAccessException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static final ClassValue<ConcurrentHashMap<String, MethodHandle>> SETTERS =
+        new ClassValue<ConcurrentHashMap<String, MethodHandle>>() {
+            @Override
+            protected ConcurrentHashMap<String, MethodHandle> computeValue(final Class<?> type) {
+                return new ConcurrentHashMap<>();
+            }
+        };
+
+    private FieldAssignment() {
+    }
+
+    /**
+     * @return a new instance of {@code type} from its no-argument constructor, whatever its access
+     */
+    public static <T> T newInstance(final Class<T> type) {
+        try {
+            final Constructor<T> constructor = type.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            return constructor.newInstance();
+        } catch (final ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create " + type.getName(), e);
+        }
+    }
+
+    /**
+     * Assign {@code value} to the field {@code name} of {@code target}, declared by its class or the nearest
+     * superclass declaring one, whatever its access and even if it is final
+     */
+    public static void set(final Object target, final String name, final Object value) {
+        final Class<?> type = target.getClass();
+        MethodHandle setter = SETTERS.get(type).get(name);
+        if (setter == null) {
+            setter = SETTERS.get(type).computeIfAbsent(name, n -> setter(type, n));
+        }
+
+        try {
+            setter.invokeExact(target, value);
+        } catch (final RuntimeException | Error e) {
+            throw e;
+        } catch (final Throwable e) {
+            throw new IllegalStateException("Cannot set " + type.getName() + '.' + name, e);
+        }
+    }
+
+    private static MethodHandle setter(final Class<?> type, final String name) {
+        Field field = null;
+        for (Class<?> c = type; c != null && field == null; c = c.getSuperclass()) {
+            try {
+                field = c.getDeclaredField(name);
+            } catch (final NoSuchFieldException e) {
+                // Declared by a superclass, if any
+            }
+        }
+        if (field == null) {
+            throw new IllegalArgumentException("No field " + type.getName() + '.' + name);
+        }
+        field.setAccessible(true);
+
+        try {
+            return MethodHandles.lookup().unreflectSetter(field).asType(SETTER_TYPE);
+        } catch (final IllegalAccessException e) {
+            // eg a final field, which reflection assigns once accessible
+            return FIELD_SET.bindTo(field).asType(SETTER_TYPE);
+        }
+    }
+}
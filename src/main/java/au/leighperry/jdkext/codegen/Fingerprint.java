@@ -0,0 +1,392 @@
+package au.leighperry.jdkext.codegen;
+
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A tree of 64-bit structural hashes of an object graph, as the baseline for generating the changes made to
+ * the graph since, see {@link CodeGenSession#getDiff(Fingerprint, Object, String)}.
+ * <p>
+ * A fingerprint holds no references to the objects of the graph, so it can be kept (or serialised) in place
+ * of a copy of them. Each bean, list, array, set and map has a node whose hash covers its whole subgraph, so
+ * unchanged regions are recognised without visiting them. Values generated as literals or by a
+ * {@link TypeEmitter} are leaves, hashed from their literal or (for emitted values) the expression emitted for
+ * them, together with the hashes of the values nested in the expression, eg the contents of an {@code Optional}.
+ * Sets and maps are only broken down by element or key where every element or key is a literal, otherwise
+ * they are leaves too. A repeat visit to an instance is a leaf identifying the first visit.
+ */
+public final class Fingerprint implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    enum Kind {
+        LEAF,
+        BEAN,
+        LIST,
+        ARRAY,
+        SET,
+        MAP
+    }
+
+    private static final Fingerprint NULL = new Fingerprint(Kind.LEAF, "null", hash("null"), null, null);
+
+    final Kind kind;
+    final String typeName;
+    final long hash;
+
+    // Property values of beans, elements of lists and arrays, values of maps, otherwise null
+    final Fingerprint[] children;
+
+    // Literals of the elements of sets and keys of maps, otherwise null
+    final String[] keys;
+
+    private Fingerprint(
+        final Kind kind,
+        final String typeName,
+        final long hash,
+        final Fingerprint[] children,
+        final String[] keys
+    ) {
+        this.kind = kind;
+        this.typeName = typeName;
+        this.hash = hash;
+        this.children = children;
+        this.keys = keys;
+    }
+
+    /**
+     * @return the fingerprint of the graph reachable from {@code o}, treating types as the built-in handling
+     * does
+     */
+    public static Fingerprint of(final Object o) {
+        return of(o, EmitterRegistry.DEFAULT);
+    }
+
+    public long hash() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        return o instanceof Fingerprint && ((Fingerprint) o).hash == hash;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(hash);
+    }
+
+    @Override
+    public String toString() {
+        return typeName + '#' + Long.toHexString(hash);
+    }
+
+    /**
+     * @return whether the object of this node can be updated in place to that of {@code other}, rather than
+     * replaced
+     */
+    boolean isUpdatableTo(final Fingerprint other) {
+        return kind != Kind.LEAF &&
+            kind == other.kind &&
+            typeName.equals(other.typeName) &&
+            (kind != Kind.ARRAY || children.length == other.children.length);
+    }
+
+    static Fingerprint of(final Object o, final EmitterRegistry emitters) {
+        return new Builder(emitters).build(o);
+    }
+
+    /**
+     * Builds fingerprints from an explicit stack of nodes, so graphs of any depth can be fingerprinted without
+     * a deep call stack.
+     */
+    private static final class Builder {
+        private final EmitterRegistry emitters;
+
+        // Order of first visit of each composite instance
+        private final IdentityHashMap<Object, Integer> visited = new IdentityHashMap<>();
+
+        private final ArrayDeque<Node> stack = new ArrayDeque<>();
+
+        Builder(final EmitterRegistry emitters) {
+            this.emitters = emitters;
+        }
+
+        Fingerprint build(final Object root) {
+            final Fingerprint leaf = leaf(root);
+            if (leaf != null) {
+                return leaf;
+            }
+            stack.push(node(root));
+
+            while (true) {
+                final Node node = stack.peek();
+                if (node.index < node.items.length) {
+                    final Object item = node.items[node.index];
+                    final Fingerprint itemLeaf = leaf(item);
+                    if (itemLeaf != null) {
+                        node.children[node.index++] = itemLeaf;
+                    } else {
+                        stack.push(node(item));
+                    }
+                } else {
+                    stack.pop();
+                    final Fingerprint fingerprint = node.finish();
+                    if (stack.isEmpty()) {
+                        return fingerprint;
+                    }
+                    final Node parent = stack.peek();
+                    parent.children[parent.index++] = fingerprint;
+                }
+            }
+        }
+
+        /**
+         * @return the fingerprint of {@code o} if it is a leaf, otherwise null
+         */
+        private Fingerprint leaf(final Object o) {
+            if (o == null) {
+                return NULL;
+            }
+
+            final Dispatch dispatch = emitters.dispatch(o.getClass());
+            final String typeName = o.getClass().getName();
+            final String literal = literal(o, dispatch);
+            if (literal != null) {
+                return new Fingerprint(Kind.LEAF, typeName, hash(literal), null, null);
+            }
+            final Integer visit = visited.get(o);
+            if (visit != null) {
+                return new Fingerprint(Kind.LEAF, typeName, hash("#" + visit), null, null);
+            }
+            if (dispatch.kind == Dispatch.Kind.ARRAY && o.getClass().getComponentType().isPrimitive()) {
+                return new Fingerprint(Kind.LEAF, typeName, primitiveArrayHash(o), null, null);
+            }
+            return null;
+        }
+
+        private Node node(final Object o) {
+            final Dispatch dispatch = emitters.dispatch(o.getClass());
+            final String typeName = o.getClass().getName();
+            if (dispatch.kind == Dispatch.Kind.EMITTER) {
+                // A value, so not a visit. The values nested in its expression are fingerprinted as its items.
+                final EmittedContext context = new EmittedContext();
+                final String expression = dispatch.emitter.emit(o, context);
+                context.text.append(expression);
+                return new Node(Kind.LEAF, typeName, hash(typeName + '=' + context.text), context.nested.toArray(), null);
+            }
+
+            visited.put(o, visited.size());
+            switch (dispatch.kind) {
+                case ARRAY:
+                    return new Node(Kind.ARRAY, typeName, (Object[]) o, null);
+
+                case LIST:
+                    return new Node(Kind.LIST, typeName, ((List<?>) o).toArray(), null);
+
+                case SET:
+                case ENUM_SET:
+                    final Object[] elements = ((Collection<?>) o).toArray();
+                    final String[] elementLiterals = literals(elements);
+                    return new Node(elementLiterals != null ? Kind.SET : Kind.LEAF, typeName, elements, elementLiterals);
+
+                case MAP:
+                case ENUM_MAP:
+                    final Object[] entries = ((Map<?, ?>) o).entrySet().toArray();
+                    final Object[] keys = new Object[entries.length];
+                    final Object[] values = new Object[entries.length];
+                    for (int i = 0; i < entries.length; ++i) {
+                        keys[i] = ((Map.Entry<?, ?>) entries[i]).getKey();
+                        values[i] = ((Map.Entry<?, ?>) entries[i]).getValue();
+                    }
+                    final String[] keyLiterals = literals(keys);
+                    if (keyLiterals != null) {
+                        return new Node(Kind.MAP, typeName, values, keyLiterals);
+                    }
+
+                    // Keys and values alternately, hashed as a whole
+                    final Object[] items = new Object[entries.length * 2];
+                    for (int i = 0; i < entries.length; ++i) {
+                        items[2 * i] = keys[i];
+                        items[2 * i + 1] = values[i];
+                    }
+                    return new Node(Kind.LEAF, typeName, items, null);
+
+                default:
+                    final List<ClassMetadata.Property> properties = dispatch.metadata.properties();
+                    final Object[] propertyValues = new Object[properties.size()];
+                    for (int i = 0; i < propertyValues.length; ++i) {
+                        propertyValues[i] = properties.get(i).read(o);
+                    }
+                    return new Node(Kind.BEAN, typeName, propertyValues, null);
+            }
+        }
+
+        /**
+         * @return the literals of every object, or null if any is not a literal
+         */
+        private String[] literals(final Object[] objects) {
+            final String[] result = new String[objects.length];
+            for (int i = 0; i < objects.length; ++i) {
+                if (objects[i] == null) {
+                    result[i] = "null";
+                } else {
+                    result[i] = literal(objects[i], emitters.dispatch(objects[i].getClass()));
+                    if (result[i] == null) {
+                        return null;
+                    }
+                }
+            }
+            return result;
+        }
+
+        private static String literal(final Object o, final Dispatch dispatch) {
+            switch (dispatch.kind) {
+                case SIMPLE:
+                    return CodeGenerator.simpleExpression(o);
+                case ENUM:
+                    return dispatch.declaredType + '.' + ((Enum<?>) o).name();
+                default:
+                    return null;
+            }
+        }
+    }
+
+    /**
+     * Collects what an emitter writes for a value, standing in a placeholder for each nested value
+     */
+    private static final class EmittedContext implements EmitContext {
+        final StringBuilder text = new StringBuilder();
+        final List<Object> nested = new ArrayList<>();
+
+        @Override
+        public String expression(final Object value) {
+            nested.add(value);
+            return "$" + (nested.size() - 1);
+        }
+
+        @Override
+        public String declare(final String declaredType, final Class<?> type, final String initialiser) {
+            text.append(declaredType).append(" = ").append(initialiser).append(';');
+            return "$d" + text.length();
+        }
+
+        @Override
+        public void statement(final String statement) {
+            text.append(statement).append(';');
+        }
+    }
+
+    /**
+     * A composite instance whose items are being fingerprinted
+     */
+    private static final class Node {
+        final Kind kind;
+        final String typeName;
+        final long seed;
+        final Object[] items;
+        final String[] keys;
+        final Fingerprint[] children;
+        int index;
+
+        Node(final Kind kind, final String typeName, final Object[] items, final String[] keys) {
+            this(kind, typeName, hash(typeName), items, keys);
+        }
+
+        Node(final Kind kind, final String typeName, final long seed, final Object[] items, final String[] keys) {
+            this.kind = kind;
+            this.typeName = typeName;
+            this.seed = seed;
+            this.items = items;
+            this.keys = keys;
+            this.children = new Fingerprint[items.length];
+        }
+
+        Fingerprint finish() {
+            long result = seed;
+            if (kind == Kind.SET || kind == Kind.MAP) {
+                // Independent of iteration order
+                long sum = 0;
+                for (int i = 0; i < children.length; ++i) {
+                    sum += mix(hash(keys[i]) * 31 + children[i].hash);
+                }
+                result = combine(result, sum);
+            } else {
+                for (final Fingerprint child : children) {
+                    result = combine(result, child.hash);
+                }
+            }
+            result = combine(result, children.length);
+
+            if (kind == Kind.LEAF) {
+                return new Fingerprint(Kind.LEAF, typeName, result, null, null);
+            }
+            return new Fingerprint(kind, typeName, result, children, keys);
+        }
+    }
+
+    private static long primitiveArrayHash(final Object array) {
+        long result = hash(array.getClass().getName());
+        if (array instanceof int[]) {
+            for (final int i : (int[]) array) {
+                result = combine(result, i);
+            }
+        } else if (array instanceof long[]) {
+            for (final long l : (long[]) array) {
+                result = combine(result, l);
+            }
+        } else if (array instanceof double[]) {
+            for (final double d : (double[]) array) {
+                result = combine(result, Double.doubleToLongBits(d));
+            }
+        } else if (array instanceof float[]) {
+            for (final float f : (float[]) array) {
+                result = combine(result, Float.floatToIntBits(f));
+            }
+        } else if (array instanceof byte[]) {
+            for (final byte b : (byte[]) array) {
+                result = combine(result, b);
+            }
+        } else if (array instanceof short[]) {
+            for (final short s : (short[]) array) {
+                result = combine(result, s);
+            }
+        } else if (array instanceof char[]) {
+            for (final char c : (char[]) array) {
+                result = combine(result, c);
+            }
+        } else {
+            for (final boolean b : (boolean[]) array) {
+                result = combine(result, b ? 1 : 0);
+            }
+        }
+        return combine(result, Array.getLength(array));
+    }
+
+    private static long hash(final String s) {
+        long result = 0x9E3779B97F4A7C15L;
+        for (int i = 0; i < s.length(); ++i) {
+            result = (result ^ s.charAt(i)) * 0x100000001B3L;
+        }
+        return mix(result + s.length());
+    }
+
+    private static long combine(final long seed, final long value) {
+        return mix(seed * 0x9E3779B97F4A7C15L + value);
+    }
+
+    // The MurmurHash3 finaliser
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB93FE53A87CDL;
+        h ^= h >>> 33;
+        return h;
+    }
+}
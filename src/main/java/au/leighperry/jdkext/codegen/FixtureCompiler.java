@@ -0,0 +1,457 @@
+package au.leighperry.jdkext.codegen;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Compiles generated code in memory with the system java compiler and loads it, so that generated code can be
+ * checked by running it without writing it to a source tree.
+ * <p>
+ * Compiled classes are cached by the SHA-256 hash of the units' names and sources, the Java version and the
+ * classpath compiled against, including the size and modification time of each of its files, so loading code
+ * identical to code loaded before against the same classes skips compilation. The cache is held in memory, up to
+ * the most recently used entries, and optionally in a directory on local disk shared by compilers in other
+ * processes, eg successive test runs. Code generated by a new
+ * {@link CodeGenSession} depends only on the object, so equal objects generate identical code.
+ * <p>
+ * A compiler is thread safe. It requires a JDK rather than a JRE at runtime.
+ */
+public final class FixtureCompiler {
+    private static final String CLASS_SUFFIX = ".class";
+
+    private static final int MAX_CACHED = 64;
+
+    private final ClassLoader parent;
+    private final Path cacheDirectory;
+
+    // Compiled classes by key, least recently used first, each compiled by the first load to need it
+    private final Map<String, FutureTask<Map<String, byte[]>>> cache;
+
+    // Fingerprints of the files of each classpath compiled against
+    private final ConcurrentHashMap<String, String> fingerprints = new ConcurrentHashMap<>();
+
+    private final LongAdder compilations = new LongAdder();
+    private final LongAdder memoryHits = new LongAdder();
+    private final LongAdder diskHits = new LongAdder();
+
+    /**
+     * A compiler caching in memory only, loading classes on the thread's context class loader
+     */
+    public FixtureCompiler() {
+        this(null, null);
+    }
+
+    /**
+     * @param parent         the class loader of the classes the generated code refers to, null for the thread's
+     *                       context class loader. The code is compiled against the classpath of the JVM and of
+     *                       any {@link URLClassLoader}s in its ancestry.
+     * @param cacheDirectory the directory to cache compiled classes in, created if need be, or null to cache in
+     *                       memory only
+     */
+    public FixtureCompiler(final ClassLoader parent, final Path cacheDirectory) {
+        this(parent, cacheDirectory, MAX_CACHED);
+    }
+
+    FixtureCompiler(final ClassLoader parent, final Path cacheDirectory, final int maxCached) {
+        this.parent = parent;
+        this.cacheDirectory = cacheDirectory;
+        this.cache = new LinkedHashMap<String, FutureTask<Map<String, byte[]>>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, FutureTask<Map<String, byte[]>>> eldest) {
+                return size() > maxCached;
+            }
+        };
+    }
+
+    /**
+     * Compile and load {@code code}, unless its classes are cached
+     *
+     * @return a supplier of new instances of the generated object, each from a call to the root class's
+     * {@code create()}. Calls are serialised, as the variables of chunked code are shared static fields.
+     * @throws IllegalStateException if the code does not compile
+     */
+    public Supplier<Object> load(final ChunkedCode code) {
+        final String classpath = classpath();
+        final String key = hash(code, classpath, fingerprint(classpath));
+        final FutureTask<Map<String, byte[]>> created =
+            new FutureTask<>(() -> readOrCompile(key, code, classpath));
+        final FutureTask<Map<String, byte[]>> cached;
+        synchronized (cache) {
+            cached = cache.putIfAbsent(key, created);
+        }
+        final FutureTask<Map<String, byte[]>> compilation;
+        if (cached != null) {
+            memoryHits.increment();
+            compilation = cached;
+        } else {
+            // Outside the lock, so loads of other code carry on meanwhile
+            created.run();
+            compilation = created;
+        }
+
+        final Map<String, byte[]> classes;
+        try {
+            classes = compilation.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted compiling " + code.root().qualifiedName(), e);
+        } catch (final ExecutionException e) {
+            // Not cached, so compiled again by the next load
+            synchronized (cache) {
+                cache.remove(key, compilation);
+            }
+            throw e.getCause() instanceof RuntimeException
+                ? (RuntimeException) e.getCause()
+                : new IllegalStateException(e.getCause());
+        }
+
+        final ClassLoader loader = new BytesClassLoader(classes, parentLoader());
+        final Method create;
+        try {
+            create = loader.loadClass(code.root().qualifiedName()).getMethod("create");
+        } catch (final ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot load " + code.root().qualifiedName(), e);
+        }
+        return new Supplier<Object>() {
+            @Override
+            public synchronized Object get() {
+                try {
+                    return create.invoke(null);
+                } catch (final InvocationTargetException e) {
+                    throw e.getCause() instanceof RuntimeException
+                        ? (RuntimeException) e.getCause()
+                        : new IllegalStateException("Cannot create " + code.root().qualifiedName(), e.getCause());
+                } catch (final IllegalAccessException e) {
+                    throw new IllegalStateException("Cannot create " + code.root().qualifiedName(), e);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return the number of times code was compiled, rather than found in the cache
+     */
+    public long compilations() {
+        return compilations.sum();
+    }
+
+    /**
+     * @return the number of times compiled classes were found in memory
+     */
+    public long memoryHits() {
+        return memoryHits.sum();
+    }
+
+    /**
+     * @return the number of times compiled classes were found in the cache directory
+     */
+    public long diskHits() {
+        return diskHits.sum();
+    }
+
+    private ClassLoader parentLoader() {
+        if (parent != null) {
+            return parent;
+        }
+        final ClassLoader context = Thread.currentThread().getContextClassLoader();
+        return context != null ? context : FixtureCompiler.class.getClassLoader();
+    }
+
+    private Map<String, byte[]> readOrCompile(final String key, final ChunkedCode code, final String classpath) {
+        if (cacheDirectory != null) {
+            final Map<String, byte[]> classes = readCached(cacheDirectory.resolve(key));
+            if (classes != null) {
+                diskHits.increment();
+                return classes;
+            }
+        }
+
+        final Map<String, byte[]> classes = compile(code, classpath);
+        compilations.increment();
+        if (cacheDirectory != null) {
+            writeCached(cacheDirectory.resolve(key), classes);
+        }
+        return classes;
+    }
+
+    private static Map<String, byte[]> readCached(final Path directory) {
+        if (!Files.isDirectory(directory)) {
+            return null;
+        }
+        final Map<String, byte[]> classes = new HashMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + CLASS_SUFFIX)) {
+            for (final Path file : files) {
+                final String fileName = file.getFileName().toString();
+                final String className = fileName.substring(0, fileName.length() - CLASS_SUFFIX.length());
+                classes.put(className, Files.readAllBytes(file));
+            }
+        } catch (final IOException e) {
+            // Compiled again, as if not cached
+            return null;
+        }
+        return classes.isEmpty() ? null : classes;
+    }
+
+    private static void writeCached(final Path directory, final Map<String, byte[]> classes) {
+        try {
+            // Written beside the entry and moved into place, so a concurrent reader never sees part of an entry
+            Files.createDirectories(directory.getParent());
+            final Path temporary = Files.createTempDirectory(directory.getParent(), directory.getFileName() + ".");
+            for (final Map.Entry<String, byte[]> entry : classes.entrySet()) {
+                Files.write(temporary.resolve(entry.getKey() + CLASS_SUFFIX), entry.getValue());
+            }
+            try {
+                Files.move(temporary, directory, StandardCopyOption.ATOMIC_MOVE);
+            } catch (final FileAlreadyExistsException | DirectoryNotEmptyException e) {
+                // Written concurrently by another compiler
+                deleteDirectory(temporary);
+            }
+        } catch (final IOException e) {
+            throw new UncheckedIOException("Cannot cache compiled classes in " + directory, e);
+        }
+    }
+
+    private static void deleteDirectory(final Path directory) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (final Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    private static Map<String, byte[]> compile(final ChunkedCode code, final String classpath) {
+        final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new IllegalStateException("No java compiler available, as the JVM is not a JDK");
+        }
+
+        final List<JavaFileObject> sources = new ArrayList<>();
+        for (final ChunkedCode.Unit unit : code.units()) {
+            sources.add(new Source(unit));
+        }
+
+        final DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        final ClassFileManager fileManager =
+            new ClassFileManager(compiler.getStandardFileManager(diagnostics, null, StandardCharsets.UTF_8));
+        final List<String> options = Arrays.asList("-nowarn", "-proc:none", "-classpath", classpath);
+        final boolean compiled = compiler.getTask(null, fileManager, diagnostics, options, null, sources).call();
+        if (!compiled) {
+            final StringBuilder message = new StringBuilder("Cannot compile ").append(code.root().qualifiedName());
+            for (final Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+                if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+                    message.append('\n').append(diagnostic);
+                }
+            }
+            throw new IllegalStateException(message.toString());
+        }
+
+        final Map<String, byte[]> classes = new HashMap<>();
+        for (final Map.Entry<String, ByteArrayOutputStream> entry : fileManager.classes.entrySet()) {
+            classes.put(entry.getKey(), entry.getValue().toByteArray());
+        }
+        return classes;
+    }
+
+    /**
+     * @return the classpath of the JVM, followed by that of the {@link URLClassLoader}s from the parent up
+     */
+    private String classpath() {
+        final Set<String> entries =
+            new LinkedHashSet<>(Arrays.asList(System.getProperty("java.class.path").split(File.pathSeparator)));
+        for (ClassLoader loader = parentLoader(); loader != null; loader = loader.getParent()) {
+            if (loader instanceof URLClassLoader) {
+                for (final URL url : ((URLClassLoader) loader).getURLs()) {
+                    if ("file".equals(url.getProtocol())) {
+                        try {
+                            entries.add(Paths.get(url.toURI()).toString());
+                        } catch (final URISyntaxException e) {
+                            // Not a path javac could use
+                        }
+                    }
+                }
+            }
+        }
+        return String.join(File.pathSeparator, entries);
+    }
+
+    /**
+     * @return a fingerprint of the names, sizes and modification times of the class files and jars of
+     * {@code classpath}, computed once for each classpath
+     */
+    private String fingerprint(final String classpath) {
+        final String cached = fingerprints.get(classpath);
+        if (cached != null) {
+            return cached;
+        }
+        // Computed outside the map's lock, at worst more than once
+        final MessageDigest digest = sha256();
+        for (final String entry : classpath.split(File.pathSeparator)) {
+            if (entry.isEmpty()) {
+                continue;
+            }
+            final Path root = Paths.get(entry);
+            try (Stream<Path> files = Files.walk(root)) {
+                files.filter(FixtureCompiler::isClassFile).sorted().forEach(
+                    file -> {
+                        update(digest, root.relativize(file).toString());
+                        try {
+                            update(digest, Files.size(file) + "@" + Files.getLastModifiedTime(file).toMillis());
+                        } catch (final IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+                );
+            } catch (final IOException | UncheckedIOException e) {
+                // Missing or unreadable, so contributing nothing to the classpath
+            }
+            update(digest, entry);
+        }
+        final String fingerprint = hex(digest.digest());
+        fingerprints.putIfAbsent(classpath, fingerprint);
+        return fingerprint;
+    }
+
+    private static boolean isClassFile(final Path file) {
+        final String name = file.getFileName().toString();
+        return (name.endsWith(CLASS_SUFFIX) || name.endsWith(".jar")) && Files.isRegularFile(file);
+    }
+
+    private static String hash(final ChunkedCode code, final String classpath, final String fingerprint) {
+        final MessageDigest digest = sha256();
+        update(digest, System.getProperty("java.specification.version"));
+        update(digest, System.getProperty("java.vm.version"));
+        update(digest, classpath);
+        update(digest, fingerprint);
+        for (final ChunkedCode.Unit unit : code.units()) {
+            update(digest, unit.qualifiedName());
+            update(digest, unit.source());
+        }
+        return hex(digest.digest());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            // Every JVM has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void update(final MessageDigest digest, final String value) {
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    private static String hex(final byte[] bytes) {
+        final StringBuilder result = new StringBuilder(bytes.length * 2);
+        for (final byte b : bytes) {
+            result.append(Character.forDigit(b >> 4 & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return result.toString();
+    }
+
+    private static final class Source extends SimpleJavaFileObject {
+        private final String source;
+
+        Source(final ChunkedCode.Unit unit) {
+            super(URI.create("string:///" + unit.qualifiedName().replace('.', '/') + ".java"), Kind.SOURCE);
+            this.source = unit.source();
+        }
+
+        @Override
+        public CharSequence getCharContent(final boolean ignoreEncodingErrors) {
+            return source;
+        }
+    }
+
+    /**
+     * Keeps compiled classes in memory, by binary name
+     */
+    private static final class ClassFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+        final Map<String, ByteArrayOutputStream> classes = new HashMap<>();
+
+        ClassFileManager(final StandardJavaFileManager fileManager) {
+            super(fileManager);
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForOutput(
+            final Location location,
+            final String className,
+            final JavaFileObject.Kind kind,
+            final FileObject sibling
+        ) {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            classes.put(className, bytes);
+            final URI uri = URI.create("bytes:///" + className.replace('.', '/') + kind.extension);
+            return new SimpleJavaFileObject(uri, kind) {
+                @Override
+                public OutputStream openOutputStream() {
+                    return bytes;
+                }
+            };
+        }
+    }
+
+    private static final class BytesClassLoader extends ClassLoader {
+        private final Map<String, byte[]> classes;
+
+        BytesClassLoader(final Map<String, byte[]> classes, final ClassLoader parent) {
+            super(parent);
+            this.classes = classes;
+        }
+
+        @Override
+        protected Class<?> findClass(final String name) throws ClassNotFoundException {
+            final byte[] bytes = classes.get(name);
+            if (bytes == null) {
+                throw new ClassNotFoundException(name);
+            }
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
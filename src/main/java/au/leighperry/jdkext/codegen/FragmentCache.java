@@ -0,0 +1,67 @@
+package au.leighperry.jdkext.codegen;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of the expressions generated for immutable values, keyed by equality, so values that recur
+ * across generations are formatted once. The least recently used expressions are evicted.
+ * <p>
+ * The cache is shared by the sessions using the options holding it, so it is split into independently locked
+ * stripes, each with an equal share of the capacity.
+ */
+final class FragmentCache {
+    private static final int STRIPES = 16;
+
+    private final int capacity;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    FragmentCache(final int capacity) {
+        this.capacity = capacity;
+        for (int i = 0; i < STRIPES; ++i) {
+            stripes[i] = new Stripe((capacity + STRIPES - 1) / STRIPES);
+        }
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the expression cached for {@code value}, or null
+     */
+    String get(final Object value) {
+        final Stripe stripe = stripe(value);
+        synchronized (stripe) {
+            return stripe.get(value);
+        }
+    }
+
+    void put(final Object value, final String expression) {
+        final Stripe stripe = stripe(value);
+        synchronized (stripe) {
+            stripe.put(value, expression);
+        }
+    }
+
+    private Stripe stripe(final Object value) {
+        final int h = value.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+    private static final class Stripe extends LinkedHashMap<Object, String> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        Stripe(final int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Object, String> eldest) {
+            return size() > capacity;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package au.leighperry.jdkext.codegen;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects each statement as a separate line.
+ */
+final class LinesSink extends CodeSink {
+    private final List<String> lines = new ArrayList<>();
+
+    LinesSink() {
+        super(new StringBuilder(128));
+    }
+
+    @Override
+    void statementEnded() {
+        lines.add(buffer.toString());
+        buffer.setLength(0);
+    }
+
+    List<String> lines() {
+        return lines;
+    }
+}
@@ -0,0 +1,196 @@
+package au.leighperry.jdkext.codegen;
+
+import java.util.Base64;
+
+/**
+ * Writes java literals for primitive values, and array initialisers for primitive arrays directly from the
+ * array without boxing the elements.
+ */
+final class Literals {
+    // Comfortably below the 65535 byte limit on a class file string constant
+    private static final int MAX_STRING_CONSTANT = 65000;
+
+    private Literals() {
+    }
+
+    /**
+     * Write {@code {e0, e1, ...}} for a primitive array
+     */
+    static void writeInitialiser(final CodeSink sink, final Object array) {
+        writeInitialiser(sink, array, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Write {@code {e0, e1, ...}} for the elements of a primitive array from {@code from}, stopping at the
+     * first element to reach {@code maxLength} characters
+     *
+     * @return the index of the element after the last written
+     */
+    static int writeInitialiser(final CodeSink sink, final Object array, final int from, final int maxLength) {
+        final StringBuilder buffer = sink.buffer;
+        sink.append('{');
+        // Allowing for the braces, and at least one element
+        final long limit = buffer.length() + Math.max(1L, maxLength - 2L);
+        int i = from;
+        if (array instanceof int[]) {
+            final int[] a = (int[]) array;
+            for (; i < a.length && buffer.length() < limit; ++i) {
+                separator(sink, i - from).append(a[i]);
+            }
+        } else if (array instanceof long[]) {
+            final long[] a = (long[]) array;
+            for (; i < a.length && buffer.length() < limit; ++i) {
+                separator(sink, i - from).append(a[i]).append('L');
+            }
+        } else if (array instanceof double[]) {
+            final double[] a = (double[]) array;
+            for (; i < a.length && buffer.length() < limit; ++i) {
+                writeDouble(separator(sink, i - from), a[i]);
+            }
+        } else if (array instanceof float[]) {
+            final float[] a = (float[]) array;
+            for (; i < a.length && buffer.length() < limit; ++i) {
+                writeFloat(separator(sink, i - from), a[i]);
+            }
+        } else if (array instanceof byte[]) {
+            final byte[] a = (byte[]) array;
+            for (; i < a.length && buffer.length() < limit; ++i) {
+                separator(sink, i - from).append(a[i]);
+            }
+        } else if (array instanceof short[]) {
+            final short[] a = (short[]) array;
+            for (; i < a.length && buffer.length() < limit; ++i) {
+                separator(sink, i - from).append(a[i]);
+            }
+        } else if (array instanceof char[]) {
+            final char[] a = (char[]) array;
+            for (; i < a.length && buffer.length() < limit; ++i) {
+                writeChar(separator(sink, i - from), a[i]);
+            }
+        } else if (array instanceof boolean[]) {
+            final boolean[] a = (boolean[]) array;
+            for (; i < a.length && buffer.length() < limit; ++i) {
+                separator(sink, i - from).append(a[i] ? "true" : "false");
+            }
+        } else {
+            throw new IllegalArgumentException("Not a primitive array: " + array.getClass());
+        }
+        sink.append('}');
+        return i;
+    }
+
+    /**
+     * @return the most characters of an initialiser for {@code length} elements of {@code componentType}
+     */
+    static long maxInitialiserLength(final Class<?> componentType, final int length) {
+        final int element;
+        if (componentType == double.class) {
+            element = "Double.NEGATIVE_INFINITY".length();
+        } else if (componentType == float.class) {
+            element = "Float.NEGATIVE_INFINITY".length();
+        } else if (componentType == long.class) {
+            element = Long.toString(Long.MIN_VALUE).length() + 1;
+        } else if (componentType == int.class) {
+            element = Integer.toString(Integer.MIN_VALUE).length();
+        } else if (componentType == char.class) {
+            element = "'\\uffff'".length();
+        } else {
+            element = Short.toString(Short.MIN_VALUE).length();
+        }
+        // With a separator after each
+        return (element + 2L) * length + 2;
+    }
+
+    /**
+     * Write an expression decoding {@code bytes} from Base64, split so no string constant exceeds the class
+     * file limit
+     */
+    static void writeBase64(final CodeSink sink, final byte[] bytes) {
+        final String encoded = Base64.getEncoder().encodeToString(bytes);
+
+        sink.append("java.util.Base64.getDecoder().decode(");
+        if (encoded.length() <= MAX_STRING_CONSTANT) {
+            sink.append('"').append(encoded).append('"');
+        } else {
+            // String.join is evaluated at runtime, so the parts are not folded into one constant
+            sink.append("String.join(\"\"");
+            for (int start = 0; start < encoded.length(); start += MAX_STRING_CONSTANT) {
+                sink.append(", \"")
+                    .append(encoded.substring(start, Math.min(encoded.length(), start + MAX_STRING_CONSTANT)))
+                    .append('"');
+            }
+            sink.append(')');
+        }
+        sink.append(')');
+    }
+
+    private static CodeSink separator(final CodeSink sink, final int i) {
+        return i == 0 ? sink : sink.append(", ");
+    }
+
+    static CodeSink writeDouble(final CodeSink sink, final double d) {
+        appendDouble(sink.buffer, d);
+        return sink;
+    }
+
+    static CodeSink writeFloat(final CodeSink sink, final float f) {
+        appendFloat(sink.buffer, f);
+        return sink;
+    }
+
+    static CodeSink writeChar(final CodeSink sink, final char c) {
+        appendChar(sink.buffer, c);
+        return sink;
+    }
+
+    static StringBuilder appendDouble(final StringBuilder sb, final double d) {
+        if (Double.isNaN(d)) {
+            return sb.append("Double.NaN");
+        } else if (Double.isInfinite(d)) {
+            return sb.append(d > 0 ? "Double.POSITIVE_INFINITY" : "Double.NEGATIVE_INFINITY");
+        } else {
+            return sb.append(d);
+        }
+    }
+
+    static StringBuilder appendFloat(final StringBuilder sb, final float f) {
+        if (Float.isNaN(f)) {
+            return sb.append("Float.NaN");
+        } else if (Float.isInfinite(f)) {
+            return sb.append(f > 0 ? "Float.POSITIVE_INFINITY" : "Float.NEGATIVE_INFINITY");
+        } else {
+            return sb.append(f).append('f');
+        }
+    }
+
+    static StringBuilder appendChar(final StringBuilder sb, final char c) {
+        sb.append('\'');
+        if (c == '\'' || c == '\\') {
+            sb.append('\\').append(c);
+        } else if (c == '\n') {
+            // Unicode escapes are translated before lexing, so would end the line
+            sb.append("\\n");
+        } else if (c == '\r') {
+            sb.append("\\r");
+        } else if (c >= 0x20 && c < 0x7f) {
+            sb.append(c);
+        } else {
+            sb.append("\\u");
+            for (int shift = 12; shift >= 0; shift -= 4) {
+                sb.append(Character.forDigit((c >> shift) & 0xf, 16));
+            }
+        }
+        return sb.append('\'');
+    }
+
+    /**
+     * Java has no short or byte literals, and an int literal is not narrowed when passed as an argument
+     */
+    static StringBuilder appendShort(final StringBuilder sb, final short s) {
+        return sb.append("(short) ").append(s);
+    }
+
+    static StringBuilder appendByte(final StringBuilder sb, final byte b) {
+        return sb.append("(byte) ").append(b);
+    }
+}
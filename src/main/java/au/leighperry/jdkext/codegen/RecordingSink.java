@@ -0,0 +1,102 @@
+package au.leighperry.jdkext.codegen;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records statements so they can later be replayed, in order, into another sink.
+ */
+final class RecordingSink extends CodeSink {
+    private static final String COMMENT = "//";
+
+    // Declared type and name of each declaration statement, COMMENT for comments, null for other statements
+    private final List<String> types = new ArrayList<>();
+    private final List<String> names = new ArrayList<>();
+
+    // Array type of each declaration with an array initialiser, otherwise null
+    private final List<String> arrayTypes = new ArrayList<>();
+
+    // Statement text, or initialiser expression for declarations
+    private final List<String> texts = new ArrayList<>();
+
+    private final int maxStatementLength;
+
+    private String type;
+    private String name;
+    private String arrayType;
+
+    /**
+     * @param maxStatementLength that of the sink into which the statements will be replayed
+     */
+    RecordingSink(final int maxStatementLength) {
+        super(new StringBuilder(128));
+        this.maxStatementLength = maxStatementLength;
+    }
+
+    @Override
+    int maxStatementLength() {
+        return maxStatementLength;
+    }
+
+    @Override
+    CodeSink beginStatement() {
+        type = null;
+        name = null;
+        arrayType = null;
+        return this;
+    }
+
+    @Override
+    CodeSink beginDeclaration(final String type, final String name) {
+        this.type = type;
+        this.name = name;
+        this.arrayType = null;
+        return this;
+    }
+
+    @Override
+    CodeSink beginArrayInitialiser(final String type) {
+        // Only the initialiser is recorded, the target sink adds what precedes it
+        arrayType = type;
+        return this;
+    }
+
+    @Override
+    void comment(final String text) {
+        types.add(COMMENT);
+        names.add(null);
+        arrayTypes.add(null);
+        texts.add(text);
+    }
+
+    @Override
+    void statementEnded() {
+        // Drop the terminator, the target sink adds its own
+        buffer.setLength(buffer.length() - 1);
+
+        types.add(type);
+        names.add(name);
+        arrayTypes.add(arrayType);
+        texts.add(buffer.toString());
+        buffer.setLength(0);
+    }
+
+    void replay(final CodeSink target) {
+        for (int i = 0; i < texts.size(); ++i) {
+            final String type = types.get(i);
+            if (type == COMMENT) {
+                target.comment(texts.get(i));
+            } else {
+                if (type == null) {
+                    target.beginStatement();
+                } else {
+                    target.beginDeclaration(type, names.get(i));
+                    if (arrayTypes.get(i) != null) {
+                        target.beginArrayInitialiser(arrayTypes.get(i));
+                    }
+                }
+                target.append(texts.get(i)).endStatement();
+            }
+        }
+    }
+}
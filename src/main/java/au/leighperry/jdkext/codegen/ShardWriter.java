@@ -0,0 +1,233 @@
+package au.leighperry.jdkext.codegen;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+
+/**
+ * Writes the units of chunked code to source files as {@link ChunkingSink} completes them, each on a thread of
+ * the options' write executor (or of threads of its own), so that generation carries on while earlier units
+ * are written. Writes are kept off the parallel pool, whose threads are for CPU-bound work.
+ * <p>
+ * Each unit is encoded into a direct buffer and written through a {@link FileChannel}, without joining its
+ * source with any other. Buffers are returned to the writer after each write and reused by the next, so no more
+ * are allocated than there are writes at once, rather than one for every unit. The number of units queued or being written is bounded, so a generation
+ * that outpaces the disk waits rather than holding every unit in memory. If generation fails, the writer is
+ * {@linkplain #abort() aborted}, leaving none of its files behind.
+ */
+final class ShardWriter implements Consumer<ChunkedCode.Unit> {
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    // Threads of the writer's own executor, and units queued or being written for each
+    private static final int WRITER_THREADS = 4;
+    private static final int IN_FLIGHT_PER_THREAD = 2;
+
+    private final Path directory;
+    private final Executor executor;
+
+    // The executor started by the writer, shut down once it is finished, otherwise null
+    private final ExecutorService ownExecutor;
+
+    private final Semaphore inFlight = new Semaphore(WRITER_THREADS * IN_FLIGHT_PER_THREAD);
+
+    // Direct buffers not in use by a write
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+
+    private final List<Path> files = new ArrayList<>();
+    private final List<Future<?>> writes = new ArrayList<>();
+
+    // Set once aborted, so writes not yet started are skipped
+    private volatile boolean aborted;
+
+    ShardWriter(final Path directory, final CodeGenOptions options) {
+        this.directory = directory;
+        if (options.writeExecutor() != null) {
+            this.executor = options.writeExecutor();
+            this.ownExecutor = null;
+        } else {
+            this.ownExecutor = Executors.newFixedThreadPool(
+                WRITER_THREADS,
+                runnable -> {
+                    final Thread thread = new Thread(runnable, "codegen-shard-writer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            );
+            this.executor = ownExecutor;
+        }
+    }
+
+    @Override
+    public void accept(final ChunkedCode.Unit unit) {
+        final Path file = fileOf(unit);
+        try {
+            inFlight.acquire();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new InterruptedIOException("Interrupted writing " + file));
+        }
+
+        final FutureTask<Void> write = new FutureTask<>(
+            () -> {
+                try {
+                    if (!aborted) {
+                        write(file, unit.source());
+                    }
+                } finally {
+                    inFlight.release();
+                }
+            },
+            null
+        );
+        try {
+            executor.execute(write);
+        } catch (final RejectedExecutionException e) {
+            // Never to run, so neither waited for nor releasing its permit
+            inFlight.release();
+            throw e;
+        }
+        files.add(file);
+        writes.add(write);
+    }
+
+    /**
+     * Wait for every unit to be written
+     *
+     * @return the files written, in the dependency order of their units
+     */
+    List<Path> finish() {
+        try {
+            for (final Future<?> write : writes) {
+                write.get();
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new InterruptedIOException("Interrupted writing to " + directory));
+        } catch (final ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException
+                ? (RuntimeException) e.getCause()
+                : new IllegalStateException(e.getCause());
+        }
+        shutdown();
+        return Collections.unmodifiableList(files);
+    }
+
+    /**
+     * Skip the writes not yet started, wait for those under way, then delete every file written
+     */
+    void abort() {
+        // Not cancelled, as a cancelled task may still be running when its get() returns
+        aborted = true;
+        boolean interrupted = false;
+        for (final Future<?> write : writes) {
+            while (true) {
+                try {
+                    write.get();
+                    break;
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                } catch (final ExecutionException e) {
+                    break;
+                }
+            }
+        }
+        shutdown();
+
+        for (final Path file : files) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (final IOException e) {
+                // Best effort, as generation has already failed
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void shutdown() {
+        buffers.clear();
+        if (ownExecutor != null) {
+            ownExecutor.shutdown();
+        }
+    }
+
+    private Path fileOf(final ChunkedCode.Unit unit) {
+        final Path packageDirectory =
+            unit.packageName().isEmpty() ? directory : directory.resolve(unit.packageName().replace('.', '/'));
+        return packageDirectory.resolve(unit.className() + ".java");
+    }
+
+    private void write(final Path file, final String source) {
+        final ByteBuffer pooled = buffers.poll();
+        final ByteBuffer bytes = pooled != null ? pooled : ByteBuffer.allocateDirect(BUFFER_SIZE);
+        try {
+            write(file, source, bytes);
+        } finally {
+            bytes.clear();
+            buffers.add(bytes);
+        }
+    }
+
+    private static void write(final Path file, final String source, final ByteBuffer bytes) {
+        final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+        final CharBuffer chars = CharBuffer.wrap(source);
+
+        try {
+            Files.createDirectories(file.getParent());
+            try (FileChannel channel = FileChannel.open(
+                file,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE
+            )) {
+                CoderResult result;
+                do {
+                    result = encoder.encode(chars, bytes, true);
+                    if (result.isError()) {
+                        result.throwException();
+                    }
+                    drain(bytes, channel);
+                } while (result.isOverflow());
+
+                while (encoder.flush(bytes).isOverflow()) {
+                    drain(bytes, channel);
+                }
+                drain(bytes, channel);
+            }
+        } catch (final IOException e) {
+            throw new UncheckedIOException("Cannot write " + file, e);
+        }
+    }
+
+    private static void drain(final ByteBuffer bytes, final FileChannel channel) throws IOException {
+        bytes.flip();
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+        bytes.clear();
+    }
+}
@@ -0,0 +1,148 @@
+package au.leighperry.jdkext.codegen;
+
+import java.lang.reflect.Array;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A shallow copy of the state of an object, taken so the object can be generated later (and elsewhere) as it
+ * was when the copy was taken, see {@link CodeGenerator#write(Snapshot)}.
+ * <p>
+ * Only the root is copied: the property (or field) values of a bean, the elements of a collection or array, or the
+ * entries of a map. The instances they refer to are read when the snapshot is generated. Taking a snapshot
+ * costs one or two array copies, with no generation or formatting.
+ */
+final class Snapshot {
+    // The object, which names the generated instance and identifies references back to it
+    final Object root;
+
+    // What the root is populated from, in the form the generator iterates
+    final Object contents;
+
+    private Snapshot(final Object root, final Object contents) {
+        this.root = root;
+        this.contents = contents;
+    }
+
+    static Snapshot of(final Object o, final CodeGenOptions options) {
+        if (o == null) {
+            return new Snapshot(null, null);
+        }
+
+        final Dispatch dispatch = options.emitters().dispatch(o.getClass());
+        switch (dispatch.kind) {
+            case ARRAY:
+                final int length = Array.getLength(o);
+                final Object array = Array.newInstance(o.getClass().getComponentType(), length);
+                System.arraycopy(o, 0, array, 0, length);
+                return new Snapshot(o, array);
+
+            case LIST:
+            case SET:
+                return new Snapshot(o, Arrays.asList(((Collection<?>) o).toArray()));
+
+            case ENUM_SET:
+                return new Snapshot(o, ((EnumSet<?>) o).clone());
+
+            case MAP:
+                return new Snapshot(o, new EntriesMap(((Map<?, ?>) o).entrySet().toArray()));
+
+            case ENUM_MAP:
+                return new Snapshot(o, ((EnumMap<?, ?>) o).clone());
+
+            case BEAN:
+                final FieldAccess fields = options.fieldAccess() ? dispatch.metadata.fieldAccess() : null;
+                return new Snapshot(
+                    o,
+                    fields != null ? fieldValues(o, fields) : propertyValues(o, dispatch.metadata, options)
+                );
+
+            default:
+                // Literals and emitted values are generated from the object itself
+                return new Snapshot(o, o);
+        }
+    }
+
+    private static Object[] propertyValues(
+        final Object bean,
+        final ClassMetadata metadata,
+        final CodeGenOptions options
+    ) {
+        final List<ClassMetadata.Property> properties = metadata.properties();
+        final CompiledBean compiled = options.beanCompilation() ? metadata.compiledBean() : null;
+
+        final Object[] values = new Object[properties.size()];
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = compiled != null ? compiled.slot(i).read(bean) : properties.get(i).read(bean);
+        }
+        return values;
+    }
+
+    private static Object[] fieldValues(final Object o, final FieldAccess fields) {
+        final Object[] values = new Object[fields.size()];
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = fields.slot(i).read(o);
+        }
+        return values;
+    }
+
+    /**
+     * A read-only map of the keys and values copied from another map, in its iteration order. The values are
+     * copied out of the entries, as a map may update an entry in place when a key is put again.
+     */
+    private static final class EntriesMap extends AbstractMap<Object, Object> {
+        // Keys and values alternately
+        private final Object[] items;
+
+        EntriesMap(final Object[] entries) {
+            this.items = new Object[entries.length * 2];
+            for (int i = 0; i < entries.length; ++i) {
+                final Map.Entry<?, ?> entry = (Map.Entry<?, ?>) entries[i];
+                items[2 * i] = entry.getKey();
+                items[2 * i + 1] = entry.getValue();
+            }
+        }
+
+        @Override
+        public Set<Map.Entry<Object, Object>> entrySet() {
+            return new AbstractSet<Map.Entry<Object, Object>>() {
+                @Override
+                public Iterator<Map.Entry<Object, Object>> iterator() {
+                    return new Iterator<Map.Entry<Object, Object>>() {
+                        private int next;
+
+                        @Override
+                        public boolean hasNext() {
+                            return next < items.length;
+                        }
+
+                        @Override
+                        public Map.Entry<Object, Object> next() {
+                            if (next >= items.length) {
+                                throw new NoSuchElementException();
+                            }
+                            final Map.Entry<Object, Object> entry =
+                                new AbstractMap.SimpleImmutableEntry<>(items[next], items[next + 1]);
+                            next += 2;
+                            return entry;
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return items.length / 2;
+                }
+            };
+        }
+    }
+}
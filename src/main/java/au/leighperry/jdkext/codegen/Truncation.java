@@ -0,0 +1,58 @@
+package au.leighperry.jdkext.codegen;
+
+/**
+ * A part of an object graph left out of the generated code because a limit set in {@link CodeGenOptions} was
+ * reached. Each truncation is also marked in the generated code by a comment.
+ *
+ * @see CodeGenSession#truncations()
+ */
+public final class Truncation {
+    public enum Reason {
+        /**
+         * An instance nested deeper than {@link CodeGenOptions#maxDepth()} was left out
+         */
+        DEPTH,
+
+        /**
+         * The elements of a collection, map or object array beyond {@link CodeGenOptions#maxElements()}
+         * were left out
+         */
+        ELEMENTS,
+
+        /**
+         * Generation stopped once {@link CodeGenOptions#maxOutput()} characters had been generated
+         */
+        OUTPUT,
+
+        /**
+         * Generation stopped once {@link CodeGenOptions#timeLimit()} had passed
+         */
+        TIME
+    }
+
+    private final Reason reason;
+    private final String variableName;
+    private final String description;
+
+    Truncation(final Reason reason, final String variableName, final String description) {
+        this.reason = reason;
+        this.variableName = variableName;
+        this.description = description;
+    }
+
+    public Reason reason() {
+        return reason;
+    }
+
+    /**
+     * @return the variable of the instance whose population was cut short
+     */
+    public String variableName() {
+        return variableName;
+    }
+
+    @Override
+    public String toString() {
+        return description;
+    }
+}
@@ -0,0 +1,21 @@
+package au.leighperry.jdkext.codegen;
+
+/**
+ * Generates code for instances of a particular type, in place of the built-in handling.
+ * <p>
+ * Register emitters with {@link CodeGenOptions#withEmitter(Class, TypeEmitter)}. An emitter applies to its
+ * registered type and to subtypes of it, with the emitter registered for the most specific type taking
+ * precedence. The emitter for a class is resolved once and cached, so dispatch costs a single lookup.
+ * <p>
+ * Emitted values are treated as values: an instance reachable more than once is emitted each time it is
+ * reached, so emitters are best suited to immutable types.
+ */
+@FunctionalInterface
+public interface TypeEmitter {
+    /**
+     * @param value   the non-null instance to generate
+     * @param context for generating nested values and writing any statements the expression depends on
+     * @return a java expression evaluating to a copy of {@code value}
+     */
+    String emit(Object value, EmitContext context);
+}
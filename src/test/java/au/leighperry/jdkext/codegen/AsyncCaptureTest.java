@@ -0,0 +1,195 @@
+package au.leighperry.jdkext.codegen;
+
+import org.jooq.lambda.Seq;
+import org.jooq.lambda.tuple.Tuple2;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class AsyncCaptureTest {
+    @Test
+    public void capture_generatesStateWhenCaptured() {
+        final List<CapturedCode> results = new ArrayList<>();
+        final List<Runnable> tasks = new ArrayList<>();
+        final AsyncCapture capture =
+            new AsyncCapture(CodeGenOptions.DEFAULTS, 16, 1, AsyncCapture.Overflow.DROP_NEWEST, tasks::add, results::add);
+
+        final CodeGenTest.Point point = new CodeGenTest.Point(1, 2);
+        final List<String> list = new ArrayList<>(Arrays.asList("a", "b"));
+        final Map<String, Integer> map = new LinkedHashMap<>();
+        map.put("a", 1);
+        final int[] array = {1, 2};
+
+        final List<Tuple2<Seq<String>, String>> expected = new ArrayList<>();
+        for (final Object o : Arrays.asList(point, list, map, array, "text")) {
+            expected.add(new CodeGenSession().getPreambleAndExpression(o));
+            assertTrue(capture.capture(o));
+        }
+
+        // Modified before the captures are generated
+        point.setX(3);
+        list.add("c");
+        map.put("a", 2);
+        array[0] = 3;
+        tasks.forEach(Runnable::run);
+
+        assertEquals(expected.size(), results.size());
+        for (int i = 0; i < expected.size(); ++i) {
+            assertEquals(expected.get(i).v1.toList(), results.get(i).preamble());
+            assertEquals(expected.get(i).v2, results.get(i).expression());
+        }
+    }
+
+    @Test
+    public void capture_cycleToRoot() {
+        final CodeGenTest.Node node = new CodeGenTest.Node("a");
+        node.setNext(node);
+
+        final List<CapturedCode> results = new ArrayList<>();
+        new AsyncCapture(CodeGenOptions.DEFAULTS, 16, 1, AsyncCapture.Overflow.DROP_NEWEST, Runnable::run, results::add)
+            .capture(node);
+
+        final Tuple2<Seq<String>, String> expected = new CodeGenSession().getPreambleAndExpression(node);
+        assertEquals(expected.v1.toList(), results.get(0).preamble());
+    }
+
+    @Test
+    public void capture_dropNewest() {
+        final List<Runnable> tasks = new ArrayList<>();
+        final List<CapturedCode> results = new ArrayList<>();
+        final AsyncCapture capture =
+            new AsyncCapture(CodeGenOptions.DEFAULTS, 2, 1, AsyncCapture.Overflow.DROP_NEWEST, tasks::add, results::add);
+
+        final boolean[] queued = {capture.capture("a"), capture.capture("b"), capture.capture("c")};
+        final int depth = capture.queued();
+        tasks.forEach(Runnable::run);
+
+        assertAll(
+            () -> assertTrue(queued[0] && queued[1] && !queued[2]),
+            () -> assertEquals(2, depth),
+            () -> assertEquals(1, tasks.size()),
+            () -> assertEquals(2, capture.captured()),
+            () -> assertEquals(1, capture.dropped()),
+            () -> assertEquals(2, capture.generated()),
+            () -> assertEquals(0, capture.queued()),
+            () -> assertEquals("\"a\"", results.get(0).expression()),
+            () -> assertEquals("\"b\"", results.get(1).expression())
+        );
+    }
+
+    @Test
+    public void capture_dropOldest() {
+        final List<Runnable> tasks = new ArrayList<>();
+        final List<CapturedCode> results = new ArrayList<>();
+        final AsyncCapture capture =
+            new AsyncCapture(CodeGenOptions.DEFAULTS, 2, 1, AsyncCapture.Overflow.DROP_OLDEST, tasks::add, results::add);
+
+        assertTrue(capture.capture("a"));
+        assertTrue(capture.capture("b"));
+        assertTrue(capture.capture("c"));
+        tasks.forEach(Runnable::run);
+
+        assertAll(
+            () -> assertEquals(3, capture.captured()),
+            () -> assertEquals(1, capture.dropped()),
+            () -> assertEquals("\"b\"", results.get(0).expression()),
+            () -> assertEquals("\"c\"", results.get(1).expression())
+        );
+    }
+
+    @Test
+    public void capture_sampled() {
+        final List<CapturedCode> results = new ArrayList<>();
+        final AsyncCapture capture =
+            new AsyncCapture(CodeGenOptions.DEFAULTS, 16, 3, AsyncCapture.Overflow.DROP_NEWEST, Runnable::run, results::add);
+
+        for (int i = 0; i < 3_000; ++i) {
+            capture.capture(i);
+        }
+
+        // One in three at random: about 1,000, with a standard deviation of about 26
+        final List<Integer> captured = Seq.seq(results).map(code -> Integer.valueOf(code.expression())).toList();
+        assertAll(
+            () -> assertEquals(3_000, capture.captured() + capture.skipped()),
+            () -> assertEquals(results.size(), capture.captured()),
+            () -> assertTrue(captured.size() > 800 && captured.size() < 1_200, "captured " + captured.size()),
+            () -> assertEquals(Seq.seq(captured).sorted().toList(), captured)
+        );
+    }
+
+    @Test
+    public void capture_consumerFailureCounted() {
+        final AsyncCapture capture =
+            new AsyncCapture(CodeGenOptions.DEFAULTS, 16, 1, AsyncCapture.Overflow.DROP_NEWEST, Runnable::run, code -> {
+                throw new IllegalStateException();
+            });
+
+        capture.capture("a");
+        capture.capture("b");
+
+        assertAll(
+            () -> assertEquals(2, capture.failed()),
+            () -> assertEquals(0, capture.generated())
+        );
+    }
+
+    @Test
+    public void close_rejectsCaptures() throws InterruptedException {
+        final CountDownLatch generated = new CountDownLatch(1);
+        final List<CapturedCode> results = new CopyOnWriteArrayList<>();
+        final AsyncCapture capture = new AsyncCapture(CodeGenOptions.DEFAULTS, code -> {
+            results.add(code);
+            generated.countDown();
+        });
+
+        assertTrue(capture.capture(Arrays.asList("a")));
+        assertTrue(generated.await(10, TimeUnit.SECONDS));
+        capture.close();
+
+        assertAll(
+            () -> assertFalse(capture.capture("b")),
+            () -> assertEquals(1, capture.dropped()),
+            () -> assertEquals("eArrayList0", results.get(0).expression())
+        );
+    }
+
+    @Test
+    public void close_duringCapture_drops() {
+        final AsyncCapture capture = new AsyncCapture(CodeGenOptions.DEFAULTS, code -> { });
+
+        // Closed while the snapshot is taken, after the capture has checked it is open
+        final ClosingList list = new ClosingList();
+        list.add("a");
+        list.onSnapshot = capture;
+
+        assertAll(
+            () -> assertFalse(capture.capture(list)),
+            () -> assertEquals(1, capture.dropped()),
+            () -> assertEquals(0, capture.queued())
+        );
+    }
+
+    public static class ClosingList extends ArrayList<String> {
+        private static final long serialVersionUID = 1L;
+
+        AsyncCapture onSnapshot;
+
+        @Override
+        public Object[] toArray() {
+            onSnapshot.close();
+            return super.toArray();
+        }
+    }
+}
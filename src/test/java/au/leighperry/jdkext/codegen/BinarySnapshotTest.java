@@ -0,0 +1,233 @@
+package au.leighperry.jdkext.codegen;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayInputStream;
+import java.math.BigDecimal;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BinarySnapshotTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    public void read_beans() {
+        final CodeGenTest.Primitives primitives = new CodeGenTest.Primitives();
+        primitives.setFlag(true);
+        primitives.setTiny((byte) -3);
+        primitives.setLetter('\u00e9');
+        primitives.setSmall((short) -300);
+        primitives.setCount(Integer.MIN_VALUE);
+        primitives.setTotal(Long.MAX_VALUE);
+        primitives.setWeight(-1.5f);
+        primitives.setRatio(Double.NaN);
+
+        assertAll(
+            () -> assertRoundTrip(new CodeGenTest.Point(-1, 200)),
+            () -> assertRoundTrip(primitives)
+        );
+    }
+
+    @Test
+    public void read_collections() {
+        final List<Object> list = new ArrayList<>(Arrays.asList("a", null, 1L, new BigDecimal("1.50"), "\u2603 \"q\""));
+        final Map<String, Object> map = new LinkedHashMap<>();
+        map.put("list", list);
+        map.put("set", new LinkedHashSet<>(Arrays.asList(3, 1, 2)));
+        map.put(null, Arrays.asList(DayOfWeek.MONDAY, 'c'));
+        final EnumMap<DayOfWeek, Object> enumMap = new EnumMap<>(DayOfWeek.class);
+        enumMap.put(DayOfWeek.FRIDAY, EnumSet.of(DayOfWeek.SUNDAY, DayOfWeek.TUESDAY));
+        enumMap.put(DayOfWeek.MONDAY, EnumSet.noneOf(DayOfWeek.class));
+        map.put("enums", enumMap);
+
+        assertRoundTrip(map);
+    }
+
+    @Test
+    public void read_arrays() {
+        final Object[] array = {
+            new int[]{1, -2, Integer.MAX_VALUE},
+            new String[][]{{"a", null}, {}},
+            new byte[]{-128, 0, 127},
+            new char[]{'x', '\uffff'},
+            new boolean[]{true, false},
+            new double[]{-0.0, 1e300},
+            new float[]{Float.MIN_VALUE},
+            new long[]{Long.MIN_VALUE},
+            new short[]{Short.MIN_VALUE},
+            null
+        };
+        assertRoundTrip(array);
+    }
+
+    @Test
+    public void read_cycles() {
+        final CodeGenTest.Node a = new CodeGenTest.Node("a");
+        final CodeGenTest.Node b = new CodeGenTest.Node("b");
+        a.setNext(b);
+        b.setNext(a);
+        final List<Object> list = new ArrayList<>();
+        list.add(a);
+        list.add(list);
+
+        final Object copy = roundTrip(list);
+        final List<?> copyList = (List<?>) copy;
+        final CodeGenTest.Node copyA = (CodeGenTest.Node) copyList.get(0);
+        assertAll(
+            () -> assertSame(copyList, copyList.get(1)),
+            () -> assertSame(copyA, copyA.getNext().getNext()),
+            () -> assertEquals("b", copyA.getNext().getName())
+        );
+    }
+
+    @Test
+    public void read_emitterValues() {
+        final LocalDate date = LocalDate.of(2020, 2, 29);
+        final List<Object> list = new ArrayList<>(Arrays.asList(date, date, Optional.of("x"), Optional.empty()));
+
+        final BinarySnapshot snapshot = CodeGen.getBinarySnapshot(list, "", "Fixture", CodeGenOptions.DEFAULTS);
+        assertAll(
+            () -> assertEquals(list, roundTrip(list, date)),
+            () -> assertTrue(
+                snapshot.loader().source().contains("new Object[] {java.time.LocalDate.parse(\"2020-02-29\")}"),
+                snapshot.loader().source()
+            )
+        );
+    }
+
+    @Test
+    public void read_wrappedValues() {
+        // Children referring to their parent through an unmodifiable list
+        final CodeGenTest.Box parent = new CodeGenTest.Box();
+        final List<CodeGenTest.Box> children = new ArrayList<>();
+        for (int i = 0; i < 2; ++i) {
+            final CodeGenTest.Box child = new CodeGenTest.Box();
+            child.setValue(Optional.of(parent));
+            children.add(child);
+        }
+        parent.setValue(Collections.unmodifiableList(children));
+
+        final BinarySnapshot snapshot = CodeGen.getBinarySnapshot(parent, "", "Fixture", CodeGenOptions.DEFAULTS);
+        final CodeGenTest.Box copy = (CodeGenTest.Box) roundTrip(parent);
+        final List<?> copyChildren = (List<?>) copy.getValue();
+        assertAll(
+            () -> assertTrue(snapshot.loader().source().contains("new Object[] {}"), snapshot.loader().source()),
+            () -> assertEquals(2, copyChildren.size()),
+            () -> assertSame(copy, ((Optional<?>) ((CodeGenTest.Box) copyChildren.get(0)).getValue()).get()),
+            () -> assertSame(copy, ((Optional<?>) ((CodeGenTest.Box) copyChildren.get(1)).getValue()).get()),
+            () -> assertThrows(UnsupportedOperationException.class, () -> copyChildren.remove(0))
+        );
+
+        // Wrapped directly by one another
+        final List<Object> nested = Arrays.asList(
+            Optional.of(Optional.of("x")),
+            Optional.of(Collections.emptyList()),
+            Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList(1, 2)))
+        );
+        assertEquals(nested, roundTrip(nested));
+    }
+
+    @Test
+    public void read_rejectsOtherData() {
+        assertThrows(
+            IllegalStateException.class,
+            () -> BinarySnapshotReader.read(
+                new ByteArrayInputStream("not a snapshot".getBytes(StandardCharsets.UTF_8)),
+                getClass().getClassLoader(),
+                new Object[0]
+            )
+        );
+    }
+
+    @Test
+    public void getBinarySnapshot_smallerThanSource() {
+        final Map<String, CodeGenTest.Point> map = new HashMap<>();
+        for (int i = 0; i < 1_000; ++i) {
+            map.put("key" + i, new CodeGenTest.Point(i, -i));
+        }
+
+        final BinarySnapshot snapshot = new CodeGenSession().getBinarySnapshot(map, "", "Fixture");
+        final int sourceLength = String.join("\n", new CodeGenSession().getPreambleAndExpression(map).v1).length();
+        assertTrue(snapshot.data().length * 4 < sourceLength, snapshot.data().length + " vs " + sourceLength);
+    }
+
+    @Test
+    public void loader_compiles() throws Exception {
+        final CodeGenTest.Node node = new CodeGenTest.Node("a");
+        node.setNext(node);
+        final List<Object> list = new ArrayList<>(Arrays.asList(node, LocalDate.of(2021, 1, 1), DayOfWeek.MONDAY));
+
+        final BinarySnapshot snapshot =
+            CodeGen.getBinarySnapshot(list, "gen", "BinaryFixture", CodeGenOptions.DEFAULTS);
+        final Path packageDir = Files.createDirectories(dir.resolve("gen"));
+        final Path source = packageDir.resolve("BinaryFixture.java");
+        Files.write(source, snapshot.loader().source().getBytes(StandardCharsets.UTF_8));
+        Files.write(packageDir.resolve(snapshot.resourceName()), snapshot.data());
+
+        // The loader is compiled against this library, wherever the test runner loads it from
+        final URL library = BinarySnapshotReader.class.getProtectionDomain().getCodeSource().getLocation();
+        final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        assertEquals(
+            0,
+            compiler.run(
+                null, null, null,
+                "-nowarn", "-classpath", Paths.get(library.toURI()).toString(), "-d", dir.toString(), source.toString()
+            )
+        );
+
+        final URL[] urls = {dir.toUri().toURL()};
+        try (final URLClassLoader loader = new URLClassLoader(urls, getClass().getClassLoader())) {
+            final Object copy = loader.loadClass("gen.BinaryFixture").getMethod("create").invoke(null);
+            assertEquals(source(list), source(copy));
+        }
+    }
+
+    /**
+     * @param externals the values of the externals of the loader, whose preamble is empty for these tests
+     */
+    private static Object roundTrip(final Object o, final Object... externals) {
+        final BinarySnapshot snapshot = new CodeGenSession().getBinarySnapshot(o, "", "Fixture");
+        return BinarySnapshotReader.read(
+            new ByteArrayInputStream(snapshot.data()),
+            BinarySnapshotTest.class.getClassLoader(),
+            externals
+        );
+    }
+
+    private static void assertRoundTrip(final Object o) {
+        assertEquals(source(o), source(roundTrip(o)));
+    }
+
+    private static List<String> source(final Object o) {
+        final List<String> result = new ArrayList<>(new CodeGenSession().getPreambleAndExpression(o).v1.toList());
+        result.add(new CodeGenSession().getPreambleAndExpression(o).v2);
+        return result;
+    }
+}
@@ -0,0 +1,320 @@
+package au.leighperry.jdkext.codegen;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ChunkedCodeTest {
+    @TempDir
+    Path dir;
+
+    @BeforeEach
+    void reset() {
+        CodeGen.resetObjectId();
+    }
+
+    @Test
+    public void getChunkedCode_partitions() {
+        final List<String> list = new ArrayList<>();
+        for (int i = 0; i < 6; ++i) {
+            list.add("s" + i);
+        }
+
+        final ChunkedCode code =
+            CodeGen.getChunkedCode(list, "gen", "Fixture", CodeGenOptions.DEFAULTS.withChunking(60, 2));
+        assertAll(
+            () -> assertEquals(
+                "gen.FixtureChunk0,gen.FixtureChunk1,gen.Fixture",
+                code.units().stream().map(ChunkedCode.Unit::qualifiedName).collect(Collectors.joining(","))
+            ),
+            () -> assertEquals(
+                "package gen;\n" +
+                    "\n" +
+                    "import java.util.List;\n" +
+                    "import java.util.Map;\n" +
+                    "import java.util.Set;\n" +
+                    "\n" +
+                    "class FixtureChunk1 extends FixtureChunk0 {\n" +
+                    "    static void init() {\n" +
+                    "        part0();\n" +
+                    "        part1();\n" +
+                    "    }\n" +
+                    "\n" +
+                    "    private static void part0() {\n" +
+                    "        eArrayList0.add(\"s2\");\n" +
+                    "        eArrayList0.add(\"s3\");\n" +
+                    "    }\n" +
+                    "\n" +
+                    "    private static void part1() {\n" +
+                    "        eArrayList0.add(\"s4\");\n" +
+                    "        eArrayList0.add(\"s5\");\n" +
+                    "    }\n" +
+                    "}\n",
+                code.units().get(1).source()
+            ),
+            () -> assertTrue(code.units().get(0).source().contains("    static List eArrayList0;\n")),
+            () -> assertTrue(code.root().source().contains("        return eArrayList0;\n"))
+        );
+    }
+
+    @Test
+    public void getChunkedCode_simple() {
+        final ChunkedCode code = CodeGen.getChunkedCode(1234, "", "Fixture", CodeGenOptions.DEFAULTS);
+        assertAll(
+            () -> assertEquals(1, code.units().size()),
+            () -> assertTrue(code.root().source().startsWith("import java.util.List;")),
+            () -> assertTrue(code.root().source().contains("public class Fixture {\n")),
+            () -> assertTrue(code.root().source().contains("        return 1234;\n"))
+        );
+    }
+
+    @Test
+    public void getChunkedCode_compiles() throws Exception {
+        // Far beyond what fits in a single method
+        final Map<String, List<Integer>> map = new HashMap<>();
+        for (int i = 0; i < 2_000; ++i) {
+            final List<Integer> list = new ArrayList<>();
+            for (int j = 0; j < 10; ++j) {
+                list.add(i * j);
+            }
+            map.put("key" + i, list);
+        }
+
+        final ChunkedCode code = CodeGen.getChunkedCode(map, "gen", "Fixture", CodeGenOptions.DEFAULTS);
+        assertTrue(code.units().size() > 2);
+        assertEquals(map, compileAndCreate(code));
+    }
+
+    @Test
+    public void getChunkedCode_bulkInitialisation_compiles() throws Exception {
+        final Map<String, List<Object>> map = new HashMap<>();
+        for (int i = 0; i < 1_000; ++i) {
+            final List<Object> list = new ArrayList<>();
+            for (int j = 0; j < 300; j += 100) {
+                list.add(i * j);
+                list.add("s" + j);
+                list.add(null);
+            }
+            map.put("key" + i, list);
+        }
+        map.put("single", new ArrayList<>(Collections.singletonList(new String[]{"a"})));
+
+        final CodeGenOptions options = CodeGenOptions.DEFAULTS.withPresizing(true).withBulkInitialisation(true);
+        final Object copy = compileAndCreate(CodeGen.getChunkedCode(map, "gen", "BulkFixture", options));
+        assertEquals(map.keySet(), ((Map<?, ?>) copy).keySet());
+        assertEquals(map.get("key999"), ((Map<?, ?>) copy).get("key999"));
+    }
+
+    @Test
+    public void getChunkedCode_parallel_primitiveArrays_compiles() throws Exception {
+        final List<int[]> list = new ArrayList<>();
+        for (int i = 0; i < 40; ++i) {
+            list.add(new int[]{i, i + 1, i + 2});
+        }
+
+        final CodeGenOptions options = CodeGenOptions.DEFAULTS.withParallelism(10, 8, null).withChunking(200, 3);
+        final List<?> copy = (List<?>) compileAndCreate(CodeGen.getChunkedCode(list, "gen", "ArrayFixture", options));
+        assertEquals(list.size(), copy.size());
+        for (int i = 0; i < list.size(); ++i) {
+            assertArrayEquals(list.get(i), (int[]) copy.get(i));
+        }
+    }
+
+    @Test
+    public void getChunkedCode_largePrimitiveArrays_compiles() throws Exception {
+        final int[] ints = new int[100_000];
+        final long[] longs = new long[20_000];
+        final char[] chars = new char[50_000];
+        for (int i = 0; i < ints.length; ++i) {
+            ints[i] = Integer.MIN_VALUE + i * 7919;
+        }
+        for (int i = 0; i < longs.length; ++i) {
+            longs[i] = Long.MIN_VALUE / (i + 1);
+        }
+        for (int i = 0; i < chars.length; ++i) {
+            chars[i] = (char) (i * 31);
+        }
+        final List<Object> list = Arrays.asList(ints, longs, chars);
+
+        // Too many elements for one method, so the initialisers are split, also by the range generators
+        for (final CodeGenOptions options : Arrays.asList(
+            CodeGenOptions.DEFAULTS,
+            CodeGenOptions.DEFAULTS.withParallelism(2, 1, null)
+        )) {
+            final List<?> copy = (List<?>) compileAndCreate(CodeGen.getChunkedCode(list, "gen", "LargeArrays", options));
+            assertArrayEquals(ints, (int[]) copy.get(0));
+            assertArrayEquals(longs, (long[]) copy.get(1));
+            assertArrayEquals(chars, (char[]) copy.get(2));
+        }
+    }
+
+    @Test
+    public void writeChunkedCode_writesUnits() throws IOException {
+        final List<String> list = new ArrayList<>();
+        for (int i = 0; i < 40_000; ++i) {
+            list.add("s\u00e9" + i);
+        }
+
+        // Units larger than the write buffer
+        final CodeGenOptions options = CodeGenOptions.DEFAULTS.withChunking(400_000, 4);
+        final ChunkedCode expected = new CodeGenSession(options).getChunkedCode(list, "gen.dump", "Dump");
+        final List<Path> files = new CodeGenSession(options).writeChunkedCode(list, "gen.dump", "Dump", dir);
+
+        assertEquals(expected.units().size(), files.size());
+        for (int i = 0; i < files.size(); ++i) {
+            final ChunkedCode.Unit unit = expected.units().get(i);
+            assertEquals(dir.resolve("gen/dump/" + unit.className() + ".java"), files.get(i));
+            assertEquals(unit.source(), new String(Files.readAllBytes(files.get(i)), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void writeChunkedCode_writeExecutor() {
+        final List<String> list = new ArrayList<>(Collections.nCopies(1_000, "s"));
+        final AtomicInteger executions = new AtomicInteger();
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final CodeGenOptions options =
+                CodeGenOptions.DEFAULTS
+                    .withChunking(1_000, 2)
+                    .withWriteExecutor(
+                        command -> {
+                            executions.incrementAndGet();
+                            executor.execute(command);
+                        }
+                    );
+            final List<Path> files = CodeGen.writeChunkedCode(list, "", "Dump", dir, options);
+            assertAll(
+                () -> assertTrue(files.size() > 2),
+                () -> assertEquals(files.size(), executions.get()),
+                () -> assertTrue(files.stream().allMatch(Files::exists))
+            );
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void writeChunkedCode_rejectingExecutor() throws IOException {
+        final List<String> list = new ArrayList<>(Collections.nCopies(1_000, "s"));
+        final AtomicInteger executions = new AtomicInteger();
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final CodeGenOptions options =
+                CodeGenOptions.DEFAULTS
+                    .withChunking(1_000, 2)
+                    .withWriteExecutor(
+                        command -> {
+                            if (executions.incrementAndGet() > 2) {
+                                throw new RejectedExecutionException("saturated");
+                            }
+                            executor.execute(command);
+                        }
+                    );
+
+            // Fails rather than waiting for the rejected write
+            assertTimeoutPreemptively(
+                Duration.ofSeconds(30),
+                () -> assertThrows(
+                    RejectedExecutionException.class,
+                    () -> CodeGen.writeChunkedCode(list, "", "Dump", dir, options)
+                )
+            );
+            try (Stream<Path> paths = Files.walk(dir)) {
+                assertFalse(paths.anyMatch(Files::isRegularFile));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void writeChunkedCode_failure_deletesFiles() throws IOException {
+        final List<Object> list = new ArrayList<>(Collections.nCopies(1_000, "s"));
+        list.add(new CodeGenTest.Box());
+
+        final CodeGenOptions options =
+            CodeGenOptions.DEFAULTS
+                .withChunking(1_000, 2)
+                .withEmitter(
+                    CodeGenTest.Box.class,
+                    (value, context) -> {
+                        throw new IllegalStateException("unsupported");
+                    }
+                );
+        assertThrows(IllegalStateException.class, () -> CodeGen.writeChunkedCode(list, "gen", "Dump", dir, options));
+        try (Stream<Path> paths = Files.walk(dir)) {
+            assertFalse(paths.anyMatch(Files::isRegularFile));
+        }
+    }
+
+    @Test
+    public void writeChunkedCode_compiles() throws Exception {
+        final Map<String, List<Integer>> map = new HashMap<>();
+        for (int i = 0; i < 100; ++i) {
+            map.put("key" + i, new ArrayList<>(Collections.nCopies(10, i)));
+        }
+
+        final List<Path> files =
+            CodeGen.writeChunkedCode(map, "", "Dump", dir, CodeGenOptions.DEFAULTS.withChunking(500, 3));
+        final List<String> arguments = new ArrayList<>();
+        arguments.add("-nowarn");
+        for (final Path file : files) {
+            arguments.add(file.toString());
+        }
+        assertEquals(0, ToolProvider.getSystemJavaCompiler().run(null, null, null, arguments.toArray(new String[0])));
+
+        try (final URLClassLoader loader = new URLClassLoader(new URL[]{dir.toUri().toURL()})) {
+            assertEquals(map, loader.loadClass("Dump").getMethod("create").invoke(null));
+        }
+    }
+
+    private Object compileAndCreate(final ChunkedCode code) throws IOException, ReflectiveOperationException {
+        final List<String> arguments = new ArrayList<>();
+        arguments.add("-nowarn");
+        arguments.add("-d");
+        arguments.add(dir.toString());
+        for (final ChunkedCode.Unit unit : code.units()) {
+            final Path source = dir.resolve(unit.className() + ".java");
+            Files.write(source, unit.source().getBytes(StandardCharsets.UTF_8));
+            arguments.add(source.toString());
+        }
+
+        final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        assertEquals(0, compiler.run(null, null, null, arguments.toArray(new String[0])));
+
+        try (final URLClassLoader loader = new URLClassLoader(new URL[]{dir.toUri().toURL()})) {
+            return loader.loadClass(code.root().qualifiedName()).getMethod("create").invoke(null);
+        }
+    }
+}
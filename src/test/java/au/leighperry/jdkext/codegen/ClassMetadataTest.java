@@ -0,0 +1,64 @@
+package au.leighperry.jdkext.codegen;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.stream.Collectors;
+
+import static java.util.Arrays.asList;
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class ClassMetadataTest {
+    @Test
+    public void of_isCachedPerClass() {
+        assertSame(ClassMetadata.of(CodeGenTest.Pair.class), ClassMetadata.of(CodeGenTest.Pair.class));
+    }
+
+    @Test
+    public void properties_readWriteOnly() {
+        final ClassMetadata metadata = ClassMetadata.of(CodeGenTest.Pair.class);
+        assertAll(
+            () -> assertEquals(
+                asList("t0", "t1"),
+                metadata.properties().stream().map(ClassMetadata.Property::name).collect(Collectors.toList())
+            ),
+            () -> assertEquals(
+                asList("setT0", "setT1"),
+                metadata.properties().stream().map(ClassMetadata.Property::setterName).collect(Collectors.toList())
+            )
+        );
+    }
+
+    @Test
+    public void property_read() {
+        final ClassMetadata.Property t1 = ClassMetadata.of(CodeGenTest.Pair.class).properties().get(1);
+        assertEquals("string0", t1.read(new CodeGenTest.Pair<>(1234, "string0")));
+    }
+
+    @Test
+    public void compiledBean_readsProperties() {
+        final CompiledBean compiled = ClassMetadata.of(CodeGenTest.Primitives.class).compiledBean();
+        final CodeGenTest.Primitives primitives = new CodeGenTest.Primitives();
+        primitives.setCount(42);
+        primitives.setSmall((short) -2);
+
+        // count is the first property in Introspector order, small the fifth
+        assertAll(
+            () -> assertSame(compiled, ClassMetadata.of(CodeGenTest.Primitives.class).compiledBean()),
+            () -> assertEquals(".setCount(", compiled.slot(0).callPrefix()),
+            () -> assertEquals("42", appendLiteral(compiled.slot(0), primitives)),
+            () -> assertEquals((short) -2, compiled.slot(4).read(primitives)),
+            () -> assertEquals(
+                "string0",
+                ClassMetadata.of(CodeGenTest.Pair.class).compiledBean().slot(1).read(new CodeGenTest.Pair<>(1234, "string0"))
+            )
+        );
+    }
+
+    private static String appendLiteral(final CompiledBean.Slot slot, final Object bean) {
+        final StringBuilder sb = new StringBuilder();
+        slot.appendLiteral(sb, bean);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,65 @@
+package au.leighperry.jdkext.codegen;
+
+import org.jooq.lambda.Seq;
+import org.jooq.lambda.tuple.Tuple2;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class CodeGenSessionTest {
+    @Test
+    public void numbering_continuesAcrossCalls() {
+        final CodeGenSession session = new CodeGenSession();
+        final Tuple2<Seq<String>, String> first = session.getPreambleAndExpression(Arrays.asList("a"));
+        final Tuple2<Seq<String>, String> second = session.getPreambleAndExpression(Arrays.asList("b"));
+        session.resetObjectId();
+        final Tuple2<Seq<String>, String> third = session.getPreambleAndExpression(Arrays.asList("c"));
+        assertAll(
+            () -> assertEquals("eArrayList0", first.v2),
+            () -> assertEquals("eArrayList1", second.v2),
+            () -> assertEquals("eArrayList0", third.v2)
+        );
+    }
+
+    @Test
+    public void numbering_independentOfStaticApi() {
+        CodeGen.getPreambleAndExpression(Arrays.asList("a"));
+        final Tuple2<Seq<String>, String> code = new CodeGenSession().getPreambleAndExpression(Arrays.asList("b"));
+        assertEquals("eArrayList0", code.v2);
+    }
+
+    @Test
+    public void concurrentSessions_reproducible() throws Exception {
+        final List<List<String>> graph = new ArrayList<>();
+        for (int i = 0; i < 100; ++i) {
+            graph.add(Arrays.asList("a" + i, "b" + i));
+        }
+        final String expected = generate(graph);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 16; ++i) {
+                results.add(executor.submit(() -> generate(graph)));
+            }
+            for (final Future<String> result : results) {
+                assertEquals(expected, result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static String generate(final Object o) {
+        return new CodeGenSession().getPreambleAndExpression(o).v1.collect(Collectors.joining());
+    }
+}
@@ -6,21 +6,57 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import javax.tools.ToolProvider;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.StringWriter;
 import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.OptionalInt;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.assertAll;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class CodeGenTest {
@@ -313,5 +349,1389 @@ public class CodeGenTest {
             );
 
         }
+
+        @Test
+        public void getPreambleAndExpression_object_primitives() {
+            final Primitives primitives = new Primitives();
+            primitives.setFlag(true);
+            primitives.setTiny((byte) -3);
+            primitives.setLetter('\'');
+            primitives.setSmall((short) 300);
+            primitives.setCount(-7);
+            primitives.setTotal(1L << 40);
+            primitives.setWeight(1.5f);
+            primitives.setRatio(Double.NaN);
+
+            final String expected =
+                "    final au.leighperry.jdkext.codegen.CodeGenTest.Primitives ePrimitives0 = new au.leighperry.jdkext.codegen.CodeGenTest.Primitives();" +
+                    "    ePrimitives0.setCount(-7);" +
+                    "    ePrimitives0.setFlag(true);" +
+                    "    ePrimitives0.setLetter('\\'');" +
+                    "    ePrimitives0.setRatio(Double.NaN);" +
+                    "    ePrimitives0.setSmall((short) 300);" +
+                    "    ePrimitives0.setTiny((byte) -3);" +
+                    "    ePrimitives0.setTotal(1099511627776L);" +
+                    "    ePrimitives0.setWeight(1.5f);";
+
+            assertAll(
+                () -> assertEquals(
+                    expected,
+                    CodeGen.getPreambleAndExpression(primitives).v1.collect(Collectors.joining())
+                ),
+                () -> assertEquals(
+                    expected,
+                    new CodeGenSession(CodeGenOptions.DEFAULTS.withBeanCompilation(false))
+                        .getPreambleAndExpression(primitives)
+                        .v1
+                        .collect(Collectors.joining())
+                )
+            );
+        }
+    }
+
+    public static class Primitives {
+        private boolean flag;
+        private byte tiny;
+        private char letter;
+        private short small;
+        private int count;
+        private long total;
+        private float weight;
+        private double ratio;
+
+        public boolean isFlag() {
+            return flag;
+        }
+
+        public void setFlag(final boolean flag) {
+            this.flag = flag;
+        }
+
+        public byte getTiny() {
+            return tiny;
+        }
+
+        public void setTiny(final byte tiny) {
+            this.tiny = tiny;
+        }
+
+        public char getLetter() {
+            return letter;
+        }
+
+        public void setLetter(final char letter) {
+            this.letter = letter;
+        }
+
+        public short getSmall() {
+            return small;
+        }
+
+        public void setSmall(final short small) {
+            this.small = small;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public void setCount(final int count) {
+            this.count = count;
+        }
+
+        public long getTotal() {
+            return total;
+        }
+
+        public void setTotal(final long total) {
+            this.total = total;
+        }
+
+        public float getWeight() {
+            return weight;
+        }
+
+        public void setWeight(final float weight) {
+            this.weight = weight;
+        }
+
+        public double getRatio() {
+            return ratio;
+        }
+
+        public void setRatio(final double ratio) {
+            this.ratio = ratio;
+        }
+    }
+
+    public static class Point {
+        private int x;
+        private int y;
+
+        public Point() {
+        }
+
+        public Point(final int x, final int y) {
+            this.x = x;
+            this.y = y;
+        }
+
+        public int getX() {
+            return x;
+        }
+
+        public void setX(final int x) {
+            this.x = x;
+        }
+
+        public int getY() {
+            return y;
+        }
+
+        public void setY(final int y) {
+            this.y = y;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            return o instanceof Point && ((Point) o).x == x && ((Point) o).y == y;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * x + y;
+        }
+    }
+
+    public static class Node {
+        private String name;
+        private Node next;
+
+        public Node() {
+        }
+
+        public Node(final String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(final String name) {
+            this.name = name;
+        }
+
+        public Node getNext() {
+            return next;
+        }
+
+        public void setNext(final Node next) {
+            this.next = next;
+        }
+    }
+
+    @Nested
+    @DisplayName("shared and cyclic references")
+    class SharedReferences {
+        @Test
+        public void getPreambleAndExpression_shared() {
+            final Pair<Integer, String> shared = new Pair<>(1234, "string0");
+            final Tuple2<Seq<String>, String> code = CodeGen.getPreambleAndExpression(Arrays.asList(shared, shared));
+            assertAll(
+                () -> assertEquals(
+                    "    final List eArrayList0 = new java.util.ArrayList();" +
+                        "    final au.leighperry.jdkext.codegen.CodeGenTest.Pair ePair1 = new au.leighperry.jdkext.codegen.CodeGenTest.Pair();" +
+                        "    ePair1.setT0(1234);" +
+                        "    ePair1.setT1(\"string0\");" +
+                        "    eArrayList0.add(ePair1);" +
+                        "    eArrayList0.add(ePair1);",
+                    code.v1.collect(Collectors.joining())
+                ),
+                () -> assertEquals("eArrayList0", code.v2)
+            );
+        }
+
+        @Test
+        public void getPreambleAndExpression_cycle() {
+            final Node a = new Node("a");
+            final Node b = new Node("b");
+            a.setNext(b);
+            b.setNext(a);
+
+            final Tuple2<Seq<String>, String> code = CodeGen.getPreambleAndExpression(a);
+            assertAll(
+                () -> assertEquals(
+                    "    final au.leighperry.jdkext.codegen.CodeGenTest.Node eNode0 = new au.leighperry.jdkext.codegen.CodeGenTest.Node();" +
+                        "    eNode0.setName(\"a\");" +
+                        "    final au.leighperry.jdkext.codegen.CodeGenTest.Node eNode1 = new au.leighperry.jdkext.codegen.CodeGenTest.Node();" +
+                        "    eNode1.setName(\"b\");" +
+                        "    eNode1.setNext(eNode0);" +
+                        "    eNode0.setNext(eNode1);",
+                    code.v1.collect(Collectors.joining())
+                ),
+                () -> assertEquals("eNode0", code.v2)
+            );
+        }
+
+        @Test
+        public void getPreambleAndExpression_deep() {
+            // Far deeper than a recursive traversal could manage with a default stack
+            final Node head = new Node("n0");
+            Node tail = head;
+            for (int i = 1; i < 200_000; ++i) {
+                final Node next = new Node("n" + i);
+                tail.setNext(next);
+                tail = next;
+            }
+
+            final StringBuilder out = new StringBuilder();
+            final String expression = new CodeGenSession().writePreambleAndExpression(head, out);
+            assertAll(
+                () -> assertEquals("eNode0", expression),
+                () -> assertEquals(600_000, out.toString().split("\n").length),
+                () -> assertTrue(out.toString().contains("    eNode199999.setNext(null);\n    eNode199998.setNext(eNode199999);\n")),
+                () -> assertTrue(out.toString().endsWith("    eNode1.setNext(eNode2);\n    eNode0.setNext(eNode1);\n"))
+            );
+        }
+
+        @Test
+        public void getPreambleAndExpression_deepOptionals() {
+            // As deep, with each link wrapped by an emitted value
+            final Box head = new Box();
+            Box tail = head;
+            for (int i = 1; i < 200_000; ++i) {
+                final Box next = new Box();
+                tail.setValue(Optional.of(next));
+                tail = next;
+            }
+
+            final StringBuilder out = new StringBuilder();
+            final String expression = new CodeGenSession().writePreambleAndExpression(head, out);
+            assertAll(
+                () -> assertEquals("eBox0", expression),
+                () -> assertTrue(out.toString().endsWith("    eBox0.setValue(java.util.Optional.of(eBox1));\n"))
+            );
+        }
+
+        @Test
+        public void getPreambleAndExpression_self_reference() {
+            final Set<Object> set = new HashSet<>();
+            final List<Object> list = new ArrayList<>();
+            list.add(set);
+            set.add(list);
+
+            final Tuple2<Seq<String>, String> code = CodeGen.getPreambleAndExpression(list);
+            assertAll(
+                () -> assertEquals(
+                    "    final List eArrayList0 = new java.util.ArrayList();" +
+                        "    final Set eHashSet1 = new java.util.HashSet();" +
+                        "    eArrayList0.add(eHashSet1);" +
+                        "    eHashSet1.add(eArrayList0);",
+                    code.v1.collect(Collectors.joining())
+                ),
+                () -> assertEquals("eArrayList0", code.v2)
+            );
+        }
+
+        @Test
+        public void getSupplier_backReferences_keepOrder() {
+            // Children referring to their parent, generated from the first child
+            final Box parent = new Box();
+            final List<Box> children = new ArrayList<>();
+            for (int i = 0; i < 3; ++i) {
+                final Box child = new Box();
+                child.setValue(parent);
+                children.add(child);
+            }
+            parent.setValue(children);
+
+            final Box child0 = (Box) CodeGen.getSupplier(children.get(0), CodeGenOptions.DEFAULTS, new FixtureCompiler()).get();
+            final List<?> copies = (List<?>) ((Box) child0.getValue()).getValue();
+            assertAll(
+                () -> assertEquals(3, copies.size()),
+                () -> assertSame(child0, copies.get(0)),
+                () -> assertSame(child0.getValue(), ((Box) copies.get(1)).getValue()),
+                () -> assertSame(child0.getValue(), ((Box) copies.get(2)).getValue())
+            );
+
+            // An array referring back to the list it is an element of
+            final List<Object> list = new ArrayList<>();
+            final Object[] array = {list};
+            list.add(array);
+            list.add("x");
+
+            final List<?> copy = (List<?>) CodeGen.getSupplier(list, CodeGenOptions.DEFAULTS, new FixtureCompiler()).get();
+            assertAll(
+                () -> assertEquals(2, copy.size()),
+                () -> assertSame(copy, ((Object[]) copy.get(0))[0]),
+                () -> assertEquals("x", copy.get(1))
+            );
+        }
+    }
+
+    @Nested
+    @DisplayName("array expressions")
+    class ArrayExpressions {
+        @Test
+        public void getPreambleAndExpression_int_array() {
+            final Tuple2<Seq<String>, String> code = CodeGen.getPreambleAndExpression(new int[]{1, -2, 3});
+            assertAll(
+                () -> assertEquals("    final int[] eIntArray0 = {1, -2, 3};", code.v1.collect(Collectors.joining())),
+                () -> assertEquals("eIntArray0", code.v2)
+            );
+        }
+
+        @Test
+        public void getPreambleAndExpression_primitive_literals() {
+            final Tuple2<Seq<String>, String> code =
+                CodeGen.getPreambleAndExpression(
+                    Arrays.asList(
+                        new long[]{1L, Long.MIN_VALUE},
+                        new double[]{0.5, Double.NaN},
+                        new float[]{1.5f, Float.NEGATIVE_INFINITY},
+                        new char[]{'a', '\'', '\n'},
+                        new boolean[]{true, false}
+                    )
+                );
+            assertEquals(
+                "    final List eArrayList0 = new java.util.ArrayList();" +
+                    "    final long[] eLongArray1 = {1L, -9223372036854775808L};" +
+                    "    eArrayList0.add(eLongArray1);" +
+                    "    final double[] eDoubleArray2 = {0.5, Double.NaN};" +
+                    "    eArrayList0.add(eDoubleArray2);" +
+                    "    final float[] eFloatArray3 = {1.5f, Float.NEGATIVE_INFINITY};" +
+                    "    eArrayList0.add(eFloatArray3);" +
+                    "    final char[] eCharArray4 = {'a', '\\'', '\\n'};" +
+                    "    eArrayList0.add(eCharArray4);" +
+                    "    final boolean[] eBooleanArray5 = {true, false};" +
+                    "    eArrayList0.add(eBooleanArray5);",
+                code.v1.collect(Collectors.joining())
+            );
+        }
+
+        @Test
+        public void getPreambleAndExpression_byte_array_base64() {
+            final CodeGenOptions options = CodeGenOptions.DEFAULTS.withBase64Threshold(4);
+            final Tuple2<Seq<String>, String> small = CodeGen.getPreambleAndExpression(new byte[]{1, 2, 3}, options);
+            final Tuple2<Seq<String>, String> large = CodeGen.getPreambleAndExpression(new byte[]{1, 2, 3, 4}, options);
+            assertAll(
+                () -> assertEquals("    final byte[] eByteArray0 = {1, 2, 3};", small.v1.collect(Collectors.joining())),
+                () -> assertEquals(
+                    "    final byte[] eByteArray1 = java.util.Base64.getDecoder().decode(\"AQIDBA==\");",
+                    large.v1.collect(Collectors.joining())
+                )
+            );
+        }
+
+        @Test
+        public void getPreambleAndExpression_object_array() {
+            final Tuple2<Seq<String>, String> code =
+                CodeGen.getPreambleAndExpression(new Object[][]{{"a", null}, {TestEnum.B}});
+            assertAll(
+                () -> assertEquals(
+                    "    final java.lang.Object[][] eObjectArrayArray0 = new java.lang.Object[2][];" +
+                        "    final java.lang.Object[] eObjectArray1 = new java.lang.Object[2];" +
+                        "    eObjectArray1[0] = \"a\";" +
+                        "    eObjectArrayArray0[0] = eObjectArray1;" +
+                        "    final java.lang.Object[] eObjectArray2 = new java.lang.Object[1];" +
+                        "    eObjectArray2[0] = au.leighperry.jdkext.codegen.CodeGenTest.TestEnum.B;" +
+                        "    eObjectArrayArray0[1] = eObjectArray2;",
+                    code.v1.collect(Collectors.joining())
+                ),
+                () -> assertEquals("eObjectArrayArray0", code.v2)
+            );
+        }
+    }
+
+    @Nested
+    @DisplayName("parallel generation")
+    class ParallelGeneration {
+        @Test
+        public void getPreambleAndExpression_parallel_list() {
+            final List<Object> shared = new ArrayList<>(Arrays.asList("x"));
+            final List<Object> list = new ArrayList<>();
+            for (int i = 0; i < 5; ++i) {
+                list.add(Arrays.asList("s" + i));
+            }
+            list.add(shared);
+            list.add(list);
+
+            final Map<String, Object> root = new LinkedHashMap<>();
+            root.put("shared", shared);
+            root.put("list", list);
+
+            final ForkJoinPool pool = new ForkJoinPool(4);
+            try {
+                final CodeGenOptions options = CodeGenOptions.DEFAULTS.withParallelism(4, 3, pool);
+                for (int i = 0; i < 10; ++i) {
+                    final Tuple2<Seq<String>, String> code = new CodeGenSession(options).getPreambleAndExpression(root);
+                    assertEquals(
+                        "    final Map eLinkedHashMap0 = new java.util.LinkedHashMap();" +
+                            "    final List eArrayList1 = new java.util.ArrayList();" +
+                            "    eArrayList1.add(\"x\");" +
+                            "    eLinkedHashMap0.put(\"shared\", eArrayList1);" +
+                            "    final List eArrayList2 = new java.util.ArrayList();" +
+                            "    final List eArrayList_3_0_0 = new java.util.ArrayList();" +
+                            "    eArrayList_3_0_0.add(\"s0\");" +
+                            "    eArrayList2.add(eArrayList_3_0_0);" +
+                            "    final List eArrayList_3_0_1 = new java.util.ArrayList();" +
+                            "    eArrayList_3_0_1.add(\"s1\");" +
+                            "    eArrayList2.add(eArrayList_3_0_1);" +
+                            "    final List eArrayList_3_0_2 = new java.util.ArrayList();" +
+                            "    eArrayList_3_0_2.add(\"s2\");" +
+                            "    eArrayList2.add(eArrayList_3_0_2);" +
+                            "    final List eArrayList_3_1_0 = new java.util.ArrayList();" +
+                            "    eArrayList_3_1_0.add(\"s3\");" +
+                            "    eArrayList2.add(eArrayList_3_1_0);" +
+                            "    final List eArrayList_3_1_1 = new java.util.ArrayList();" +
+                            "    eArrayList_3_1_1.add(\"s4\");" +
+                            "    eArrayList2.add(eArrayList_3_1_1);" +
+                            "    eArrayList2.add(eArrayList1);" +
+                            "    eArrayList2.add(eArrayList2);" +
+                            "    eLinkedHashMap0.put(\"list\", eArrayList2);",
+                        code.v1.collect(Collectors.joining())
+                    );
+                }
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        @Test
+        public void getPreambleAndExpression_parallel_map() {
+            final Map<Integer, String> map = new TreeMap<>();
+            for (int i = 0; i < 5; ++i) {
+                map.put(i, "v" + i);
+            }
+
+            final CodeGenOptions options = CodeGenOptions.DEFAULTS.withParallelism(2, 2, null);
+            final Tuple2<Seq<String>, String> code = new CodeGenSession(options).getPreambleAndExpression(map);
+            assertEquals(
+                "    final Map eTreeMap0 = new java.util.TreeMap();" +
+                    "    eTreeMap0.put(0, \"v0\");" +
+                    "    eTreeMap0.put(1, \"v1\");" +
+                    "    eTreeMap0.put(2, \"v2\");" +
+                    "    eTreeMap0.put(3, \"v3\");" +
+                    "    eTreeMap0.put(4, \"v4\");",
+                code.v1.collect(Collectors.joining())
+            );
+        }
+    }
+
+    enum BodyEnum {
+        X {
+            @Override
+            public String toString() {
+                return "x";
+            }
+        }
+    }
+
+    public static class Zoned {
+        private ZoneId zone;
+        private ZoneOffset offset;
+
+        public ZoneId getZone() {
+            return zone;
+        }
+
+        public void setZone(final ZoneId zone) {
+            this.zone = zone;
+        }
+
+        public ZoneOffset getOffset() {
+            return offset;
+        }
+
+        public void setOffset(final ZoneOffset offset) {
+            this.offset = offset;
+        }
+    }
+
+    public static class Box {
+        private Object value;
+
+        public Object getValue() {
+            return value;
+        }
+
+        public void setValue(final Object value) {
+            this.value = value;
+        }
+    }
+
+    @Nested
+    @DisplayName("type emitters")
+    class TypeEmitters {
+        @Test
+        public void getPreambleAndExpression_values() {
+            final Tuple2<Seq<String>, String> code =
+                CodeGen.getPreambleAndExpression(
+                    Arrays.asList(
+                        new BigInteger("123456789012345678901234567890"),
+                        UUID.fromString("0f8fad5b-d9cb-469f-a165-70867728950e"),
+                        LocalDate.of(2020, 2, 29),
+                        Instant.ofEpochSecond(1),
+                        ZoneId.of("Australia/Melbourne"),
+                        OptionalInt.of(3),
+                        Optional.empty(),
+                        BodyEnum.X
+                    )
+                );
+            assertEquals(
+                "    final List eArrayList0 = new java.util.ArrayList();" +
+                    "    eArrayList0.add(new java.math.BigInteger(\"123456789012345678901234567890\"));" +
+                    "    eArrayList0.add(java.util.UUID.fromString(\"0f8fad5b-d9cb-469f-a165-70867728950e\"));" +
+                    "    eArrayList0.add(java.time.LocalDate.parse(\"2020-02-29\"));" +
+                    "    eArrayList0.add(java.time.Instant.parse(\"1970-01-01T00:00:01Z\"));" +
+                    "    eArrayList0.add(java.time.ZoneId.of(\"Australia/Melbourne\"));" +
+                    "    eArrayList0.add(java.util.OptionalInt.of(3));" +
+                    "    eArrayList0.add(java.util.Optional.empty());" +
+                    "    eArrayList0.add(au.leighperry.jdkext.codegen.CodeGenTest.BodyEnum.X);",
+                code.v1.collect(Collectors.joining())
+            );
+        }
+
+        @Test
+        public void getSupplier_zoneOffset() {
+            final Zoned zoned = new Zoned();
+            zoned.setZone(ZoneId.of("Australia/Melbourne"));
+            zoned.setOffset(ZoneOffset.ofHours(2));
+
+            final Tuple2<Seq<String>, String> code = CodeGen.getPreambleAndExpression(zoned);
+            assertEquals(
+                "    final au.leighperry.jdkext.codegen.CodeGenTest.Zoned eZoned0 = new au.leighperry.jdkext.codegen.CodeGenTest.Zoned();" +
+                    "    eZoned0.setOffset(java.time.ZoneOffset.of(\"+02:00\"));" +
+                    "    eZoned0.setZone(java.time.ZoneId.of(\"Australia/Melbourne\"));",
+                code.v1.collect(Collectors.joining())
+            );
+
+            final Zoned copy = (Zoned) CodeGen.getSupplier(zoned, CodeGenOptions.DEFAULTS, new FixtureCompiler()).get();
+            assertEquals(zoned.getZone(), copy.getZone());
+            assertEquals(zoned.getOffset(), copy.getOffset());
+        }
+
+        @Test
+        public void getPreambleAndExpression_optional_nested() {
+            final Tuple2<Seq<String>, String> code =
+                CodeGen.getPreambleAndExpression(Optional.of(new Pair<>(1234, "string0")));
+            assertAll(
+                () -> assertEquals(
+                    "    final au.leighperry.jdkext.codegen.CodeGenTest.Pair ePair0 = new au.leighperry.jdkext.codegen.CodeGenTest.Pair();" +
+                        "    ePair0.setT0(1234);" +
+                        "    ePair0.setT1(\"string0\");",
+                    code.v1.collect(Collectors.joining())
+                ),
+                () -> assertEquals("java.util.Optional.of(ePair0)", code.v2)
+            );
+        }
+
+        @Test
+        public void getPreambleAndExpression_enum_collections() {
+            final Map<TestEnum, String> map = new EnumMap<>(TestEnum.class);
+            map.put(TestEnum.B, "b");
+
+            final Tuple2<Seq<String>, String> code =
+                CodeGen.getPreambleAndExpression(Arrays.asList(EnumSet.of(TestEnum.C), EnumSet.noneOf(TestEnum.class), map));
+            assertEquals(
+                "    final List eArrayList0 = new java.util.ArrayList();" +
+                    "    final Set eRegularEnumSet1 = java.util.EnumSet.noneOf(au.leighperry.jdkext.codegen.CodeGenTest.TestEnum.class);" +
+                    "    eRegularEnumSet1.add(au.leighperry.jdkext.codegen.CodeGenTest.TestEnum.C);" +
+                    "    eArrayList0.add(eRegularEnumSet1);" +
+                    "    final Set eRegularEnumSet2 = java.util.EnumSet.noneOf(au.leighperry.jdkext.codegen.CodeGenTest.TestEnum.class);" +
+                    "    eArrayList0.add(eRegularEnumSet2);" +
+                    "    final Map eEnumMap3 = new java.util.EnumMap(au.leighperry.jdkext.codegen.CodeGenTest.TestEnum.class);" +
+                    "    eEnumMap3.put(au.leighperry.jdkext.codegen.CodeGenTest.TestEnum.B, \"b\");" +
+                    "    eArrayList0.add(eEnumMap3);",
+                code.v1.collect(Collectors.joining())
+            );
+        }
+
+        @Test
+        public void getPreambleAndExpression_unmodifiable() {
+            final Tuple2<Seq<String>, String> code =
+                CodeGen.getPreambleAndExpression(
+                    Collections.unmodifiableMap(Collections.singletonMap("a", Collections.emptyList()))
+                );
+            assertAll(
+                () -> assertEquals(
+                    "    final Map eLinkedHashMap0 = new java.util.LinkedHashMap();" +
+                        "    eLinkedHashMap0.put(\"a\", java.util.Collections.emptyList());",
+                    code.v1.collect(Collectors.joining())
+                ),
+                () -> assertEquals("java.util.Collections.unmodifiableMap(eLinkedHashMap0)", code.v2)
+            );
+        }
+
+        @Test
+        public void getPreambleAndExpression_custom_emitter() {
+            final CodeGenOptions options =
+                CodeGenOptions.DEFAULTS
+                    .withEmitter(
+                        Comparable.class,
+                        (value, context) -> "comparable(" + value + ')'
+                    )
+                    .withEmitter(
+                        Pair.class,
+                        (value, context) -> {
+                            final Pair<?, ?> pair = (Pair<?, ?>) value;
+                            return context.declare(
+                                "Pair",
+                                Pair.class,
+                                "new Pair(" + context.expression(pair.getT0()) + ", " + context.expression(pair.getT1()) + ')'
+                            );
+                        }
+                    );
+
+            final Tuple2<Seq<String>, String> code =
+                new CodeGenSession(options).getPreambleAndExpression(Arrays.asList(new Pair<>(1, "a"), 2L));
+            assertEquals(
+                "    final List eArrayList0 = new java.util.ArrayList();" +
+                    "    final Pair ePair1 = new Pair(comparable(1), comparable(a));" +
+                    "    eArrayList0.add(ePair1);" +
+                    "    eArrayList0.add(comparable(2));",
+                code.v1.collect(Collectors.joining())
+            );
+        }
+    }
+
+    @Nested
+    @DisplayName("immutable values")
+    class ImmutableValues {
+        @Test
+        public void getPreambleAndExpression_hoisting_literals() {
+            final String literal = "a long literal value";
+            final List<Object> list = Arrays.asList(literal, "short", new String(literal), "short", literal);
+
+            final Tuple2<Seq<String>, String> code =
+                CodeGen.getPreambleAndExpression(list, CodeGenOptions.DEFAULTS.withHoisting(10));
+            assertEquals(
+                "    final List eArrayList0 = new java.util.ArrayList();" +
+                    "    eArrayList0.add(\"a long literal value\");" +
+                    "    eArrayList0.add(\"short\");" +
+                    "    final java.lang.String eString1 = \"a long literal value\";" +
+                    "    eArrayList0.add(eString1);" +
+                    "    eArrayList0.add(\"short\");" +
+                    "    eArrayList0.add(eString1);",
+                code.v1.collect(Collectors.joining())
+            );
+        }
+
+        @Test
+        public void getPreambleAndExpression_hoisting_equalInstances() {
+            final List<Object> list = Arrays.asList(new Point(1, 2), new Point(1, 2), new Point(3, 4));
+
+            final CodeGenOptions options =
+                CodeGenOptions.DEFAULTS.withImmutableType(Point.class).withHoisting(Integer.MAX_VALUE);
+            final Tuple2<Seq<String>, String> code = CodeGen.getPreambleAndExpression(list, options);
+            assertEquals(
+                "    final List eArrayList0 = new java.util.ArrayList();" +
+                    "    final au.leighperry.jdkext.codegen.CodeGenTest.Point ePoint1 = new au.leighperry.jdkext.codegen.CodeGenTest.Point();" +
+                    "    ePoint1.setX(1);" +
+                    "    ePoint1.setY(2);" +
+                    "    eArrayList0.add(ePoint1);" +
+                    "    eArrayList0.add(ePoint1);" +
+                    "    final au.leighperry.jdkext.codegen.CodeGenTest.Point ePoint2 = new au.leighperry.jdkext.codegen.CodeGenTest.Point();" +
+                    "    ePoint2.setX(3);" +
+                    "    ePoint2.setY(4);" +
+                    "    eArrayList0.add(ePoint2);",
+                code.v1.collect(Collectors.joining())
+            );
+        }
+
+        @Test
+        public void getPreambleAndExpression_fragmentCache() {
+            final AtomicInteger calls = new AtomicInteger();
+            final CodeGenOptions options =
+                CodeGenOptions.DEFAULTS
+                    .withEmitter(
+                        Point.class,
+                        (value, context) -> {
+                            calls.incrementAndGet();
+                            return "new Point(" + ((Point) value).getX() + ", " + ((Point) value).getY() + ')';
+                        }
+                    )
+                    .withImmutableType(Point.class)
+                    .withFragmentCache(100);
+
+            final List<Object> list = Arrays.asList(new Point(1, 2), new Point(1, 2));
+            final Tuple2<Seq<String>, String> first = new CodeGenSession(options).getPreambleAndExpression(list);
+            final Tuple2<Seq<String>, String> second = new CodeGenSession(options).getPreambleAndExpression(list);
+            assertAll(
+                () -> assertEquals(first.v1.toList(), second.v1.toList()),
+                () -> assertEquals(1, calls.get()),
+                () -> assertNull(
+                    options.withEmitter(Node.class, (value, context) -> "node()").fragmentCache().get(list.get(0))
+                )
+            );
+        }
+    }
+
+    @Nested
+    @DisplayName("diffs")
+    class Diffs {
+        @Test
+        public void getDiff_bean() {
+            final Pair<Pair<Integer, String>, String> baseline = new Pair<>(new Pair<>(1234, "string0"), "string1");
+            final Fingerprint fingerprint = CodeGen.fingerprint(baseline);
+
+            baseline.getT0().setT1("string2");
+            final Tuple2<Seq<String>, Fingerprint> code = CodeGen.getDiff(fingerprint, baseline, "fixture");
+            assertAll(
+                () -> assertEquals(
+                    "    final au.leighperry.jdkext.codegen.CodeGenTest.Pair ePair0 = (au.leighperry.jdkext.codegen.CodeGenTest.Pair) fixture.getT0();" +
+                        "    ePair0.setT1(\"string2\");",
+                    code.v1.collect(Collectors.joining())
+                ),
+                () -> assertEquals(CodeGen.fingerprint(baseline), code.v2)
+            );
+        }
+
+        @Test
+        public void getDiff_collections() {
+            final Map<String, Object> baseline = new LinkedHashMap<>();
+            baseline.put("a", new ArrayList<>(Arrays.asList(1, 2, 3)));
+            baseline.put("b", 1);
+            baseline.put("s", new TreeSet<>(Arrays.asList("x", "y")));
+
+            final Map<String, Object> current = new LinkedHashMap<>();
+            current.put("a", new ArrayList<>(Arrays.asList(1, 5)));
+            current.put("s", new TreeSet<>(Arrays.asList("y", "z")));
+            current.put("c", new Pair<>(2, "string0"));
+
+            final Tuple2<Seq<String>, Fingerprint> code = CodeGen.getDiff(baseline, current, "fixture");
+            assertEquals(
+                "    fixture.remove(\"b\");" +
+                    "    final List eArrayList0 = (List) fixture.get(\"a\");" +
+                    "    final Set eTreeSet1 = (Set) fixture.get(\"s\");" +
+                    "    final au.leighperry.jdkext.codegen.CodeGenTest.Pair ePair2 = new au.leighperry.jdkext.codegen.CodeGenTest.Pair();" +
+                    "    ePair2.setT0(2);" +
+                    "    ePair2.setT1(\"string0\");" +
+                    "    fixture.put(\"c\", ePair2);" +
+                    "    eArrayList0.set(1, 5);" +
+                    "    eArrayList0.remove(2);" +
+                    "    eTreeSet1.remove(\"x\");" +
+                    "    eTreeSet1.add(\"z\");",
+                code.v1.collect(Collectors.joining())
+            );
+        }
+
+        @Test
+        public void getDiff_unchanged() {
+            final List<Object> baseline = new ArrayList<>();
+            baseline.add(new Pair<>(1234, "string0"));
+            baseline.add(baseline);
+
+            final Fingerprint fingerprint = CodeGen.fingerprint(baseline);
+            final Tuple2<Seq<String>, Fingerprint> code = CodeGen.getDiff(fingerprint, baseline, "fixture");
+            assertAll(
+                () -> assertEquals(0, code.v1.count()),
+                () -> assertEquals(fingerprint, code.v2)
+            );
+        }
+
+        @Test
+        public void getDiff_emittedContents() {
+            // Neither Optional nor Box has a toString reflecting the contents
+            final Box inner = new Box();
+            inner.setValue("string0");
+            final Box baseline = new Box();
+            baseline.setValue(Optional.of(inner));
+            final Fingerprint fingerprint = CodeGen.fingerprint(baseline);
+            final List<Box> unmodifiable = Collections.unmodifiableList(Arrays.asList(inner));
+            final Fingerprint unmodifiableFingerprint = CodeGen.fingerprint(unmodifiable);
+
+            inner.setValue("string1");
+            final Tuple2<Seq<String>, Fingerprint> code = CodeGen.getDiff(fingerprint, baseline, "fixture");
+            assertAll(
+                () -> assertEquals(
+                    "    final au.leighperry.jdkext.codegen.CodeGenTest.Box eBox0 = new au.leighperry.jdkext.codegen.CodeGenTest.Box();" +
+                        "    eBox0.setValue(\"string1\");" +
+                        "    fixture.setValue(java.util.Optional.of(eBox0));",
+                    code.v1.collect(Collectors.joining())
+                ),
+                () -> assertEquals(CodeGen.fingerprint(baseline), code.v2),
+                () -> assertNotEquals(unmodifiableFingerprint, CodeGen.fingerprint(unmodifiable))
+            );
+        }
+
+        @Test
+        public void getDiff_typeChanged() {
+            assertThrows(
+                IllegalArgumentException.class,
+                () -> CodeGen.getDiff(new ArrayList<>(), new HashSet<>(Arrays.asList(1)), "fixture")
+            );
+        }
+
+        @Test
+        public void getDiff_deep() {
+            final Node head = new Node("n0");
+            Node tail = head;
+            for (int i = 1; i < 200_000; ++i) {
+                final Node next = new Node("n" + i);
+                tail.setNext(next);
+                tail = next;
+            }
+            final Fingerprint fingerprint = new CodeGenSession().fingerprint(head);
+
+            tail.setName("changed");
+            final List<String> lines = new CodeGenSession().getDiff(fingerprint, head, "fixture").v1.toList();
+            assertAll(
+                () -> assertEquals(200_000, lines.size()),
+                () -> assertEquals(
+                    "    final au.leighperry.jdkext.codegen.CodeGenTest.Node eNode1 = (au.leighperry.jdkext.codegen.CodeGenTest.Node) eNode0.getNext();",
+                    lines.get(1)
+                ),
+                () -> assertEquals("    eNode199998.setName(\"changed\");", lines.get(lines.size() - 1))
+            );
+        }
+    }
+
+    @Nested
+    @DisplayName("limits")
+    class Limits {
+        @Test
+        public void getPreambleAndExpression_maxDepth() {
+            final Node root = new Node("a");
+            root.setNext(new Node("b"));
+            root.getNext().setNext(new Node("c"));
+
+            final CodeGenSession session = new CodeGenSession(CodeGenOptions.DEFAULTS.withMaxDepth(2));
+            final Tuple2<Seq<String>, String> code = session.getPreambleAndExpression(root);
+            assertAll(
+                () -> assertEquals(
+                    "    final au.leighperry.jdkext.codegen.CodeGenTest.Node eNode0 = new au.leighperry.jdkext.codegen.CodeGenTest.Node();" +
+                        "    eNode0.setName(\"a\");" +
+                        "    final au.leighperry.jdkext.codegen.CodeGenTest.Node eNode1 = new au.leighperry.jdkext.codegen.CodeGenTest.Node();" +
+                        "    eNode1.setName(\"b\");" +
+                        "    // truncated eNode1: au.leighperry.jdkext.codegen.CodeGenTest.Node beyond depth 2" +
+                        "    eNode0.setNext(eNode1);",
+                    code.v1.collect(Collectors.joining())
+                ),
+                () -> assertEquals(1, session.truncations().size()),
+                () -> assertEquals(Truncation.Reason.DEPTH, session.truncations().get(0).reason()),
+                () -> assertEquals("eNode1", session.truncations().get(0).variableName())
+            );
+        }
+
+        @Test
+        public void getSupplier_maxDepth_leavesOutTruncated() {
+            final Map<String, Node> map = new ConcurrentHashMap<>();
+            map.put("k", new Node("x"));
+            final List<Object> list = new ArrayList<>(Arrays.asList(Optional.of(new Node("y")), "s"));
+            final Set<Pair<Integer, String>> set = new TreeSet<>(Arrays.asList(new Pair<>(1, "a"), new Pair<>(2, "b")));
+            final List<Object> root = new ArrayList<>(Arrays.asList(map, list, set));
+
+            final CodeGenOptions options = CodeGenOptions.DEFAULTS.withMaxDepth(2);
+            final CodeGenSession session = new CodeGenSession(options);
+            session.getPreambleAndExpression(root);
+            assertAll(
+                () -> assertEquals(4, session.truncations().size()),
+                () -> assertEquals(
+                    Arrays.asList(Collections.emptyMap(), Collections.singletonList("s"), Collections.emptySet()),
+                    CodeGen.getSupplier(root, options, new FixtureCompiler()).get()
+                )
+            );
+        }
+
+        @Test
+        public void getPreambleAndExpression_maxElements() {
+            final Map<String, Object> root = new LinkedHashMap<>();
+            root.put("list", Arrays.asList("a", "b", "c"));
+            root.put("array", new Object[] {"x", "y"});
+            root.put("empty", new ArrayList<>());
+
+            final CodeGenSession session = new CodeGenSession(CodeGenOptions.DEFAULTS.withMaxElements(1));
+            final Tuple2<Seq<String>, String> code = session.getPreambleAndExpression(root);
+            assertAll(
+                () -> assertEquals(
+                    "    final Map eLinkedHashMap0 = new java.util.LinkedHashMap();" +
+                        "    final List eArrayList1 = new java.util.ArrayList();" +
+                        "    eArrayList1.add(\"a\");" +
+                        "    // truncated eArrayList1: 1 of 3 elements" +
+                        "    eLinkedHashMap0.put(\"list\", eArrayList1);" +
+                        "    // truncated eLinkedHashMap0: 1 of 3 elements",
+                    code.v1.collect(Collectors.joining())
+                ),
+                () -> assertEquals(
+                    Arrays.asList("eArrayList1: 1 of 3 elements", "eLinkedHashMap0: 1 of 3 elements"),
+                    session.truncations().stream().map(Truncation::toString).collect(Collectors.toList())
+                )
+            );
+        }
+
+        @Test
+        public void getPreambleAndExpression_maxElements_parallel() {
+            final List<String> list = new ArrayList<>();
+            for (int i = 0; i < 10; ++i) {
+                list.add("s" + i);
+            }
+
+            final CodeGenSession session =
+                new CodeGenSession(CodeGenOptions.DEFAULTS.withMaxElements(5).withParallelism(4, 2, null));
+            final Tuple2<Seq<String>, String> code = session.getPreambleAndExpression(list);
+            assertAll(
+                () -> assertEquals(
+                    "    final List eArrayList0 = new java.util.ArrayList();" +
+                        "    eArrayList0.add(\"s0\");" +
+                        "    eArrayList0.add(\"s1\");" +
+                        "    eArrayList0.add(\"s2\");" +
+                        "    eArrayList0.add(\"s3\");" +
+                        "    eArrayList0.add(\"s4\");" +
+                        "    // truncated eArrayList0: 5 of 10 elements",
+                    code.v1.collect(Collectors.joining())
+                ),
+                () -> assertEquals(Truncation.Reason.ELEMENTS, session.truncations().get(0).reason())
+            );
+        }
+
+        @Test
+        public void getPreambleAndExpression_maxOutput() {
+            final List<List<String>> root = new ArrayList<>();
+            for (int i = 0; i < 1000; ++i) {
+                root.add(Arrays.asList("a" + i, "b" + i));
+            }
+
+            final CodeGenSession session = new CodeGenSession(CodeGenOptions.DEFAULTS.withMaxOutput(1000));
+            final List<String> lines = session.getPreambleAndExpression(root).v1.toList();
+            assertAll(
+                () -> assertTrue(lines.size() < 100, () -> lines.size() + " lines"),
+                () -> assertEquals(
+                    "    // truncated eArrayList0: output limit of 1000 characters reached",
+                    lines.get(lines.size() - 1)
+                ),
+                () -> assertEquals(1, session.truncations().size()),
+                () -> assertEquals(Truncation.Reason.OUTPUT, session.truncations().get(0).reason())
+            );
+        }
+
+        @Test
+        public void getPreambleAndExpression_timeLimit() {
+            final List<String> root = new ArrayList<>();
+            for (int i = 0; i < 1000; ++i) {
+                root.add("s" + i);
+            }
+
+            final CodeGenSession session = new CodeGenSession(CodeGenOptions.DEFAULTS.withTimeLimit(Duration.ZERO));
+            final List<String> lines = session.getPreambleAndExpression(root).v1.toList();
+            assertAll(
+                () -> assertTrue(lines.size() < 1000, () -> lines.size() + " lines"),
+                () -> assertEquals(Truncation.Reason.TIME, session.truncations().get(0).reason()),
+                () -> assertEquals("eArrayList0", session.truncations().get(0).variableName())
+            );
+        }
+    }
+
+    @Nested
+    @DisplayName("streaming output")
+    class StreamingOutput {
+        @Test
+        public void writePreambleAndExpression_StringBuilder() {
+            final StringBuilder out = new StringBuilder();
+            final String expression = CodeGen.writePreambleAndExpression(new Pair<>(1234, "string0"), out);
+            assertAll(
+                () -> assertEquals(
+                    "    final au.leighperry.jdkext.codegen.CodeGenTest.Pair ePair0 = new au.leighperry.jdkext.codegen.CodeGenTest.Pair();\n" +
+                        "    ePair0.setT0(1234);\n" +
+                        "    ePair0.setT1(\"string0\");\n",
+                    out.toString()
+                ),
+                () -> assertEquals("ePair0", expression)
+            );
+        }
+
+        @Test
+        public void writePreambleAndExpression_Writer() {
+            final StringWriter out = new StringWriter();
+            final String expression = CodeGen.writePreambleAndExpression(Arrays.asList("a", "b"), out);
+            assertAll(
+                () -> assertEquals(
+                    "    final List eArrayList0 = new java.util.ArrayList();\n" +
+                        "    eArrayList0.add(\"a\");\n" +
+                        "    eArrayList0.add(\"b\");\n",
+                    out.toString()
+                ),
+                () -> assertEquals("eArrayList0", expression)
+            );
+        }
+
+        @Test
+        public void writePreambleAndExpression_simple() {
+            final StringBuilder out = new StringBuilder();
+            final String expression = CodeGen.writePreambleAndExpression(444444555555666635L, out);
+            assertAll(
+                () -> assertEquals("", out.toString()),
+                () -> assertEquals("444444555555666635L", expression)
+            );
+        }
+    }
+
+    @Nested
+    @DisplayName("collection initialisation")
+    class CollectionInitialisation {
+        @Test
+        public void getPreambleAndExpression_presizing() {
+            final Map<String, List<String>> map = new HashMap<>();
+            map.put("a", new ArrayList<>(Arrays.asList("x", "y")));
+            map.put("b", new LinkedList<>(Arrays.asList("z")));
+
+            final Tuple2<Seq<String>, String> code =
+                CodeGen.getPreambleAndExpression(map, CodeGenOptions.DEFAULTS.withPresizing(true));
+            assertEquals(
+                "    final Map eHashMap0 = new java.util.HashMap(3);" +
+                    "    final List eArrayList1 = new java.util.ArrayList(2);" +
+                    "    eArrayList1.add(\"x\");" +
+                    "    eArrayList1.add(\"y\");" +
+                    "    eHashMap0.put(\"a\", eArrayList1);" +
+                    "    final List eLinkedList2 = new java.util.LinkedList();" +
+                    "    eLinkedList2.add(\"z\");" +
+                    "    eHashMap0.put(\"b\", eLinkedList2);",
+                code.v1.collect(Collectors.joining())
+            );
+        }
+
+        @Test
+        public void dispatch_hashedCapacity() {
+            final Dispatch dispatch = EmitterRegistry.DEFAULT.dispatch(HashSet.class);
+            assertAll(
+                () -> assertEquals("new java.util.HashSet(0)", dispatch.instantiation(0)),
+                () -> assertEquals("new java.util.HashSet(2)", dispatch.instantiation(1)),
+                () -> assertEquals("new java.util.HashSet(16)", dispatch.instantiation(12)),
+                () -> assertEquals("new java.util.HashSet(18)", dispatch.instantiation(13))
+            );
+        }
+
+        @Test
+        public void getPreambleAndExpression_bulkInitialisation() {
+            final Map<String, Object> map = new LinkedHashMap<>();
+            map.put("a", 1);
+            map.put("b", new TreeSet<>(Arrays.asList(3, 2)));
+            map.put("c", null);
+
+            final Tuple2<Seq<String>, String> code =
+                CodeGen.getPreambleAndExpression(map, CodeGenOptions.DEFAULTS.withBulkInitialisation(true));
+            assertEquals(
+                "    final Map eLinkedHashMap0 = new java.util.LinkedHashMap();" +
+                    "    final Set eTreeSet1 = new java.util.TreeSet();" +
+                    "    eTreeSet1.addAll(java.util.Arrays.asList(2, 3));" +
+                    "    final Object[] eObjectArray2 = new Object[] {\"a\", 1, \"b\", eTreeSet1, \"c\", null};" +
+                    "    for (int i = 0; i < eObjectArray2.length; i += 2) " +
+                    "eLinkedHashMap0.put(eObjectArray2[i], eObjectArray2[i + 1]);",
+                code.v1.collect(Collectors.joining())
+            );
+        }
+
+        @Test
+        public void getPreambleAndExpression_bulkInitialisation_backReference() {
+            final List<Object> list = new ArrayList<>();
+            list.add("a");
+            list.add(list);
+            list.add("b");
+            list.add("c");
+
+            final Tuple2<Seq<String>, String> code =
+                CodeGen.getPreambleAndExpression(list, CodeGenOptions.DEFAULTS.withBulkInitialisation(true));
+            assertEquals(
+                "    final List eArrayList0 = new java.util.ArrayList();" +
+                    "    eArrayList0.addAll(java.util.Arrays.asList(\"a\", eArrayList0, \"b\", \"c\"));",
+                code.v1.collect(Collectors.joining())
+            );
+        }
+
+        @Test
+        public void getPreambleAndExpression_bulkInitialisation_truncated() {
+            final List<String> list = Arrays.asList("a", "b", "c");
+
+            final CodeGenOptions options = CodeGenOptions.DEFAULTS.withBulkInitialisation(true).withMaxElements(2);
+            final Tuple2<Seq<String>, String> code = CodeGen.getPreambleAndExpression(list, options);
+            assertEquals(
+                "    final List eArrayList0 = new java.util.ArrayList();" +
+                    "    eArrayList0.addAll(java.util.Arrays.asList(\"a\", \"b\"));" +
+                    "    // truncated eArrayList0: 2 of 3 elements",
+                code.v1.collect(Collectors.joining())
+            );
+        }
+    }
+
+    @Nested
+    @DisplayName("metrics")
+    class Metrics {
+        @Test
+        public void getPreambleAndExpression_metrics() {
+            final CodeGenMetrics metrics = new CodeGenMetrics();
+            final CodeGenOptions options = CodeGenOptions.DEFAULTS.withListener(metrics).withFragmentCache(100);
+            final List<Object> list = Arrays.asList(new Point(1, 2), "a", "a", new BigDecimal("1.5"));
+
+            final List<String> preamble = CodeGen.getPreambleAndExpression(list, options).v1.toList();
+            final Map<String, Long> scraped = metrics.scrape();
+            assertAll(
+                () -> assertEquals(1, metrics.generations()),
+                () -> assertEquals(preamble.size(), metrics.statements()),
+                () -> assertEquals(preamble.stream().mapToLong(String::length).sum(), metrics.characters()),
+                () -> assertEquals(2, metrics.visits(String.class)),
+                () -> assertEquals(1, metrics.visits(Point.class)),
+                () -> assertEquals(1.0 / 3, metrics.fragmentCacheHitRate()),
+                () -> assertEquals(2L, scraped.get("codegen.type." + Point.class.getName() + ".reading.count")),
+                () -> assertEquals(1L, scraped.get("codegen.type.java.lang.String.formatting.count")),
+                () -> assertTrue(scraped.containsKey("codegen.type.java.util.Arrays$ArrayList.introspection.nanos"))
+            );
+        }
+
+        @Test
+        public void getPreambleAndExpression_listenerDoesNotChangeOutput() {
+            final Node node = new Node("a");
+            node.setNext(node);
+            final CodeGenOptions options = CodeGenOptions.DEFAULTS.withListener(new CodeGenMetrics());
+
+            assertEquals(
+                new CodeGenSession().getPreambleAndExpression(node).v1.toList(),
+                new CodeGenSession(options).getPreambleAndExpression(node).v1.toList()
+            );
+        }
+    }
+
+    public static class Money {
+        private final String currency;
+        private final long amount;
+
+        public Money(final String currency, final long amount) {
+            this.currency = currency;
+            this.amount = amount;
+        }
+
+        public String getCurrency() {
+            return currency;
+        }
+
+        public long getAmount() {
+            return amount;
+        }
+    }
+
+    public static class Range {
+        private final int from;
+        private final long to;
+
+        private Range(final int from, final long to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        public static Range of(final int from, final long to) {
+            return new Range(from, to);
+        }
+
+        public int getFrom() {
+            return from;
+        }
+    }
+
+    public static class Holder {
+        private Money price;
+        public List<Object> items;
+        private transient int hash;
+
+        private Holder() {
+        }
+
+        public static Holder of(final Money price, final List<Object> items) {
+            final Holder holder = new Holder();
+            holder.price = price;
+            holder.items = items;
+            holder.hash = 1;
+            return holder;
+        }
+
+        public Money getPrice() {
+            return price;
+        }
+    }
+
+    public static class Wrapper {
+        private final Object value;
+
+        public Wrapper(final Object value) {
+            this.value = value;
+        }
+
+        public Object getValue() {
+            return value;
+        }
+    }
+
+    public static class Swapped {
+        private final int x;
+        private final int y;
+
+        private Swapped() {
+            this(0, 0);
+        }
+
+        public Swapped(final int y, final int x) {
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    public static class Custom implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private transient Object state;
+        private String name;
+
+        private void writeObject(final ObjectOutputStream out) throws IOException {
+            out.defaultWriteObject();
+            out.writeObject(state);
+        }
+    }
+
+    @Nested
+    @DisplayName("field access")
+    class FieldAccessMode {
+        private final CodeGenOptions options = CodeGenOptions.DEFAULTS.withFieldAccess(true);
+
+        @Test
+        public void getPreambleAndExpression_constructors() {
+            final List<Object> list =
+                new ArrayList<>(Arrays.asList(new Money("AUD", 5), Range.of(1, 2), Holder.of(null, null)));
+
+            final Tuple2<Seq<String>, String> code = new CodeGenSession(options).getPreambleAndExpression(list);
+            assertEquals(
+                "    final List eArrayList0 = new java.util.ArrayList();" +
+                    "    final au.leighperry.jdkext.codegen.CodeGenTest.Money eMoney1 = " +
+                    "new au.leighperry.jdkext.codegen.CodeGenTest.Money(\"AUD\", 5L);" +
+                    "    eArrayList0.add(eMoney1);" +
+                    "    final au.leighperry.jdkext.codegen.CodeGenTest.Range eRange2 = " +
+                    "au.leighperry.jdkext.codegen.CodeGenTest.Range.of(1, 2L);" +
+                    "    eArrayList0.add(eRange2);" +
+                    "    final au.leighperry.jdkext.codegen.CodeGenTest.Holder eHolder3 = " +
+                    "au.leighperry.jdkext.codegen.CodeGenTest.Holder.of(" +
+                    "(au.leighperry.jdkext.codegen.CodeGenTest.Money) null, (java.util.List) null);" +
+                    "    eArrayList0.add(eHolder3);",
+                code.v1.collect(Collectors.joining())
+            );
+        }
+
+        @Test
+        public void getPreambleAndExpression_assignments() {
+            final CodeGenTest.Node node = new CodeGenTest.Node("a");
+            node.setNext(node);
+
+            final Tuple2<Seq<String>, String> code = new CodeGenSession(options).getPreambleAndExpression(node);
+            assertEquals(
+                "    final au.leighperry.jdkext.codegen.CodeGenTest.Node eNode0 = " +
+                    "new au.leighperry.jdkext.codegen.CodeGenTest.Node();" +
+                    "    au.leighperry.jdkext.codegen.FieldAssignment.set(eNode0, \"name\", \"a\");" +
+                    "    au.leighperry.jdkext.codegen.FieldAssignment.set(eNode0, \"next\", eNode0);",
+                code.v1.collect(Collectors.joining())
+            );
+        }
+
+        @Test
+        public void getPreambleAndExpression_referenceToConstructed() {
+            final List<Object> list = new ArrayList<>();
+            final Wrapper wrapper = new Wrapper(list);
+            list.add(wrapper);
+
+            final Tuple2<Seq<String>, String> code = new CodeGenSession(options).getPreambleAndExpression(wrapper);
+            assertEquals(
+                "    final List eArrayList1 = new java.util.ArrayList();" +
+                    "    final au.leighperry.jdkext.codegen.CodeGenTest.Wrapper eWrapper0 = " +
+                    "new au.leighperry.jdkext.codegen.CodeGenTest.Wrapper(eArrayList1);" +
+                    "    eArrayList1.add(eWrapper0);",
+                code.v1.collect(Collectors.joining())
+            );
+        }
+
+        @Test
+        public void getPreambleAndExpression_cycleThroughConstructor() {
+            final Wrapper outer = new Wrapper(null);
+            FieldAssignment.set(outer, "value", new Wrapper(outer));
+
+            assertEquals(
+                "Cannot generate au.leighperry.jdkext.codegen.CodeGenTest.Wrapper.value, which refers to an " +
+                    "instance constructed from its fields that it is reachable from",
+                assertThrows(
+                    IllegalArgumentException.class,
+                    () -> new CodeGenSession(options).getPreambleAndExpression(new Wrapper(outer))
+                ).getMessage()
+            );
+        }
+
+        @Test
+        public void getSupplier_compiles() {
+            final Holder holder = Holder.of(new Money("AUD", 5), new ArrayList<>(Arrays.asList(Range.of(1, 2))));
+            final CodeGenTest.Node node = new CodeGenTest.Node("a");
+            node.setNext(node);
+            final List<Object> list = new ArrayList<>(Arrays.asList(holder, node));
+
+            final Object copy = CodeGen.getSupplier(list, options, new FixtureCompiler()).get();
+            assertEquals(
+                new CodeGenSession(options).getPreambleAndExpression(list).v1.toList(),
+                new CodeGenSession(options).getPreambleAndExpression(copy).v1.toList()
+            );
+        }
+
+        @Test
+        public void getSupplier_sameTypeParameters() {
+            // Without parameter names the constructor is ambiguous, so the fields are assigned
+            final Swapped copy = (Swapped) CodeGen.getSupplier(new Swapped(2, 1), options, new FixtureCompiler()).get();
+            assertAll(
+                () -> assertEquals(1, copy.x),
+                () -> assertEquals(2, copy.y)
+            );
+        }
+
+        @Test
+        public void getPreambleAndExpression_parameterNames(@TempDir final Path dir) throws Exception {
+            final Path source = dir.resolve("P.java");
+            Files.write(
+                source,
+                (
+                    "public class P {\n" +
+                        "    final int x, y;\n" +
+                        "    public P(int y, int x) { this.x = x; this.y = y; }\n" +
+                        "}\n"
+                ).getBytes(StandardCharsets.UTF_8)
+            );
+            assertEquals(
+                0,
+                ToolProvider.getSystemJavaCompiler()
+                    .run(null, null, null, "-nowarn", "-parameters", "-d", dir.toString(), source.toString())
+            );
+
+            try (final URLClassLoader loader = new URLClassLoader(new URL[]{dir.toUri().toURL()})) {
+                final Object p = loader.loadClass("P").getConstructor(int.class, int.class).newInstance(1, 2);
+                assertEquals(
+                    "    final P eP0 = new P(1, 2);",
+                    new CodeGenSession(options).getPreambleAndExpression(p).v1.collect(Collectors.joining())
+                );
+            }
+        }
+
+        @Test
+        public void fieldAccess_stateOutsideFields() {
+            assertAll(
+                () -> assertNull(ClassMetadata.of(Date.class).fieldAccess()),
+                () -> assertNull(ClassMetadata.of(Custom.class).fieldAccess()),
+                () -> assertTrue(
+                    new CodeGenSession(options).getPreambleAndExpression(new Date(1234)).v1.anyMatch(s -> s.contains("1234"))
+                )
+            );
+        }
+
+        @Test
+        public void capture_readsFields() {
+            final Money money = new Money("AUD", 5);
+            final List<CapturedCode> results = new ArrayList<>();
+            new AsyncCapture(options, 16, 1, AsyncCapture.Overflow.DROP_NEWEST, Runnable::run, results::add)
+                .capture(money);
+
+            assertEquals(
+                new CodeGenSession(options).getPreambleAndExpression(money).v1.toList(),
+                results.get(0).preamble()
+            );
+        }
     }
 }
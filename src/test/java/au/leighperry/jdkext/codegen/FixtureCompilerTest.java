@@ -0,0 +1,159 @@
+package au.leighperry.jdkext.codegen;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class FixtureCompilerTest {
+    @TempDir
+    Path dir;
+
+    private static Map<String, Object> fixture() {
+        final Map<String, Object> map = new LinkedHashMap<>();
+        map.put("list", new ArrayList<>(Arrays.asList("a", 1, null)));
+        map.put("array", new int[]{1, 2});
+        return map;
+    }
+
+    @Test
+    public void getSupplier_createsCopies() {
+        final Map<String, Object> map = fixture();
+        final FixtureCompiler compiler = new FixtureCompiler();
+        final Supplier<Object> supplier = CodeGen.getSupplier(map, CodeGenOptions.DEFAULTS, compiler);
+
+        final Object first = supplier.get();
+        final Object second = supplier.get();
+        assertAll(
+            () -> assertEquals(
+                new CodeGenSession().getPreambleAndExpression(map).v1.toList(),
+                new CodeGenSession().getPreambleAndExpression(first).v1.toList()
+            ),
+            () -> assertNotSame(first, second),
+            () -> assertEquals(((Map<?, ?>) first).get("list"), ((Map<?, ?>) second).get("list"))
+        );
+    }
+
+    @Test
+    public void getSupplier_compilesEqualObjectsOnce() {
+        final FixtureCompiler compiler = new FixtureCompiler();
+        final List<String> list = new ArrayList<>(Arrays.asList("a", "b"));
+        CodeGen.getSupplier(fixture(), CodeGenOptions.DEFAULTS, compiler);
+        CodeGen.getSupplier(list, CodeGenOptions.DEFAULTS, compiler);
+        final Object copy = CodeGen.getSupplier(fixture(), CodeGenOptions.DEFAULTS, compiler).get();
+
+        assertAll(
+            () -> assertEquals(2, compiler.compilations()),
+            () -> assertEquals(1, compiler.memoryHits()),
+            () -> assertEquals(fixture().get("list"), ((Map<?, ?>) copy).get("list"))
+        );
+    }
+
+    @Test
+    public void getSupplier_cachesOnDisk() {
+        final FixtureCompiler compiler = new FixtureCompiler(null, dir);
+        CodeGen.getSupplier(fixture(), CodeGenOptions.DEFAULTS, compiler);
+
+        final FixtureCompiler other = new FixtureCompiler(null, dir);
+        final Object copy = CodeGen.getSupplier(fixture(), CodeGenOptions.DEFAULTS, other).get();
+
+        assertAll(
+            () -> assertEquals(1, compiler.compilations()),
+            () -> assertEquals(0, other.compilations()),
+            () -> assertEquals(1, other.diskHits()),
+            () -> assertEquals(fixture().get("list"), ((Map<?, ?>) copy).get("list"))
+        );
+    }
+
+    @Test
+    public void getSupplier_evictsLeastRecentlyUsed() {
+        final FixtureCompiler compiler = new FixtureCompiler(null, null, 1);
+        final List<String> list = new ArrayList<>(Arrays.asList("a", "b"));
+        CodeGen.getSupplier(fixture(), CodeGenOptions.DEFAULTS, compiler);
+        CodeGen.getSupplier(fixture(), CodeGenOptions.DEFAULTS, compiler);
+        CodeGen.getSupplier(list, CodeGenOptions.DEFAULTS, compiler);
+        CodeGen.getSupplier(fixture(), CodeGenOptions.DEFAULTS, compiler);
+
+        assertAll(
+            () -> assertEquals(3, compiler.compilations()),
+            () -> assertEquals(1, compiler.memoryHits())
+        );
+    }
+
+    @Test
+    public void getSupplier_concurrentLoadsCompileOnce() throws Exception {
+        final FixtureCompiler compiler = new FixtureCompiler();
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<Object>> copies = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                copies.add(
+                    executor.submit(() -> CodeGen.getSupplier(fixture(), CodeGenOptions.DEFAULTS, compiler).get())
+                );
+            }
+            for (final Future<Object> copy : copies) {
+                assertEquals(fixture().get("list"), ((Map<?, ?>) copy.get()).get("list"));
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertAll(
+            () -> assertEquals(1, compiler.compilations()),
+            () -> assertEquals(3, compiler.memoryHits())
+        );
+    }
+
+    @Test
+    public void getSupplier_keyedByClasspath() throws IOException {
+        final FixtureCompiler compiler = new FixtureCompiler(null, dir.resolve("cache"));
+        CodeGen.getSupplier(fixture(), CodeGenOptions.DEFAULTS, compiler);
+
+        final Path classes = Files.createDirectories(dir.resolve("classes"));
+        Files.write(classes.resolve("Extra.class"), new byte[]{1});
+        final URL[] urls = {classes.toUri().toURL()};
+        try (URLClassLoader parent = new URLClassLoader(urls, getClass().getClassLoader())) {
+            final FixtureCompiler other = new FixtureCompiler(parent, dir.resolve("cache"));
+            CodeGen.getSupplier(fixture(), CodeGenOptions.DEFAULTS, other);
+
+            Files.write(classes.resolve("Extra.class"), new byte[]{1, 2});
+            final FixtureCompiler changed = new FixtureCompiler(parent, dir.resolve("cache"));
+            CodeGen.getSupplier(fixture(), CodeGenOptions.DEFAULTS, changed);
+
+            assertAll(
+                () -> assertEquals(1, other.compilations()),
+                () -> assertEquals(0, other.diskHits()),
+                () -> assertEquals(1, changed.compilations()),
+                () -> assertEquals(0, changed.diskHits())
+            );
+        }
+    }
+
+    @Test
+    public void load_uncompilable() {
+        final ChunkedCode code = new ChunkedCode(
+            Arrays.asList(new ChunkedCode.Unit("gen", "Broken", "package gen; public class Broken { int x = \"\"; }"))
+        );
+        final IllegalStateException e = assertThrows(IllegalStateException.class, () -> new FixtureCompiler().load(code));
+        assertTrue(e.getMessage().startsWith("Cannot compile gen.Broken\n"), e.getMessage());
+    }
+}